@@ -0,0 +1,182 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmarks of the in-process hot paths of Amazon, run without a
+ * database: the distance function, the three SelectByDistance rankings
+ * (without the console prompt), the viewStores radius search, table
+ * printing and result set materialization against a stub ResultSet.
+ *
+ * Each benchmark is run for every dataset size, warmed up for --warmup ms
+ * and then measured over --iterations rounds of --measure / iterations ms.
+ * Besides the time per operation it reports the bytes allocated per
+ * operation and the allocation rate, from the thread allocation counters of
+ * com.sun.management.ThreadMXBean, so allocation regressions show up too.
+ *
+ *   java -cp classes:bench-classes Benchmarks [--sizes=20,1000,100000,1000000]
+ *        [--warmup=1000] [--measure=3000] [--iterations=5] [--filter=name]
+ */
+public class Benchmarks {
+
+   // one benchmarked operation on a prepared dataset
+   private interface Op {
+      Object run() throws Exception;
+   }
+
+   private static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+      @Override public void write(int b) { }
+      @Override public void write(byte[] b, int off, int len) { }
+   });
+
+   private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+   private static volatile Object sink; // keeps results alive so the JIT can not drop the work
+
+   private long warmupMs = 1000;
+   private long measureMs = 3000;
+   private int iterations = 5;
+   private String filter = null;
+
+   public static void main(String[] args) throws Exception {
+      Benchmarks b = new Benchmarks();
+      int[] sizes = { 20, 1000, 100000, 1000000 };
+      for (String arg : args) {
+         int eq = arg.indexOf('=');
+         if (!arg.startsWith("--") || eq < 0)
+            throw new IllegalArgumentException("Expected --name=value, got " + arg);
+         String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+         switch (name) {
+            case "sizes": sizes = Arrays.stream(value.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray(); break;
+            case "warmup": b.warmupMs = Long.parseLong(value); break;
+            case "measure": b.measureMs = Long.parseLong(value); break;
+            case "iterations": b.iterations = Math.max(1, Integer.parseInt(value)); break;
+            case "filter": b.filter = value; break;
+            default: throw new IllegalArgumentException("Unknown option --" + name);
+         }
+      }
+      THREADS.setThreadAllocatedMemoryEnabled(true);
+      System.out.println(String.format("%-28s%10s%16s%12s%14s%14s", "benchmark", "size", "us/op", "+-%", "bytes/op", "MB/s alloc"));
+      for (int size : sizes)
+         b.runAll(size);
+   }
+
+   private void runAll(final int n) throws Exception {
+      Random random = new Random(42);
+      final double lat = 50, lon = 50;
+      final LocationBatch batch = new LocationBatch(n);
+      final List<List<String>> rows = new ArrayList<List<String>>(n);
+      int[] ids = new int[n];
+      double[] lats = new double[n], lons = new double[n];
+      for (int i = 0; i < n; i++) {
+         ids[i] = i + 1;
+         lats[i] = random.nextDouble() * 100;
+         lons[i] = random.nextDouble() * 100;
+         batch.add(ids[i], lats[i], lons[i]);
+         rows.add(Arrays.asList(Integer.toString(ids[i]), Double.toString(lats[i]), Double.toString(lons[i])));
+      }
+      final SpatialIndex<Object> index = new SpatialIndex<Object>(ids, lats, lons, Collections.nCopies(n, null));
+
+      final String[] names = { "storeid", "productname", "numberofunits", "priceperunit" };
+      final List<List<String>> table = new ArrayList<List<String>>(n);
+      for (int i = 0; i < n; i++)
+         table.add(Arrays.asList(Integer.toString(i % 1000), "Product " + (i % 37) + "                 ",
+                                 Integer.toString(random.nextInt(500)), Integer.toString(1 + random.nextInt(20))));
+      final String[][] resultRows = new String[n][];
+      for (int i = 0; i < n; i++)
+         resultRows[i] = table.get(i).toArray(new String[0]);
+
+      bench("calculateDistance", n, () -> {
+         double sum = 0;
+         for (int i = 0; i < n; i++)
+            sum += Amazon.calculateDistance(lat, lon, batch.latitude(i), batch.longitude(i));
+         return sum;
+      });
+      bench("SelectByDistance.strings", n, () -> Amazon.rankByDistance(rows, lat, lon));
+      bench("SelectByDistance.batch", n, () -> Amazon.rankByDistance(batch, lat, lon, new double[n]));
+      bench("SelectByDistance.index", n, () -> index.nearest(lat, lon, 10));
+      bench("viewStores.scanAndSort", n, () -> {
+         // the original viewStores: distance to every store, keep those within 30, sort
+         List<double[]> near = new ArrayList<double[]>();
+         for (int i = 0; i < n; i++) {
+            double d = Amazon.calculateDistance(lat, lon, batch.latitude(i), batch.longitude(i));
+            if (d <= 30) near.add(new double[] { batch.id(i), d });
+         }
+         near.sort((a, b) -> Double.compare(a[1], b[1]));
+         return near;
+      });
+      bench("viewStores.index", n, () -> index.withinRadius(lat, lon, 30));
+      bench("printTable", n, () -> Amazon.printTable(names, table.iterator(), 200, NULL_OUT));
+      bench("collectResult", n, () -> Amazon.collectResult(stubResultSet(names, resultRows)));
+   }//end runAll
+
+   private void bench(String name, int size, Op op) throws Exception {
+      if (filter != null && !name.contains(filter))
+         return;
+      long tid = Thread.currentThread().getId();
+      long end = System.nanoTime() + warmupMs * 1000000L;
+      do { sink = op.run(); } while (System.nanoTime() < end);
+
+      double[] nsPerOp = new double[iterations];
+      long totalOps = 0, totalBytes = 0, totalNanos = 0;
+      for (int it = 0; it < iterations; it++) {
+         long ops = 0;
+         long bytes0 = THREADS.getThreadAllocatedBytes(tid);
+         long t0 = System.nanoTime();
+         long stop = t0 + measureMs * 1000000L / iterations;
+         long t;
+         do {
+            sink = op.run();
+            ops++;
+         } while ((t = System.nanoTime()) < stop);
+         totalBytes += THREADS.getThreadAllocatedBytes(tid) - bytes0;
+         totalNanos += t - t0;
+         totalOps += ops;
+         nsPerOp[it] = (double) (t - t0) / ops;
+      }
+      double mean = 0;
+      for (double v : nsPerOp) mean += v / iterations;
+      double var = 0;
+      for (double v : nsPerOp) var += (v - mean) * (v - mean) / iterations;
+      System.out.println(String.format("%-28s%10d%16.3f%12.1f%14d%14.1f", name, size, mean / 1e3,
+         mean == 0 ? 0 : 100 * Math.sqrt(var) / mean, totalBytes / totalOps, totalBytes / 1048576.0 / (totalNanos / 1e9)));
+   }//end bench
+
+   // a forward-only ResultSet over fixed rows; supports what Amazon.collectResult calls
+   private static ResultSet stubResultSet(final String[] names, final String[][] rows) {
+      final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+         Benchmarks.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+               case "getColumnCount": return names.length;
+               case "getColumnName":
+               case "getColumnLabel": return names[(Integer) args[0] - 1];
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         });
+      InvocationHandler handler = new InvocationHandler() {
+         int row = -1;
+
+         @Override
+         public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) {
+            switch (method.getName()) {
+               case "next": return ++row < rows.length;
+               case "getString": return rows[row][(Integer) args[0] - 1];
+               case "getMetaData": return meta;
+               case "close": return null;
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         }
+      };
+      return (ResultSet) Proxy.newProxyInstance(Benchmarks.class.getClassLoader(), new Class<?>[] { ResultSet.class }, handler);
+   }
+}//end Benchmarks
@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the program and the benchmarks, then run the in-process benchmarks (no database needed)
+# options: --sizes=20,1000,100000,1000000 --warmup=1000 --measure=3000 --iterations=5 --filter=<name>
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
+javac -cp $DIR/../classes -d $DIR/../bench-classes $DIR/../bench/*.java || exit 1
+java -cp $DIR/../classes:$DIR/../bench-classes:$DIR/../lib/pg73jdbc3.jar Benchmarks "$@"
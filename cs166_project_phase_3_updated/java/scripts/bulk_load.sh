@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# load data/*.csv through the JDBC connection (no server-side file access needed)
+# and rebuild the indexes from create_indexes.sql afterwards
+java -Damazon.pool.max=4 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER \
+     bulk-load $DIR/../../data $DIR/../../sql/src/create_indexes.sql "$@"
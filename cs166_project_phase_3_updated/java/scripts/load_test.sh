@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# replay the browse/order/report mix with simulated users drawn from data/*.csv;
+# orders change stock, so point it at a scratch copy of the database.
+# options: --threads=8 --ramp=5 --duration=60 --think=0 --mix=browse:70,order:20,report:10
+java -Damazon.pool.max=16 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER \
+     load-test $DIR/../../data "$@"
@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# create the monthly Orders/ProductUpdates partitions ahead of time and archive
+# old ones; safe to rerun, meant to run once after create_db.sh and then daily
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Amazon $USER"_project_phase_3_DB" $PGPORT $USER \
+     partitions "$@"
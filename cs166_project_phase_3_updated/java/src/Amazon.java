@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,12 +22,22 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.lang.Math;
 import java.sql.Timestamp;
+import java.math.BigDecimal;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -36,8 +47,94 @@ import java.util.Comparator;
 
 public class Amazon {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by the execute helpers.
+   private ConnectionPool _pool = null;
+
+   // connection pinned to the current thread by withConnection, if any.
+   private final ThreadLocal<Connection> _pinned = new ThreadLocal<Connection>();
+
+   // spatial indexes over Store and Warehouse locations, rebuilt when stale.
+   private volatile SpatialIndex<Store> _storeIndex = null;
+   private volatile SpatialIndex<Warehouse> _warehouseIndex = null;
+   private final long _indexRefreshMs = Long.getLong("amazon.index.refreshMs", 60000L);
+
+   // rows fetched per round trip by streaming queries, and rows sampled to size printed columns.
+   private final int _fetchSize = Integer.getInteger("amazon.fetchSize", 500);
+   // false once the driver turned setFetchSize down, so the failure is not paid on every query.
+   private static volatile boolean _fetchSizeSupported = true;
+   private final int _printSampleRows = Integer.getInteger("amazon.print.sampleRows", 200);
+
+   // sequences behind the serial keys of Orders, ProductUpdates and ProductSupplyRequests.
+   public static final String ORDER_SEQ = "orders_orderNumber_seq";
+   public static final String UPDATE_SEQ = "productupdates_updateNumber_seq";
+   public static final String REQUEST_SEQ = "productsupplyrequests_requestNumber_seq";
+
+   // daemon threads for background work such as prefetching key blocks.
+   private final ExecutorService _background = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "amazon-background");
+      t.setDaemon(true);
+      return t;
+   });
+
+   // block allocators for the sequences above, created on first use.
+   private final Map<String, KeyAllocator> _keys = new ConcurrentHashMap<String, KeyAllocator>();
+   private final int _keyBlockSize = Integer.getInteger("amazon.keys.blockSize", 50);
+
+   // sessions of logged in users, keyed by userID; dropped when the Users row changes.
+   private final Map<Integer, Session> _sessions = new ConcurrentHashMap<Integer, Session>();
+
+   // units sold per product of each store, ranked; backed by the ProductSales table.
+   private final SalesRanking<String> _productSales = new SalesRanking<String>(_indexRefreshMs);
+
+   // units bought by each customer of each store, ranked; backed by the CustomerPurchases table.
+   private final SalesRanking<Integer> _customerPurchases = new SalesRanking<Integer>(_indexRefreshMs);
+
+   // latest orders per customer and per store (with the customer's name), and latest
+   // product updates per (manager, store); amazon.recent.size rows for at most
+   // amazon.recent.maxKeys keys each.
+   private final int _recentSize = Math.max(5, Integer.getInteger("amazon.recent.size", 5));
+   private final int _recentMaxKeys = Integer.getInteger("amazon.recent.maxKeys", 10000);
+   // age of the rows the "last N" loads look at first, so they only touch the newest partitions.
+   private final long _recentHotDays = Long.getLong("amazon.recent.hotDays", 90L);
+   private final RecentLog<Integer, Order> _customerOrders = new RecentLog<Integer, Order>(_recentSize, _recentMaxKeys);
+   private final RecentLog<Integer, Pair<Order, String>> _storeOrders = new RecentLog<Integer, Pair<Order, String>>(_recentSize, _recentMaxKeys);
+   private final RecentLog<Long, ProductUpdate> _recentUpdates = new RecentLog<Long, ProductUpdate>(_recentSize, _recentMaxKeys);
+
+   // product listing of each store sorted by name, kept for amazon.products.ttlMs
+   // for at most amazon.products.maxStores stores and dropped by the Product writes.
+   private final TtlCache<Integer, List<Product>> _products = new TtlCache<Integer, List<Product>>(
+           Long.getLong("amazon.products.ttlMs", 5000L),
+           Integer.getInteger("amazon.products.maxStores", 1000));
+
+   // latency and counters of the statements issued by the execute helpers, per
+   // operation and SQL shape; published over JMX and dumped every amazon.metrics.dumpMs.
+   private final StatementMetrics _metrics = new StatementMetrics(
+           Integer.getInteger("amazon.metrics.maxShapes", 500),
+           Long.getLong("amazon.metrics.dumpMs", 0L),
+           System.getProperty("amazon.metrics.file", "amazon-metrics.log"));
+
+   // streaming replicas that take the plain reads, see ReplicaRouter; null without amazon.replicas.
+   private ReplicaRouter _replicas = null;
+
+   // statements slower than amazon.slowQuery.thresholdMs, with their plans; null when off.
+   private SlowQueryLog _slowQueries = null;
+
+   // drops cached rows that other instances changed, see ChangeListener; null without amazon.notify.pollMs.
+   private ChangeListener _changes = null;
+
+   // operation tags of the user menu entries, for the statement metrics.
+   private static final String[] MENU_OPERATIONS = {
+      "viewStores", "viewProducts", "placeOrder", "viewRecentOrders", "updateProduct", "viewRecentUpdates",
+      "viewPopularProducts", "viewPopularCustomers", "placeProductSupplyRequests", "viewAndUpdateInfo", "manageCart" };
+
+   // writes the ProductUpdates rows in the background, see AuditLog; null with amazon.audit.async=false.
+   private AuditLog _audit = null;
+
+   // restocks products below their threshold every amazon.replenish.intervalMs; null when off.
+   private Replenisher _replenisher = null;
+
+   // places orders atomically, retrying on serialization failures and deadlocks.
+   private final OrderEngine _orders = new OrderEngine(this, 5, 5L);
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -45,7 +142,22 @@ public class Amazon {
                                 new InputStreamReader(System.in));
 
    /**
-    * Creates a new instance of Amazon store
+    * A unit of work that runs against a single borrowed connection.
+    */
+   public interface ConnectionCallback<T> {
+      T run(Connection conn) throws SQLException;
+   }
+
+   /**
+    * Converts the current row of a result set to an object.
+    */
+   public interface RowMapper<T> {
+      T map(ResultSet rs) throws SQLException;
+   }
+
+   /**
+    * Creates a new instance of Amazon store. The connection pool is sized
+    * from the amazon.pool.* system properties (see the other constructor).
     *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
@@ -54,6 +166,28 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Amazon(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd,
+           Integer.getInteger("amazon.pool.min", 1),
+           Integer.getInteger("amazon.pool.max", 8),
+           Long.getLong("amazon.pool.idleTimeoutMs", 300000L),
+           Long.getLong("amazon.pool.maxWaitMs", 5000L));
+   }//end Amazon
+
+   /**
+    * Creates a new instance of Amazon store backed by a connection pool
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the PostgreSQL server listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param poolMin connections kept open while idle
+    * @param poolMax maximum number of connections open at once
+    * @param idleTimeoutMs idle time after which extra connections are closed
+    * @param maxWaitMs how long a helper waits for a free connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Amazon(String dbname, String dbport, String user, String passwd,
+                 int poolMin, int poolMax, long idleTimeoutMs, long maxWaitMs) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -61,9 +195,29 @@ public class Amazon {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(url, user, passwd, poolMin, poolMax, idleTimeoutMs, maxWaitMs, 1000L,
+                                         Integer.getInteger("amazon.stmt.cacheSize", 64),
+                                         Integer.getInteger("amazon.stmt.prepareThreshold", 5));
          System.out.println("Done");
+         openReplicas(dbname, user, passwd, poolMax, idleTimeoutMs, maxWaitMs);
+         openSlowQueryLog();
+         long pollMs = Long.getLong("amazon.notify.pollMs", 0L);
+         if (pollMs > 0)
+            _changes = new ChangeListener(this, _pool, pollMs,
+                                          Long.getLong("amazon.notify.fullRefreshMs", 300000L),
+                                          Integer.getInteger("amazon.notify.maxBatch", 1000));
+         if (Boolean.parseBoolean(System.getProperty("amazon.audit.async", "true")))
+            _audit = new AuditLog(this,
+                                  Integer.getInteger("amazon.audit.queueSize", 10000),
+                                  Integer.getInteger("amazon.audit.batchSize", 500),
+                                  Long.getLong("amazon.audit.flushMs", 200L),
+                                  new File(System.getProperty("amazon.audit.spillFile", "amazon-audit.spill")));
+         long replenishMs = Long.getLong("amazon.replenish.intervalMs", 0L);
+         if (replenishMs > 0) {
+            _replenisher = newReplenisher();
+            _replenisher.start(replenishMs);
+         }
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -71,12 +225,134 @@ public class Amazon {
       }//end catch
    }//end Amazon
 
+   /**
+    * Creates a replenisher configured by the amazon.replenish.* properties.
+    *
+    * @return a replenisher that is not scheduled yet
+    */
+   public Replenisher newReplenisher() {
+      return new Replenisher(this,
+                             Integer.getInteger("amazon.replenish.threshold", 10),
+                             Replenisher.parseThresholds(System.getProperty("amazon.replenish.storeThresholds", "")),
+                             Integer.getInteger("amazon.replenish.targetUnits", 50),
+                             Integer.getInteger("amazon.replenish.batchSize", 200),
+                             Long.getLong("amazon.replenish.pauseMs", 200L),
+                             Long.getLong("amazon.replenish.lockTimeoutMs", 100L));
+   }
+
+   // routes reads to the replicas of amazon.replicas, given as ports on localhost or JDBC URLs
+   private void openReplicas(String dbname, String user, String passwd, int poolMax, long idleTimeoutMs, long maxWaitMs) throws SQLException {
+      String replicas = System.getProperty("amazon.replicas", "").trim();
+      if (replicas.isEmpty())
+         return;
+      List<String> urls = new ArrayList<String>();
+      for (String replica : replicas.split(",")) {
+         replica = replica.trim();
+         urls.add(replica.matches("\\d+") ? "jdbc:postgresql://localhost:" + replica + "/" + dbname : replica);
+      }
+      long maxLagMs = Long.getLong("amazon.replica.maxLagMs", 1000L);
+      long checkMs = Long.getLong("amazon.replica.checkMs", 500L);
+      _replicas = new ReplicaRouter(_pool, urls, user, passwd, poolMax, idleTimeoutMs, maxWaitMs,
+                                    Integer.getInteger("amazon.stmt.cacheSize", 64),
+                                    Integer.getInteger("amazon.stmt.prepareThreshold", 5),
+                                    maxLagMs, checkMs, Long.getLong("amazon.replica.stickyMs", maxLagMs + 2 * checkMs));
+      System.out.println("Reading from replicas: " + urls);
+   }//end openReplicas
+
+   // starts the slow query log if amazon.slowQuery.thresholdMs is set
+   private void openSlowQueryLog() {
+      long thresholdMs = Long.getLong("amazon.slowQuery.thresholdMs", 0L);
+      if (thresholdMs <= 0)
+         return;
+      String file = System.getProperty("amazon.slowQuery.file", "amazon-slow.log");
+      try {
+         _slowQueries = new SlowQueryLog(_pool, _metrics, thresholdMs,
+                                         Boolean.getBoolean("amazon.slowQuery.explain"),
+                                         Long.getLong("amazon.slowQuery.explainIntervalMs", 60000L),
+                                         file,
+                                         Integer.getInteger("amazon.slowQuery.maxBytes", 10485760),
+                                         Integer.getInteger("amazon.slowQuery.files", 5));
+      } catch (IOException e) {
+         System.err.println("Can not open " + file + ", slow queries are not logged: " + e.getMessage());
+      }
+   }//end openSlowQueryLog
+
+   // records a statement of an execute helper in the metrics and, if it was slow, the slow query log
+   private void observe(String sql, Object[] args, long start, long rows) {
+      long elapsed = _metrics.record(sql, start, rows);
+      if (_slowQueries != null)
+         _slowQueries.check(sql, args, elapsed, rows);
+   }
+
+   // same as observe, for a statement that failed
+   private void observeError(String sql, Object[] args, long start) {
+      long elapsed = _metrics.recordError(sql, start);
+      if (_slowQueries != null)
+         _slowQueries.check(sql, args, elapsed, -1);
+   }
+
+   // returns the connection pinned to this thread, or borrows one from the pool
+   private Connection acquire() throws SQLException {
+      Connection conn = _pinned.get();
+      return conn != null ? conn : _pool.borrow();
+   }
+
+   // same as acquire, but a plain read outside withConnection may go to a replica
+   private Connection acquireForRead(String sql) throws SQLException {
+      Connection conn = _pinned.get();
+      if (conn != null)
+         return conn;
+      return _replicas != null ? _replicas.borrowForRead(sql) : _pool.borrow();
+   }
+
+   // hands a connection obtained by acquire() or acquireForRead() back, unless it is pinned
+   private void release(Connection conn) {
+      if (conn != _pinned.get() && (_replicas == null || !_replicas.release(conn)))
+         _pool.release(conn);
+   }
+
+   /**
+    * Returns the replica router, or null when no replicas are configured.
+    *
+    * @return the router
+    */
+   public ReplicaRouter getReplicaRouter() { return _replicas; }
+
+   /**
+    * Runs a unit of work on one connection. Every execute helper called by
+    * the same thread inside the callback uses that connection too, so
+    * session state such as currval() and open transactions carries over.
+    *
+    * @param work the unit of work
+    * @return whatever the callback returns
+    * @throws java.sql.SQLException when the callback fails
+    */
+   public <T> T withConnection(ConnectionCallback<T> work) throws SQLException {
+      Connection pinned = _pinned.get();
+      if (pinned != null)
+         return work.run(pinned);
+      Connection conn = _pool.borrow();
+      _pinned.set(conn);
+      try {
+         return work.run(conn);
+      } finally {
+         _pinned.remove();
+         _pool.release(conn);
+      }
+   }//end withConnection
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+
+   // current time truncated to whole seconds, as stored in orderTime/updatedOn
+   public static Timestamp now() {
+      return new Timestamp(System.currentTimeMillis() / 1000 * 1000);
+   }
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -85,82 +361,295 @@ public class Amazon {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+      long start = System.nanoTime();
+      Connection conn = acquire();
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the update instruction
+         int rows = stmt.executeUpdate (sql);
+
+         // close the instruction
+         stmt.close ();
+         if (_replicas != null) _replicas.wrote();
+         observe(sql, null, start, rows);
+      } catch (SQLException | RuntimeException e) {
+         observeError(sql, null, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }//end executeUpdate
 
-      // close the instruction
-      stmt.close ();
+   /**
+    * Method to execute a parameterized update SQL statement. The statement
+    * is taken from the connection's statement cache and the arguments are
+    * bound to its ? placeholders in order.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param args the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... args) throws SQLException {
+      long start = System.nanoTime();
+      Connection conn = acquire();
+      try {
+         PreparedStatement stmt = prepare(conn, sql, args);
+         int rows = stmt.executeUpdate ();
+         if (_replicas != null) _replicas.wrote();
+         observe(sql, args, start, rows);
+         return rows;
+      } catch (SQLException | RuntimeException e) {
+         observeError(sql, args, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out. Rows are streamed (see executeQueryAndStream) and
+    * printed in a single pass.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime();
+      try (QueryCursor cursor = openCursor(query, null)) {
+         int rows = printResult(cursor);
+         observe(query, null, start, rows);
+         return rows;
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, null, start);
+         throw e;
+      }
+   }//end executeQuery
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Parameterized variant of executeQueryAndPrintResult.
+    *
+    * @param query the input query string with ? placeholders
+    * @param args the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... args) throws SQLException {
+      long start = System.nanoTime();
+      try (QueryCursor cursor = openCursor(query, args)) {
+         int rows = printResult(cursor);
+         observe(query, args, start, rows);
+         return rows;
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, args, start);
+         throw e;
+      }
+   }//end executeQueryAndPrintResult
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * stream its rows. The rows are fetched amazon.fetchSize at a time, so
+    * arbitrarily large results are read in constant memory. The cursor
+    * keeps a connection until it is closed.
+    *
+    * @param query the input query string with ? placeholders
+    * @param args the values bound to the placeholders
+    * @return an open cursor over the result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryCursor executeQueryAndStream (String query, Object... args) throws SQLException {
+      return openCursor(query, args);
+   }//end executeQueryAndStream
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      int[] columnWidths = new int[numCol];
+   /**
+    * Method to execute a parameterized query and map every row to an
+    * object with getInt/getDouble/getTimestamp instead of strings.
+    *
+    * @param query the input query string with ? placeholders
+    * @param mapper converts the current row to an object
+    * @param args the values bound to the placeholders
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryForList (String query, RowMapper<T> mapper, Object... args) throws SQLException {
+      long start = System.nanoTime();
+      Connection conn = acquireForRead(query);
+      try {
+         ResultSet rs = prepare(conn, query, args).executeQuery ();
+         try {
+            List<T> result = new ArrayList<T>();
+            while (rs.next())
+               result.add(mapper.map(rs));
+            observe(query, args, start, result.size());
+            return result;
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, args, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }//end executeQueryForList
+
+   /**
+    * Same as executeQueryForList, but returns only the first row.
+    *
+    * @return the first mapped row, or null if there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T executeQueryForObject (String query, RowMapper<T> mapper, Object... args) throws SQLException {
+      long start = System.nanoTime();
+      Connection conn = acquireForRead(query);
+      try {
+         ResultSet rs = prepare(conn, query, args).executeQuery ();
+         try {
+            T result = rs.next() ? mapper.map(rs) : null;
+            observe(query, args, start, result == null ? 0 : 1);
+            return result;
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, args, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }//end executeQueryForObject
 
-      // First, find the maximum width required for each column
-      if (outputHeader) {
-         for (int i = 1; i <= numCol; i++) {
-            columnWidths[i - 1] = rsmd.getColumnName(i).length();
+   /**
+    * Method to execute a parameterized query whose first three columns are
+    * an id, a latitude and a longitude, returning them in primitive arrays.
+    *
+    * @param query the input query string with ? placeholders
+    * @param args the values bound to the placeholders
+    * @return the locations
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public LocationBatch executeQueryForLocations (String query, Object... args) throws SQLException {
+      long start = System.nanoTime();
+      Connection conn = acquireForRead(query);
+      try {
+         ResultSet rs = prepare(conn, query, args).executeQuery ();
+         try {
+            LocationBatch result = LocationBatch.read(rs);
+            observe(query, args, start, result.size());
+            return result;
+         } finally {
+            rs.close ();
          }
-         while (rs.next()) {
-            for (int i = 1; i <= numCol; i++) {
-                  int length = rs.getString(i).trim().length();
-                  if (length > columnWidths[i - 1]) {
-                     columnWidths[i - 1] = length;
-                  }
-            }
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, args, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }//end executeQueryForLocations
+
+   // runs a query with a fetch size inside a transaction; args == null issues a plain statement.
+   // Drivers without cursor support (the bundled pg73jdbc3.jar) return the whole result at once.
+   private QueryCursor openCursor (String query, Object[] args) throws SQLException {
+      final Connection conn = acquireForRead(query);
+      Statement stmt = null;
+      boolean ownsTransaction = false;
+      try {
+         if (conn.getAutoCommit()) {
+            conn.setAutoCommit(false);
+            ownsTransaction = true;
+         }
+         ResultSet rs;
+         if (args == null) {
+            stmt = conn.createStatement ();
+            setFetchSize(stmt);
+            rs = stmt.executeQuery (query);
+         } else {
+            // not taken from the statement cache: running the same SQL again or an eviction
+            // would close the result set while the cursor is still being read
+            PreparedStatement ps = conn.prepareStatement (query);
+            stmt = ps;
+            for (int i = 0; i < args.length; i++)
+               ps.setObject(i + 1, args[i]);
+            setFetchSize(ps);
+            rs = ps.executeQuery ();
+         }
+         return new QueryCursor(conn, stmt, rs, ownsTransaction, () -> release(conn));
+      } catch (SQLException | RuntimeException e) {
+         if (stmt != null) stmt.close ();
+         if (ownsTransaction) {
+            conn.rollback();
+            conn.setAutoCommit(true);
          }
-         rs.beforeFirst(); // Reset the cursor to the beginning
+         release(conn);
+         throw e;
       }
+   }//end openCursor
 
-      // Next, print out the headers with appropriate spacing
-      if (outputHeader) {
-         for (int i = 1; i <= numCol; i++) {
-            System.out.print(String.format("%-" + columnWidths[i - 1] + "s\t", rsmd.getColumnName(i)));
+   private void setFetchSize (Statement stmt) {
+      if (!_fetchSizeSupported)
+         return;
+      try {
+         stmt.setFetchSize(_fetchSize);
+      } catch (SQLException e) {
+         _fetchSizeSupported = false;
+      }
+   }
+
+   // prints a cursor as an aligned table in one pass and returns the number of rows.
+   private int printResult (QueryCursor cursor) {
+      return printTable(cursor.getColumnNames(), cursor, _printSampleRows, System.out);
+   }//end printResult
+
+   // prints rows as an aligned table in one pass and returns the number of rows.
+   // column widths are sized from the first sampleRows rows; later, wider
+   // values still print in full but push the rest of their line to the right.
+   static int printTable (String[] names, Iterator<List<String>> cursor, int sampleRows, PrintStream out) {
+      int numCol = names.length;
+      int rowCount = 0;
+      int[] columnWidths = new int[numCol];
+
+      // First, buffer a bounded sample and find the width required for each column
+      for (int i = 0; i < numCol; i++) {
+         columnWidths[i] = names[i].length();
+      }
+      List<List<String>> sample = new ArrayList<List<String>>();
+      while (sample.size() < sampleRows && cursor.hasNext()) {
+         List<String> record = cursor.next();
+         for (int i = 0; i < numCol; i++) {
+            int length = record.get(i).trim().length();
+            if (length > columnWidths[i]) {
+               columnWidths[i] = length;
+            }
          }
-         System.out.println();
-         outputHeader = false;
+         sample.add(record);
       }
 
-      // Finally, print out the rows with padding to align under the headers
-      while (rs.next()) {
-         for (int i = 1; i <= numCol; i++) {
-            String value = rs.getString(i).trim();
-            System.out.print(String.format("%-" + columnWidths[i - 1] + "s\t", value));
+      // Next, print out the headers with appropriate spacing
+      String[] formats = new String[numCol];
+      for (int i = 0; i < numCol; i++) {
+         formats[i] = "%-" + columnWidths[i] + "s\t";
+         out.print(String.format(formats[i], names[i]));
+      }
+      out.println();
+
+      // Finally, print out the sample and then the remaining rows as they arrive
+      Iterator<List<String>> rest = cursor;
+      for (Iterator<List<String>> rows = sample.iterator(); rows.hasNext() || rest.hasNext(); ) {
+         List<String> record = rows.hasNext() ? rows.next() : rest.next();
+         for (int i = 0; i < numCol; i++) {
+            out.print(String.format(formats[i], record.get(i).trim()));
          }
-         System.out.println();
+         out.println();
          ++rowCount;
-      }//end while
-
-      stmt.close ();
+      }//end for
       return rowCount;
-   }//end executeQuery
+   }//end printTable
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -172,32 +661,73 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime();
+      Connection conn = acquireForRead(query);
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+         List<List<String>> result = collectResult(rs);
+         stmt.close ();
+         observe(query, null, start, result.size());
+         return result;
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, null, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }//end executeQueryAndReturnResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Parameterized variant of executeQueryAndReturnResult.
+    *
+    * @param query the input query string with ? placeholders
+    * @param args the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... args) throws SQLException {
+      long start = System.nanoTime();
+      Connection conn = acquireForRead(query);
+      try {
+         ResultSet rs = prepare(conn, query, args).executeQuery ();
+         try {
+            List<List<String>> result = collectResult(rs);
+            observe(query, args, start, result.size());
+            return result;
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, args, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }//end executeQueryAndReturnResult
 
+   // copies every row of a result set into a list of string records
+   static List<List<String>> collectResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
+        List<String> record = new ArrayList<String>(numCol);
+        for (int i=1; i<=numCol; ++i)
+           record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end collectResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -208,51 +738,652 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime();
+      Connection conn = acquireForRead(query);
+      try {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+         int rowCount = countRows(rs);
+         stmt.close ();
+         observe(query, null, start, rowCount);
+         return rowCount;
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, null, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }
+
+   /**
+    * Parameterized variant of executeQuery.
+    *
+    * @param query the input query string with ? placeholders
+    * @param args the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... args) throws SQLException {
+      long start = System.nanoTime();
+      Connection conn = acquireForRead(query);
+      try {
+         ResultSet rs = prepare(conn, query, args).executeQuery ();
+         try {
+            int rowCount = countRows(rs);
+            observe(query, args, start, rowCount);
+            return rowCount;
+         } finally {
+            rs.close ();
+         }
+      } catch (SQLException | RuntimeException e) {
+         observeError(query, args, start);
+         throw e;
+      } finally {
+         release(conn);
+      }
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   private static int countRows (ResultSet rs) throws SQLException {
+      int rowCount = 0;
 
-       int rowCount = 0;
+      // iterates through the result set and count nuber of results.
+      while (rs.next()){
+         rowCount++;
+      }//end while
+      return rowCount;
+   }
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   // fetches a cached statement for the SQL text and binds the arguments in order
+   private PreparedStatement prepare (Connection conn, String sql, Object[] args) throws SQLException {
+      PreparedStatement stmt = (_replicas != null ? _replicas.poolOf(conn) : _pool).statementCache(conn).prepare(sql);
+      for (int i = 0; i < args.length; i++)
+         stmt.setObject(i + 1, args[i]);
+      return stmt;
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. currval() is
+    * per session, so call this inside withConnection together with
+    * the statement that advanced the sequence.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+      Connection conn = acquire();
+      try {
+         Statement stmt = conn.createStatement ();
+
+         ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+         int val = rs.next() ? rs.getInt(1) : -1;
+         stmt.close ();
+         return val;
+      } finally {
+         release(conn);
+      }
+   }
+
+   /**
+    * Returns the spatial index over all stores, loading it on first use and
+    * reloading it once it is older than amazon.index.refreshMs.
+    *
+    * @return the store index
+    * @throws java.sql.SQLException when the stores can not be loaded
+    */
+   public SpatialIndex<Store> getStoreIndex() throws SQLException {
+      SpatialIndex<Store> index = _storeIndex;
+      if (index == null || System.currentTimeMillis() - index.getBuiltAt() > _indexRefreshMs) {
+         synchronized (this) {
+            index = _storeIndex;
+            if (index == null || System.currentTimeMillis() - index.getBuiltAt() > _indexRefreshMs)
+               _storeIndex = index = buildStoreIndex(withConnection(conn -> executeQueryForList("SELECT * FROM STORE", Store.MAPPER)));
+         }
+      }
+      return index;
+   }//end getStoreIndex
+
+   /**
+    * Returns the spatial index over all warehouses, see getStoreIndex.
+    *
+    * @return the warehouse index
+    * @throws java.sql.SQLException when the warehouses can not be loaded
+    */
+   public SpatialIndex<Warehouse> getWarehouseIndex() throws SQLException {
+      SpatialIndex<Warehouse> index = _warehouseIndex;
+      if (index == null || System.currentTimeMillis() - index.getBuiltAt() > _indexRefreshMs) {
+         synchronized (this) {
+            index = _warehouseIndex;
+            if (index == null || System.currentTimeMillis() - index.getBuiltAt() > _indexRefreshMs)
+               _warehouseIndex = index = buildWarehouseIndex(withConnection(conn -> executeQueryForList("SELECT * FROM WAREHOUSE", Warehouse.MAPPER)));
+         }
+      }
+      return index;
+   }//end getWarehouseIndex
+
+   /**
+    * Drops the cached store and warehouse indexes so the next lookup reloads
+    * them. Call this after changing Store or Warehouse rows.
+    */
+   public void invalidateLocationIndexes() {
+      _storeIndex = null;
+      _warehouseIndex = null;
+   }
+
+   private static SpatialIndex<Store> buildStoreIndex(List<Store> stores) {
+      int n = stores.size();
+      int[] ids = new int[n];
+      double[] lat = new double[n];
+      double[] lon = new double[n];
+      for (int i = 0; i < n; i++) {
+         ids[i] = stores.get(i).getStoreId();
+         lat[i] = stores.get(i).getLatitude();
+         lon[i] = stores.get(i).getLongitude();
+      }
+      return new SpatialIndex<Store>(ids, lat, lon, stores);
+   }
+
+   private static SpatialIndex<Warehouse> buildWarehouseIndex(List<Warehouse> warehouses) {
+      int n = warehouses.size();
+      int[] ids = new int[n];
+      double[] lat = new double[n];
+      double[] lon = new double[n];
+      for (int i = 0; i < n; i++) {
+         ids[i] = warehouses.get(i).getWarehouseId();
+         lat[i] = warehouses.get(i).getLatitude();
+         lon[i] = warehouses.get(i).getLongitude();
+      }
+      return new SpatialIndex<Warehouse>(ids, lat, lon, warehouses);
+   }
+
+   public OrderEngine getOrderEngine() { return _orders; }
+
+   /**
+    * Returns the next key of a sequence from a block reserved in advance
+    * (see KeyAllocator) instead of calling nextval() in the insert.
+    *
+    * @param sequence name of the DB sequence, e.g. ORDER_SEQ
+    * @return an unused key
+    * @throws java.sql.SQLException when a new block can not be reserved
+    */
+   public int nextKey(String sequence) throws SQLException {
+      KeyAllocator keys = _keys.get(sequence);
+      if (keys == null) {
+         _keys.putIfAbsent(sequence, new KeyAllocator(this, sequence, _keyBlockSize, _background));
+         keys = _keys.get(sequence);
+      }
+      return keys.next();
+   }//end nextKey
+
+   /**
+    * Returns the cached session of a user, loading the Users row and the
+    * stores the user manages on first use.
+    *
+    * @param userId the user
+    * @return the session, or null if there is no such user
+    * @throws java.sql.SQLException when the session can not be loaded
+    */
+   public Session getSession(int userId) throws SQLException {
+      Session session = _sessions.get(userId);
+      if (session == null) {
+         // cached loads read the primary: a lagging replica would leave them stale beyond the lag bound
+         session = withConnection(conn -> {
+            User user = executeQueryForObject("SELECT * FROM USERS WHERE userID = ?", User.MAPPER, userId);
+            if (user == null)
+               return null;
+            return new Session(user, executeQueryForLocations("SELECT storeID, latitude, longitude FROM STORE WHERE managerID = ?", userId));
+         });
+         if (session == null)
+            return null;
+         _sessions.put(userId, session);
+      }
+      return session;
+   }//end getSession
+
+   /**
+    * Drops the cached session of a user so the next lookup reloads it. Call
+    * this after changing the user's row or the stores they manage.
+    *
+    * @param userId the user
+    */
+   public void invalidateSession(int userId) {
+      _sessions.remove(userId);
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * Drops every cached session.
+    */
+   public void invalidateSessions() {
+      _sessions.clear();
+   }
+
+   /**
+    * Returns the products of a store sorted by name, from memory while the
+    * cached listing is younger than amazon.products.ttlMs.
+    *
+    * @param storeId the store
+    * @return the store's products, empty for an unknown store
+    * @throws java.sql.SQLException when the listing can not be loaded
+    */
+   public List<Product> productsOf(int storeId) throws SQLException {
+      return _products.get(storeId, id -> withConnection(conn -> executeQueryForList(
+         "SELECT * FROM Product WHERE storeID = ? ORDER BY productName", Product.MAPPER, id)));
+   }
+
+   /**
+    * Finds a product in the cached listing of its store. Trailing spaces
+    * are ignored, as in a comparison of the char(30) column.
+    *
+    * @param storeId the store
+    * @param productName the product
+    * @return the product, or null if the store does not have it
+    * @throws java.sql.SQLException when the listing can not be loaded
+    */
+   public Product findProduct(int storeId, String productName) throws SQLException {
+      String name = productName.replaceAll(" +$", "");
+      for (Product p : productsOf(storeId))
+         if (p.getProductName().equals(name))
+            return p;
+      return null;
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * @return hit, miss and eviction counts of the product listing cache
+    */
+   public String productCacheStatus() {
+      return _products.status();
+   }
+
+   /**
+    * Drops what is cached about the products of a store: its listing, sales
+    * rankings, latest orders and latest product updates. Call this after
+    * another client changed the store's Product rows.
+    *
+    * @param storeId the store
+    */
+   public void invalidateProducts(int storeId) {
+      _products.invalidate(storeId);
+      _productSales.invalidate(storeId);
+      _customerPurchases.invalidate(storeId);
+      _storeOrders.remove(storeId);
+      _recentUpdates.removeIf(key -> (int) key.longValue() == storeId);
+   }
+
+   /**
+    * Drops what is cached about the products of every store, like
+    * invalidateProducts(int) for each of them.
+    */
+   public void invalidateProducts() {
+      _products.clear();
+      _productSales.invalidate();
+      _customerPurchases.invalidate();
+      _storeOrders.clear();
+      _recentUpdates.clear();
+   }
+
+   /**
+    * Drops the cached product listing of a store after another client
+    * changed its stock. The sales rankings and recent rows do not depend on
+    * stock and are kept.
+    *
+    * @param storeId the store
+    */
+   public void invalidateListing(int storeId) {
+      _products.invalidate(storeId);
+   }
+
+   /**
+    * Drops the cached product listing of every store, like
+    * invalidateListing(int) for each of them.
+    */
+   public void invalidateListings() {
+      _products.clear();
+   }
+
+   /**
+    * Drops every cached session, location index, ranking and recent row.
+    */
+   public void invalidateCaches() {
+      invalidateSessions();
+      invalidateLocationIndexes();
+      invalidateProducts();
+      _customerOrders.clear();
+   }
+
+   /**
+    * Returns the best selling products of a store from the ProductSales
+    * summary, loading the store's counters on first use.
+    *
+    * @param storeId the store
+    * @param k number of products
+    * @return at most k (productName, units sold) entries, most units first
+    * @throws java.sql.SQLException when the counters can not be loaded
+    */
+   public List<SalesRanking.Entry<String>> topProducts(int storeId, int k) throws SQLException {
+      return _productSales.top(storeId, k, id -> withConnection(conn -> executeQueryForList("SELECT productName, unitsSold FROM ProductSales WHERE storeID = ?",
+         rs -> new SalesRanking.Entry<String>(rs.getString(1).trim(), rs.getLong(2)), id)));
+   }//end topProducts
+
+   /**
+    * Returns the customers who bought the most units at a store, from the
+    * CustomerPurchases summary, loading the store's counters on first use.
+    *
+    * @param storeId the store
+    * @param k number of customers
+    * @return at most k (customerID, units bought) entries, most units first
+    * @throws java.sql.SQLException when the counters can not be loaded
+    */
+   public List<SalesRanking.Entry<Integer>> topCustomers(int storeId, int k) throws SQLException {
+      return _customerPurchases.top(storeId, k, id -> withConnection(conn -> executeQueryForList("SELECT customerID, unitsPurchased FROM CustomerPurchases WHERE storeID = ?",
+         rs -> new SalesRanking.Entry<Integer>(rs.getInt(1), rs.getLong(2)), id)));
+   }//end topCustomers
+
+   /**
+    * Looks up the names of the users of a ranking in one query.
+    *
+    * @param entries ranking entries keyed by userID
+    * @return name by userID
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Map<Integer, String> namesOf(List<SalesRanking.Entry<Integer>> entries) throws SQLException {
+      Map<Integer, String> names = new HashMap<Integer, String>();
+      if (entries.isEmpty())
+         return names;
+      StringBuilder marks = new StringBuilder();
+      Object[] ids = new Object[entries.size()];
+      for (int i = 0; i < ids.length; i++) {
+         marks.append(i == 0 ? "?" : ", ?");
+         ids[i] = entries.get(i).key;
+      }
+      for (User user : executeQueryForList("SELECT * FROM USERS WHERE userID IN (" + marks + ")", User.MAPPER, ids))
+         names.put(user.getUserId(), user.getName());
+      return names;
+   }
+
+   /**
+    * Adds a committed order to the in-memory sales counters and recent
+    * order buffers. The summary tables themselves are updated by the order
+    * statement.
+    *
+    * @param order the new order
+    */
+   public void recordOrder(Order order) {
+      if (_replicas != null)
+         _replicas.wrote(order.getCustomerId());
+      _products.invalidate(order.getStoreId()); // the order took units off the shelf
+      _productSales.add(order.getStoreId(), order.getProductName().trim(), order.getUnitsOrdered());
+      _customerPurchases.add(order.getStoreId(), order.getCustomerId(), order.getUnitsOrdered());
+      _customerOrders.add(order.getCustomerId(), order);
+      Session customer = _sessions.get(order.getCustomerId());
+      if (customer != null)
+         _storeOrders.add(order.getStoreId(), new Pair<Order, String>(order, customer.getUser().getName()));
+      else
+         _storeOrders.remove(order.getStoreId()); // name unknown here, reload the store's orders instead
+   }
+
+   /**
+    * Logs a change to a product in ProductUpdates, through the audit log
+    * when it is on, and adds it to the recent update buffers.
+    *
+    * @param update the row
+    * @throws java.sql.SQLException when the row can not be written or queued
+    */
+   public void logUpdate(ProductUpdate update) throws SQLException {
+      if (_audit != null)
+         _audit.add(update);
+      else
+         executeUpdate("INSERT INTO PRODUCTUPDATES (updateNumber,managerID,storeID,productName,updatedOn) VALUES (?, ?, ?, ?, ?)", update.getUpdateNumber(), update.getManagerId(), update.getStoreId(), update.getProductName(), update.getUpdatedOn());
+      recordUpdate(update);
+   }
+
+   /**
+    * Adds a committed ProductUpdates row to the recent update buffers.
+    *
+    * @param update the new update
+    */
+   public void recordUpdate(ProductUpdate update) {
+      if (_replicas != null)
+         _replicas.wrote(update.getManagerId());
+      _recentUpdates.add(updateKey(update.getManagerId(), update.getStoreId()), update);
+   }
+
+   /**
+    * Notes that a store's stock was raised by a supply request made outside
+    * requestSupply, e.g. by the Replenisher.
+    *
+    * @param storeId the store
+    */
+   public void recordRestock(int storeId) {
+      _products.invalidate(storeId);
+   }
+
+   /**
+    * Returns the latest orders of a customer, from memory once loaded.
+    *
+    * @param customerId the customer
+    * @return at most amazon.recent.size orders, newest first
+    * @throws java.sql.SQLException when the orders can not be loaded
+    */
+   public List<Order> recentOrdersOfCustomer(int customerId) throws SQLException {
+      return _customerOrders.latest(customerId, (id, limit) -> withConnection(conn -> latestRows(
+         "SELECT * FROM ORDERS WHERE customerID = ?", "orderTime", Order.MAPPER, limit, id)));
+   }
+
+   /**
+    * Returns the latest orders placed at a store with the customers' names,
+    * from memory once loaded.
+    *
+    * @param storeId the store
+    * @return at most amazon.recent.size (order, customer name) pairs, newest first
+    * @throws java.sql.SQLException when the orders can not be loaded
+    */
+   public List<Pair<Order, String>> recentOrdersOfStore(int storeId) throws SQLException {
+      return _storeOrders.latest(storeId, (id, limit) -> withConnection(conn -> latestRows(
+         "SELECT O.*, U.name FROM ORDERS O, USERS U WHERE O.storeID = ? AND O.customerID = U.userID", "O.orderTime",
+         rs -> new Pair<Order, String>(Order.MAPPER.map(rs), rs.getString("name").trim()), limit, id)));
+   }
+
+   /**
+    * Returns the latest product updates a manager made at a store, from
+    * memory once loaded.
+    *
+    * @param managerId the manager
+    * @param storeId the store
+    * @return at most amazon.recent.size updates, newest first
+    * @throws java.sql.SQLException when the updates can not be loaded
+    */
+   public List<ProductUpdate> recentUpdates(int managerId, int storeId) throws SQLException {
+      return _recentUpdates.latest(updateKey(managerId, storeId), (key, limit) -> {
+         List<ProductUpdate> rows = withConnection(conn -> latestRows(
+            "SELECT * FROM ProductUpdates WHERE managerID = ? AND storeID = ?", "updatedOn",
+            ProductUpdate.MAPPER, limit, managerId, storeId));
+         if (_audit == null)
+            return rows;
+         // rows still queued in the audit log are newer than the table's
+         List<ProductUpdate> queued = _audit.queued(managerId, storeId);
+         Collections.reverse(queued);
+         for (ProductUpdate row : rows)
+            if (queued.size() < limit && !containsUpdate(queued, row.getUpdateNumber()))
+               queued.add(row);
+         return queued.size() > limit ? new ArrayList<ProductUpdate>(queued.subList(0, limit)) : queued;
+      });
+   }
+
+   /**
+    * Returns amazon.recent.hotDays, the age of the rows the "last N" loads
+    * look at first; 0 when they always read the whole table.
+    *
+    * @return the age in days
+    */
+   public long getRecentHotDays() { return _recentHotDays; }
+
+   // the newest rows of a query, newest first: within the last amazon.recent.hotDays (the
+   // hot partitions) first, over the whole table only if that finds fewer than limit rows
+   private <T> List<T> latestRows(String query, String timeColumn, RowMapper<T> mapper, int limit, Object... args) throws SQLException {
+      if (_recentHotDays > 0) {
+         Object[] hotArgs = Arrays.copyOf(args, args.length + 2);
+         hotArgs[args.length] = new Timestamp(System.currentTimeMillis() - _recentHotDays * 86400000L);
+         hotArgs[args.length + 1] = limit;
+         List<T> rows = executeQueryForList(query + " AND " + timeColumn + " >= ? ORDER BY " + timeColumn + " DESC LIMIT ?", mapper, hotArgs);
+         if (rows.size() >= limit)
+            return rows;
+      }
+      Object[] allArgs = Arrays.copyOf(args, args.length + 1);
+      allArgs[args.length] = limit;
+      return executeQueryForList(query + " ORDER BY " + timeColumn + " DESC LIMIT ?", mapper, allArgs);
+   }
+
+   /**
+    * Sets the stock and price of a product and logs the change in
+    * ProductUpdates.
+    *
+    * @param managerId the manager making the change
+    * @param storeId the store of the product
+    * @param productName the product
+    * @param units new number of units
+    * @param price new price per unit
+    * @return the logged update, or null if the store has no such product
+    * @throws java.sql.SQLException when the update fails
+    */
+   public ProductUpdate updateProduct(int managerId, int storeId, String productName, int units, int price) throws SQLException {
+      //storeID,productName,numberOfUnits,pricePerUnit
+      int updated = executeUpdate("UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE Product.storeID = ? AND Product.productName = ?", units, price, storeId, productName);
+      _products.invalidate(storeId);
+      if (updated == 0)
+         return null;
+      //updateNumber,managerID,storeID,productName,updatedOn
+      ProductUpdate update = new ProductUpdate(nextKey(UPDATE_SEQ), managerId, storeId, productName, now());
+      logUpdate(update);
+      return update;
+   }//end updateProduct
+
+   /**
+    * Records a supply request from a warehouse and adds the delivered units
+    * to the store's stock.
+    *
+    * @param managerId the requesting manager
+    * @param warehouseId the supplying warehouse
+    * @param storeId the store receiving the units
+    * @param productName the product
+    * @param units units requested
+    * @return the request number, or -1 if the store has no such product
+    * @throws java.sql.SQLException when the request fails
+    */
+   public int requestSupply(int managerId, int warehouseId, int storeId, String productName, int units) throws SQLException {
+      //UPDATE the Product table
+      int updated = executeUpdate("UPDATE PRODUCT SET numberOfUnits = numberOfUnits + ? WHERE PRODUCT.storeId = ? AND PRODUCT.productName = ?", units, storeId, productName);
+      _products.invalidate(storeId);
+      if (updated == 0)
+         return -1;
+      //requestNumber,managerID,warehouseID,storeID,productName,unitsRequested
+      int requestNumber = nextKey(REQUEST_SEQ);
+      executeUpdate("INSERT INTO PRODUCTSUPPLYREQUESTS (requestNumber,managerID,warehouseID,storeID,productName,unitsRequested) VALUES (?, ?, ?, ?, ?, ?)", requestNumber, managerId, warehouseId, storeId, productName, units);
+      return requestNumber;
+   }//end requestSupply
+
+   private static boolean containsUpdate(List<ProductUpdate> updates, int updateNumber) {
+      for (ProductUpdate u : updates)
+         if (u.getUpdateNumber() == updateNumber)
+            return true;
+      return false;
+   }
+
+   private static long updateKey(int managerId, int storeId) {
+      return ((long) managerId << 32) | (storeId & 0xffffffffL);
+   }
+
+   // summary rows that do not match the live aggregate over Orders and OrdersArchive
+   static final String PRODUCT_SALES_DRIFT =
+      "SELECT COUNT(*) FROM ProductSales S FULL OUTER JOIN " +
+      "(SELECT storeID, productName, SUM(unitsOrdered) AS units FROM AllOrders GROUP BY storeID, productName) O " +
+      "ON S.storeID = O.storeID AND S.productName = O.productName " +
+      "WHERE S.unitsSold IS DISTINCT FROM O.units";
+   static final String CUSTOMER_PURCHASES_DRIFT =
+      "SELECT COUNT(*) FROM CustomerPurchases C FULL OUTER JOIN " +
+      "(SELECT storeID, customerID, SUM(unitsOrdered) AS units FROM AllOrders GROUP BY storeID, customerID) O " +
+      "ON C.storeID = O.storeID AND C.customerID = O.customerID " +
+      "WHERE C.unitsPurchased IS DISTINCT FROM O.units";
+
+   /**
+    * Counts the ProductSales rows that differ from SUM(unitsOrdered) over
+    * Orders and OrdersArchive, including rows missing on either side.
+    *
+    * @return 0 when the summary is consistent
+    * @throws java.sql.SQLException when the check fails
+    */
+   public long checkProductSales() throws SQLException {
+      return executeQueryForObject(PRODUCT_SALES_DRIFT, rs -> rs.getLong(1));
+   }
+
+   /**
+    * Counts the CustomerPurchases rows that differ from SUM(unitsOrdered)
+    * over Orders and OrdersArchive, including rows missing on either side.
+    *
+    * @return 0 when the summary is consistent
+    * @throws java.sql.SQLException when the check fails
+    */
+   public long checkCustomerPurchases() throws SQLException {
+      return executeQueryForObject(CUSTOMER_PURCHASES_DRIFT, rs -> rs.getLong(1));
+   }
+
+   /**
+    * Recomputes ProductSales and CustomerPurchases from Orders and
+    * OrdersArchive (see PartitionMaintenance) in one transaction. The tables are locked against concurrent orders (which
+    * block on their own summary update until the rebuild commits), so no
+    * order is counted twice or missed.
+    *
+    * @throws java.sql.SQLException when the rebuild fails
+    */
+   public void rebuildSalesSummaries() throws SQLException {
+      withConnection(conn -> {
+         conn.setAutoCommit(false);
+         boolean committed = false;
+         try {
+            // same order as the order statement updates them
+            executeUpdate("LOCK TABLE ProductSales, CustomerPurchases IN EXCLUSIVE MODE");
+            executeUpdate("DELETE FROM ProductSales");
+            executeUpdate("INSERT INTO ProductSales (storeID, productName, unitsSold) " +
+                          "SELECT storeID, productName, SUM(unitsOrdered) FROM AllOrders GROUP BY storeID, productName");
+            executeUpdate("DELETE FROM CustomerPurchases");
+            executeUpdate("INSERT INTO CustomerPurchases (storeID, customerID, unitsPurchased) " +
+                          "SELECT storeID, customerID, SUM(unitsOrdered) FROM AllOrders GROUP BY storeID, customerID");
+            conn.commit();
+            committed = true;
+            return null;
+         } finally {
+            if (!committed)
+               conn.rollback();
+            conn.setAutoCommit(true);
+         }
+      });
+      _productSales.invalidate();
+      _customerPurchases.invalidate();
+   }//end rebuildSalesSummaries
+
+   /**
+    * Method to close the connection pool if it is open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      _background.shutdownNow();
+      if (_replenisher != null)
+         _replenisher.close();
+      if (_changes != null)
+         _changes.close();
+      _metrics.close();
+      if (_replicas != null)
+         _replicas.close();
+      if (_audit != null)
+         _audit.close(Long.getLong("amazon.audit.closeTimeoutMs", 5000L));
+      if (_slowQueries != null)
+         _slowQueries.close();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -261,12 +1392,25 @@ public class Amazon {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Amazon.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [command ...]\n" +
+            "Commands:\n" +
+            "  order-bench <customerId> <storeId> <productName> <threads> <ordersPerThread>\n" +
+            "  bulk-load <dataDir> [<create_indexes.sql>] [--truncate]\n" +
+            "  rebuild-sales\n" +
+            "  load-test <dataDir> [--threads=8] [--ramp=5] [--duration=60] [--think=0] [--mix=browse:70,order:20,report:10]\n" +
+            "  replenish\n" +
+            "  serve <httpPort>\n" +
+            "  index-advisor [<create_indexes.sql>] [--ddl=<file>]\n" +
+            "  partitions [--ahead=<months>] [--retain=<months>] [--export=<dir>]");
+         return;
+      }//end if
+      if (args.length > 3) {
+         runCommand(args);
          return;
       }//end if
 
@@ -314,10 +1458,13 @@ public class Amazon {
                 System.out.println("8. View 5 Popular Customers");
                 System.out.println("9. Place Product Supply Request to Warehouse");
 		System.out.println("10. Admin options");
+                System.out.println("11. Shopping cart");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
+                int choice = readChoice();
+                StatementMetrics.setOperation(choice >= 1 && choice <= MENU_OPERATIONS.length ? MENU_OPERATIONS[choice - 1] : null);
+                switch (choice){
                    case 1: viewStores(esql); break;
                    case 2: viewProducts(esql); break;
                    case 3: placeOrder(esql); break;
@@ -328,8 +1475,9 @@ public class Amazon {
                    case 8: viewPopularCustomers(esql); break;
                    case 9: placeProductSupplyRequests(esql); break;
                    case 10: viewAndUpdateInfo(esql); break;
+                   case 11: manageCart(esql); break;
 
-                   case 20: usermenu = false; break;
+                   case 20: usermenu = false; curr_cart.clear(); break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -351,6 +1499,91 @@ public class Amazon {
       }//end try
    }//end main
 
+   /*
+    * Runs one of the non-interactive commands listed in the usage message
+    **/
+   public static void runCommand(String[] args) {
+      Amazon esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         esql = new Amazon (args[0], args[1], args[2], "");
+         switch (args[3]) {
+            case "order-bench":
+               OrderEngine.contentionTest(esql, Integer.parseInt(args[4]), Integer.parseInt(args[5]), args[6],
+                                          Integer.parseInt(args[7]), Integer.parseInt(args[8]));
+               break;
+            case "bulk-load":
+               boolean truncate = false;
+               File indexFile = null;
+               for (int i = 5; i < args.length; i++) {
+                  if ("--truncate".equals(args[i])) truncate = true;
+                  else indexFile = new File(args[i]);
+               }
+               new BulkLoader(esql, new File(args[4]), indexFile, Integer.getInteger("amazon.load.batchRows", 1000)).load(truncate);
+               break;
+            case "rebuild-sales":
+               System.out.println(String.format("Rows differing from Orders before rebuild: ProductSales %d, CustomerPurchases %d",
+                                                esql.checkProductSales(), esql.checkCustomerPurchases()));
+               esql.rebuildSalesSummaries();
+               System.out.println(String.format("Rows differing from Orders after rebuild: ProductSales %d, CustomerPurchases %d",
+                                                esql.checkProductSales(), esql.checkCustomerPurchases()));
+               break;
+            case "load-test": {
+               Map<String, String> opts = new HashMap<String, String>();
+               for (int i = 5; i < args.length; i++) {
+                  int eq = args[i].indexOf('=');
+                  if (!args[i].startsWith("--") || eq < 0)
+                     throw new IllegalArgumentException("Expected --name=value, got " + args[i]);
+                  opts.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+               }
+               new LoadTest(esql, new File(args[4]),
+                            Integer.parseInt(opts.getOrDefault("threads", "8")),
+                            (long) (Double.parseDouble(opts.getOrDefault("ramp", "5")) * 1000),
+                            (long) (Double.parseDouble(opts.getOrDefault("duration", "60")) * 1000),
+                            Long.parseLong(opts.getOrDefault("think", "0")),
+                            opts.getOrDefault("mix", "browse:70,order:20,report:10")).run();
+               break;
+            }
+            case "replenish":
+               System.out.println(esql.newReplenisher().run());
+               break;
+            case "partitions": {
+               int ahead = Integer.getInteger("amazon.partitions.aheadMonths", 3);
+               int retain = Integer.getInteger("amazon.partitions.retainMonths", 0);
+               String export = System.getProperty("amazon.partitions.exportDir");
+               for (int i = 4; i < args.length; i++) {
+                  if (args[i].startsWith("--ahead=")) ahead = Integer.parseInt(args[i].substring(8));
+                  else if (args[i].startsWith("--retain=")) retain = Integer.parseInt(args[i].substring(9));
+                  else if (args[i].startsWith("--export=")) export = args[i].substring(9);
+                  else throw new IllegalArgumentException("Unknown option " + args[i]);
+               }
+               new PartitionMaintenance(esql, ahead, retain, export == null || export.isEmpty() ? null : new File(export)).run(System.out);
+               break;
+            }
+            case "serve":
+               new AmazonServer(esql, Integer.parseInt(args[4])).run();
+               break;
+            case "index-advisor": {
+               File scriptFile = null, ddlFile = null;
+               for (int i = 4; i < args.length; i++) {
+                  if (args[i].startsWith("--ddl=")) ddlFile = new File(args[i].substring(6));
+                  else scriptFile = new File(args[i]);
+               }
+               new IndexAdvisor(esql, scriptFile).run(System.out, ddlFile);
+               break;
+            }
+            default:
+               System.err.println("Unknown command: " + args[3]);
+         }
+      }catch(ArrayIndexOutOfBoundsException e) {
+         System.err.println ("Missing arguments for " + args[3]);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null) esql.cleanup ();
+      }//end try
+   }//end runCommand
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -402,11 +1635,8 @@ public class Amazon {
    //data is a list of lists, whose first dimension is each entry, and second dimension is size 3, the ID, latitude, longitude
    //latitude and longitude is the refernece for measurement
    public static int SelectByDistance(String idName, List<List<String>> data, double latitude, double longitude, int limit){
-      List<Pair<Integer, Double>> locations = new ArrayList<Pair<Integer, Double>>();
+      List<Pair<Integer, Double>> locations = rankByDistance(data, latitude, longitude);
       List<Integer> ids = new ArrayList<Integer>(); //a little redundant but much more efficient to search for valid selection
-      for (int i = 0; i < data.size(); i++)
-         locations.add(new Pair<Integer, Double>(Integer.parseInt(data.get(i).get(0)), calculateDistance(latitude, longitude, Double.parseDouble(data.get(i).get(1)), Double.parseDouble(data.get(i).get(2)))));
-      Collections.sort(locations, Comparator.comparing(p -> p.getRight()));
       System.out.println(String.format("%-" + (idName.length() + 1) + "s%-10s", idName, "Distance"));
       for (int i = 0; i < locations.size(); i++){
          ids.add(locations.get(i).getLeft());
@@ -423,6 +1653,60 @@ public class Amazon {
    }
 
    public static int SelectByDistance(String idName, List<List<String>> data, double latitude, double longitude) { return SelectByDistance(idName, data, latitude, longitude, -1); }
+
+   //(id, distance) pairs of (ID, latitude, longitude) rows, nearest first
+   static List<Pair<Integer, Double>> rankByDistance(List<List<String>> data, double latitude, double longitude){
+      List<Pair<Integer, Double>> locations = new ArrayList<Pair<Integer, Double>>(data.size());
+      for (int i = 0; i < data.size(); i++)
+         locations.add(new Pair<Integer, Double>(Integer.parseInt(data.get(i).get(0)), calculateDistance(latitude, longitude, Double.parseDouble(data.get(i).get(1)), Double.parseDouble(data.get(i).get(2)))));
+      Collections.sort(locations, Comparator.comparing(p -> p.getRight()));
+      return locations;
+   }
+
+   //same as above, but the candidates are already typed so nothing is parsed
+   public static int SelectByDistance(String idName, LocationBatch data, double latitude, double longitude, int limit){
+      int n = data.size();
+      double[] dist = new double[n];
+      Integer[] order = rankByDistance(data, latitude, longitude, dist);
+      System.out.println(String.format("%-" + (idName.length() + 1) + "s%-10s", idName, "Distance"));
+      for (int i = 0; i < n && (limit == -1 || i < limit); i++)
+         System.out.println(String.format("%-" + (idName.length() + 1) + "d%-10.2f", data.id(order[i]), dist[order[i]]));
+
+      int sel = readChoice();
+      while (data.indexOf(sel) < 0){
+         System.out.println("Invalid selection. Please enter an id among the listed options.");
+         sel = readChoice();
+      }
+      return sel;
+   }
+
+   public static int SelectByDistance(String idName, LocationBatch data, double latitude, double longitude) { return SelectByDistance(idName, data, latitude, longitude, -1); }
+
+   //indexes into data, nearest first; dist receives the distance of every entry
+   static Integer[] rankByDistance(LocationBatch data, double latitude, double longitude, double[] dist){
+      int n = data.size();
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++){
+         order[i] = i;
+         dist[i] = calculateDistance(latitude, longitude, data.latitude(i), data.longitude(i));
+      }
+      Arrays.sort(order, Comparator.comparingDouble(i -> dist[i]));
+      return order;
+   }
+
+   //same as above, but the candidates come from a spatial index so only the nearest `limit` entries are visited
+   public static int SelectByDistance(String idName, SpatialIndex<?> index, double latitude, double longitude, int limit){
+      System.out.println(String.format("%-" + (idName.length() + 1) + "s%-10s", idName, "Distance"));
+      for (SpatialIndex.Neighbor<?> n : index.nearest(latitude, longitude, limit))
+         System.out.println(String.format("%-" + (idName.length() + 1) + "d%-10.2f", n.id, n.distance));
+
+      int sel = readChoice();
+      while (!index.contains(sel)){
+         System.out.println("Invalid selection. Please enter an id among the listed options.");
+         sel = readChoice();
+      }
+      return sel;
+   }
    /*
     * Creates a new user
     **/
@@ -439,9 +1723,7 @@ public class Amazon {
          
          String type="Customer";
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
+         esql.executeUpdate("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)", name, password, Double.parseDouble(latitude), Double.parseDouble(longitude), type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -457,10 +1739,22 @@ public class Amazon {
    
    private static String curr_user_id = null;
 
+   //cart of the logged in user, checked out as one order transaction
+   private static final Cart curr_cart = new Cart();
+
    public static String getUserId() {
         return curr_user_id;
     }
 
+   // the session of the logged in user
+   private static Session currentSession(Amazon esql) throws SQLException {
+      ReplicaRouter.setUser(Integer.parseInt(curr_user_id));
+      Session session = esql.getSession(Integer.parseInt(curr_user_id));
+      if (session == null)
+         throw new SQLException("User " + curr_user_id + " no longer exists");
+      return session;
+   }
+
 
    public static String LogIn(Amazon esql){
       try{
@@ -469,11 +1763,13 @@ public class Amazon {
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         // on the primary, so a user who was just created or changed their password can log in
+         List<List<String>> result = esql.withConnection(conn -> esql.executeQueryAndReturnResult("SELECT * FROM USERS WHERE name = ? AND password = ?", name, password));
 
          if (!result.isEmpty()) {
 		 curr_user_id = result.get(0).get(0);
+		 esql.invalidateSession(Integer.parseInt(curr_user_id));
+		 currentSession(esql);
 		 return name;
             } else {
                 return null; // Login failed
@@ -488,22 +1784,13 @@ public class Amazon {
 
    public static void viewStores(Amazon esql) {
    try{ 
-         String id = curr_user_id;
-	      String query = String.format("SELECT S.*, U.latitude, U.longitude FROM Store S, Users U WHERE U.userID = '%s'", id);
-         List<List<String>> data = esql.executeQueryAndReturnResult(query);
-         //storeID,latitude,longitude,managerID,dateEstablished, userLatitude, userLongitude
-         //we have all stores, now show within 30mi
+         Session me = currentSession(esql);
+         //the store index only visits stores inside the radius, already sorted by distance
          double limit = 30;
-         //make the last index 
-         for (int i = 0; i < data.size(); i++){
-            double dist = calculateDistance(Double.parseDouble(data.get(i).get(5)), Double.parseDouble(data.get(i).get(6)), Double.parseDouble(data.get(i).get(1)), Double.parseDouble(data.get(i).get(2)));
-            data.get(i).add(String.format("%.2f", dist));
-         }
-         Collections.sort(data, Comparator.comparing(p -> Double.parseDouble(p.get(7))));
+         List<SpatialIndex.Neighbor<Store>> data = esql.getStoreIndex().withinRadius(me.getLatitude(), me.getLongitude(), limit);
          System.out.println(String.format("%-10s%-10s%-15s%-15s", "Store ID", "Distance", "Manager ID", "Date Established"));
-         for (int i = 0; i < data.size(); i++){
-            if (Double.parseDouble(data.get(i).get(7)) > limit) break; //stop checking, since we're sorted if this one is too far away, all future ones are too
-            System.out.println(String.format("%-10s%-10s%-15s%-15s", data.get(i).get(0), data.get(i).get(7) + "mi", data.get(i).get(3), data.get(i).get(4)));
+         for (SpatialIndex.Neighbor<Store> store : data){
+            System.out.println(String.format("%-10s%-10s%-15s%-15s", store.id, String.format("%.2f", store.distance) + "mi", store.value.getManagerId(), store.value.getDateEstablished()));
          }
 
       }catch(Exception e){
@@ -514,12 +1801,9 @@ public class Amazon {
    public static void viewProducts(Amazon esql) {
    try{
          System.out.println("Please select a store (any valid ID may be entered, but these are the nearest 10 stores)");
-         String myId = esql.getUserId();
-         List<List<String>> stores = esql.executeQueryAndReturnResult("SELECT storeId, latitude, longitude FROM STORE");
-         List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS where userId = %s", myId));
-         int storeId = SelectByDistance("Store ID", stores, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)), 10);
-         String query = String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product P WHERE P.storeID = '%s' ORDER BY productName", storeId);
-         esql.executeQueryAndPrintResult(query);
+         Session me = currentSession(esql);
+         int storeId = SelectByDistance("Store ID", esql.getStoreIndex(), me.getLatitude(), me.getLongitude(), 10);
+         printProducts(esql.productsOf(storeId));
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -529,15 +1813,14 @@ public class Amazon {
       try{
          System.out.println("Please select a store (any valid ID may be entered, but these are the nearest 10 stores)");
          String myId = esql.getUserId();
-         List<List<String>> stores = esql.executeQueryAndReturnResult("SELECT storeId, latitude, longitude FROM STORE");
-         List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS where userId = %s", myId));
-         int storeId = SelectByDistance("Store ID", stores, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)), 10);
+         Session me = currentSession(esql);
+         int storeId = SelectByDistance("Store ID", esql.getStoreIndex(), me.getLatitude(), me.getLongitude(), 10);
 
-         esql.executeQueryAndPrintResult(String.format("SELECT productName, numberOfUnits, pricePerUnit FROM PRODUCT WHERE storeId = %s ORDER BY productName", storeId));
+         printProducts(esql.productsOf(storeId));
 
          System.out.print("\tEnter a product name: ");
          String prod_name = in.readLine();
-         while (esql.executeQuery(String.format("SELECT productName FROM PRODUCT WHERE storeId = %d AND productName = '%s'", storeId, prod_name)) == 0){
+         while (esql.findProduct(storeId, prod_name) == null){
             System.out.print("This store does not have this product. Please enter a valid product name: ");
             prod_name = in.readLine();
          }
@@ -545,13 +1828,10 @@ public class Amazon {
          System.out.print("\tEnter number of units: ");
          int nUnits = Integer.parseInt(in.readLine());
 
-         String query = String.format("SELECT * FROM Product P WHERE P.storeID = %d AND P.productName = '%s' AND P.numberOfUnits >= %d", storeId, prod_name, nUnits);
-         int rows = esql.executeQuery(query);
-               
-         if(rows > 0){
-            esql.executeUpdate(String.format("INSERT INTO ORDERS (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES (nextval('orders_orderNumber_seq'), %s, %s, '%s', %s, TIMESTAMP '%s')", myId, storeId, prod_name, nUnits, new java.sql.Timestamp(System.currentTimeMillis()).toString().split("\\.")[0]));
-            esql.executeUpdate(String.format("UPDATE Product SET numberOfUnits = numberOfUnits - %d WHERE Product.storeID = %d AND Product.productName = '%s'", nUnits, storeId, prod_name));
+         //stock check, decrement and order insert happen atomically in one statement
+         int orderNumber = esql.getOrderEngine().placeOrder(Integer.parseInt(myId), storeId, prod_name, nUnits);
 
+         if(orderNumber > 0){
             System.out.println(String.format("Congratulations, you purchased %d units of '%s' from store %d", nUnits, prod_name, storeId));
          } else {
             System.out.println("Not enough units available.");
@@ -561,13 +1841,68 @@ public class Amazon {
       }
    }
 
+   //customers collect several products (from any stores) and check them out at once
+   public static void manageCart(Amazon esql) {
+      try{
+         boolean cartmenu = true;
+         while (cartmenu) {
+            System.out.println("SHOPPING CART");
+            System.out.println("-------------");
+            System.out.println("1. Add a product");
+            System.out.println("2. View cart");
+            System.out.println("3. Empty cart");
+            System.out.println("4. Checkout");
+            System.out.println("9. < Back");
+            switch (readChoice()){
+               case 1:
+                  System.out.println("Please select a store (any valid ID may be entered, but these are the nearest 10 stores)");
+                  Session me = currentSession(esql);
+                  int storeId = SelectByDistance("Store ID", esql.getStoreIndex(), me.getLatitude(), me.getLongitude(), 10);
+                  printProducts(esql.productsOf(storeId));
+
+                  System.out.print("\tEnter a product name: ");
+                  String prod_name = in.readLine();
+                  while (esql.findProduct(storeId, prod_name) == null){
+                     System.out.print("This store does not have this product. Please enter a valid product name: ");
+                     prod_name = in.readLine();
+                  }
+                  System.out.print("\tEnter number of units: ");
+                  curr_cart.add(storeId, prod_name, Integer.parseInt(in.readLine()));
+                  break;
+               case 2:
+                  System.out.println(String.format("%-10s%-32s%-10s", "Store ID", "Product", "Units"));
+                  for (Cart.Line line : curr_cart.getLines())
+                     System.out.println(String.format("%-10d%-32s%-10d", line.getStoreId(), line.getProductName(), line.getUnits()));
+                  break;
+               case 3: curr_cart.clear(); break;
+               case 4:
+                  if (curr_cart.isEmpty()) {
+                     System.out.println("Your cart is empty.");
+                     break;
+                  }
+                  int lines = curr_cart.size();
+                  Cart.Line shortLine = esql.getOrderEngine().checkout(Integer.parseInt(Amazon.getUserId()), curr_cart);
+                  if (shortLine == null)
+                     System.out.println(String.format("Congratulations, you placed %d orders", lines));
+                  else
+                     System.out.println(String.format("Not enough units of '%s' available at store %d. Nothing was ordered.", shortLine.getProductName(), shortLine.getStoreId()));
+                  break;
+               case 9: cartmenu = false; break;
+               default : System.out.println("Unrecognized choice!"); break;
+            }
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }
+
    //helper function to narrow 1 choice if you manage multiple
    private static void updateProduct(Amazon esql, String myId, int storeId){
       try{
-         esql.executeQueryAndPrintResult(String.format("SELECT productName, numberOfUnits, pricePerUnit FROM PRODUCT WHERE storeId = %s ORDER BY productName", storeId));
+         esql.executeQueryAndPrintResult("SELECT productName, numberOfUnits, pricePerUnit FROM PRODUCT WHERE storeId = ? ORDER BY productName", storeId);
          System.out.print("\tEnter the name of a product to modify: ");
          String prod_name = in.readLine();
-         while (esql.executeQuery(String.format("SELECT productName FROM PRODUCT WHERE storeId = %d AND productName = '%s'", storeId, prod_name)) == 0){
+         while (esql.executeQuery("SELECT productName FROM PRODUCT WHERE storeId = ? AND productName = ?", storeId, prod_name) == 0){
             System.out.print("This store does not have this product. Please enter a valid product name: ");
             prod_name = in.readLine();
          }
@@ -578,10 +1913,7 @@ public class Amazon {
          System.out.print("\tEnter updated price per unit: ");
          int ppu = Integer.parseInt(in.readLine());
 
-         //updateNumber,managerID,storeID,productName,updatedOn
-         esql.executeUpdate(String.format("INSERT INTO PRODUCTUPDATES (updateNumber,managerID,storeID,productName,updatedOn) VALUES (nextval('productupdates_updateNumber_seq'), %s, %d, '%s', TIMESTAMP '%s')", myId, storeId, prod_name, new java.sql.Timestamp(System.currentTimeMillis()).toString().split("\\.")[0]));
-         //storeID,productName,numberOfUnits,pricePerUnit
-         esql.executeUpdate(String.format("UPDATE Product SET numberOfUnits = %d, pricePerUnit = %d WHERE Product.storeID = %d AND Product.productName = '%s'", nUnits, ppu, storeId, prod_name));
+         esql.updateProduct(Integer.parseInt(myId), storeId, prod_name, nUnits, ppu);
 
          System.out.println(String.format("%s at store %d now has %d units priced at %d each", prod_name, storeId, nUnits, ppu));
       }catch(Exception e){
@@ -593,17 +1925,16 @@ public class Amazon {
    public static void updateProduct(Amazon esql) {
    try{
          String myId = esql.getUserId();
-         int rows = esql.executeQuery(String.format("SELECT * FROM USERS U WHERE U.type = 'manager' AND U.userID = '%s'", myId));
-         if(rows > 0){ 
+         Session session = currentSession(esql);
+         if(session.isManager()){
             System.out.println("Please select a store among those you manage:");
-            List<List<String>> stores = esql.executeQueryAndReturnResult(String.format("SELECT storeId, latitude, longitude FROM STORE WHERE managerId = %s", myId));
+            LocationBatch stores = session.getManagedStores();
             if (stores.size() > 1){
-               List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS where userId = %s", myId));
-               int storeId = SelectByDistance("Store ID", stores, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)));
+               int storeId = SelectByDistance("Store ID", stores, session.getLatitude(), session.getLongitude());
 
                updateProduct(esql, myId, storeId);
             } else if (stores.size() == 1)
-               updateProduct(esql, myId, Integer.parseInt(stores.get(0).get(0)));
+               updateProduct(esql, myId, stores.id(0));
             else
                System.out.println("You do not manage any stores!");
             
@@ -622,16 +1953,13 @@ public class Amazon {
    public static void viewRecentUpdates(Amazon esql) {
     try{
          String c_id = esql.getUserId();
-	      String q1 = String.format("SELECT * FROM USERS U WHERE U.type = 'manager' AND U.userID = '%s'", c_id);
-         int rows = esql.executeQuery(q1);
-         if(rows > 0){
+         Session session = currentSession(esql);
+         if(session.isManager()){
             System.out.println("Please select a store among those you manage:");
-            List<List<String>> stores = esql.executeQueryAndReturnResult(String.format("SELECT storeId, latitude, longitude FROM STORE WHERE managerId = %s", c_id));
-            List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS where userId = %s", c_id));
-            int storeId = SelectByDistance("Store ID", stores, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)));
+            LocationBatch stores = session.getManagedStores();
+            int storeId = SelectByDistance("Store ID", stores, session.getLatitude(), session.getLongitude());
             System.out.println("Last 5 updates at this store: ");
-            String query = String.format("SELECT * FROM (SELECT * FROM ProductUpdates PU WHERE PU.managerID = '%s' AND PU.storeId = %d ORDER BY updatedOn DESC LIMIT 5) AS recent_updates ORDER BY updatedOn DESC", c_id, storeId);
-            esql.executeQueryAndPrintResult(query);
+            printRecentUpdates(esql.recentUpdates(Integer.parseInt(c_id), storeId));
          } else {
                  System.out.println("Access denied: manager access only.");
          }
@@ -645,10 +1973,7 @@ public class Amazon {
    //THIS IS THE ADMIN MENU
    public static void viewAndUpdateInfo(Amazon esql) {
     try {
-        String c_id = esql.getUserId();
-        String q1 = String.format("SELECT * FROM USERS U WHERE U.type = 'admin' AND U.userID = '%s'", c_id);
-        int rows = esql.executeQuery(q1);
-        if (rows > 0) {
+        if (currentSession(esql).isAdmin()) {
             System.out.println("1. View and update user information");
             System.out.println("2. View and update product information");
             System.out.print("Enter your choice: ");
@@ -679,9 +2004,7 @@ public static void viewAndUpdateUsers(Amazon esql) {
 	if("1".equals(input)){
 		System.out.print("\tEnter user id to view: ");
 		String input_id = in.readLine();
-		String q1 = String.format("SELECT * FROM USERS U WHERE U.userID = '%s'", input_id);
-		esql.executeQueryAndPrintResult(q1);
-		esql.executeUpdate(q1);
+		esql.executeQueryAndPrintResult("SELECT * FROM USERS U WHERE U.userID = ?", Integer.parseInt(input_id.trim()));
 	} else if ("2".equals(input)){
 		System.out.print("\tEnter user id to update: ");
                 String input_id2 = in.readLine();
@@ -695,8 +2018,10 @@ public static void viewAndUpdateUsers(Amazon esql) {
                 String new_long = in.readLine();
 		System.out.print("\tEnter updated type of user: ");
                 String new_type = in.readLine().toLowerCase();
-                String q2 = String.format("UPDATE Users SET name = '%s', password = '%s', latitude = '%s', longitude = '%s', type = '%s' WHERE Users.userID = '%s'", new_name, new_password, new_lat, new_long, new_type, input_id2);
-                esql.executeUpdate(q2);
+                esql.executeUpdate("UPDATE Users SET name = ?, password = ?, latitude = ?, longitude = ?, type = ? WHERE Users.userID = ?",
+                                   new_name, new_password, new BigDecimal(new_lat.trim()), new BigDecimal(new_long.trim()), new_type,
+                                   Integer.parseInt(input_id2.trim()));
+                esql.invalidateSession(Integer.parseInt(input_id2.trim()));
 	} else {
 		System.out.println("Invalid choice.");
 	}
@@ -713,9 +2038,7 @@ public static void viewAndUpdateProducts(Amazon esql) {
         if("1".equals(input)){
                 System.out.print("\tEnter product name to view: ");
                 String input_name = in.readLine();
-                String q1 = String.format("SELECT * FROM Product P WHERE P.productName = '%s'", input_name);
-                esql.executeQueryAndPrintResult(q1);
-                esql.executeUpdate(q1);
+                esql.executeQueryAndPrintResult("SELECT * FROM Product P WHERE P.productName = ?", input_name);
         } else if ("2".equals(input)){
                 System.out.print("\tEnter store id of product to update: ");
                 String input_id = in.readLine();
@@ -729,10 +2052,14 @@ public static void viewAndUpdateProducts(Amazon esql) {
                 String new_units = in.readLine();
                 System.out.print("\tEnter updated price per unit: ");
                 String new_price = in.readLine();
-                String q2 = String.format("UPDATE Product SET storeID = '%s', productName = '%s', numberOfUnits = '%s', pricePerUnit = '%s' WHERE Product.storeID = '%s' AND Product.productName = '%s'", new_id, new_name, new_units, new_price, input_id, input_name2);
-                esql.executeUpdate(q2);
-                List<List<String>> mgrId = esql.executeQueryAndReturnResult(String.format("SELECT managerID FROM STORE WHERE storeId = %s", new_id));
-                esql.executeUpdate(String.format("INSERT INTO PRODUCTUPDATES (updateNumber, managerID, storeID, productName, updatedOn) VALUES (nextval('productupdates_updateNumber_seq'), %s, %s, '%s', TIMESTAMP '%s')", mgrId.get(0).get(0), new_id, new_name, new java.sql.Timestamp(System.currentTimeMillis()).toString().split("\\.")[0]));
+                esql.executeUpdate("UPDATE Product SET storeID = ?, productName = ?, numberOfUnits = ?, pricePerUnit = ? WHERE Product.storeID = ? AND Product.productName = ?",
+                                   Integer.parseInt(new_id.trim()), new_name, Integer.parseInt(new_units.trim()), Double.parseDouble(new_price.trim()),
+                                   Integer.parseInt(input_id.trim()), input_name2);
+                esql.invalidateProducts(Integer.parseInt(input_id.trim()));
+                esql.invalidateProducts(Integer.parseInt(new_id.trim()));
+                List<List<String>> mgrId = esql.executeQueryAndReturnResult("SELECT managerID FROM STORE WHERE storeId = ?", Integer.parseInt(new_id));
+                ProductUpdate update = new ProductUpdate(esql.nextKey(UPDATE_SEQ), Integer.parseInt(mgrId.get(0).get(0)), Integer.parseInt(new_id), new_name, now());
+                esql.logUpdate(update);
         } else {
                 System.out.println("Invalid choice.");
         }
@@ -747,31 +2074,29 @@ public static void viewAndUpdateProducts(Amazon esql) {
    public static void viewRecentOrders(Amazon esql) {
       try {
          String c_id = esql.getUserId();
-         String qC = String.format("SELECT * FROM USERS U WHERE U.type = 'customer' AND U.userID = '%s'", c_id);
-         String qM = String.format("SELECT * FROM USERS U WHERE U.type = 'manager' AND U.userID = '%s'", c_id);
-         if (esql.executeQuery(qC) > 0) { //customer access
-            esql.executeQueryAndPrintResult(String.format("SELECT storeID, productName, unitsOrdered, orderTime FROM ORDERS O WHERE O.customerID = %s ORDER BY orderTime DESC LIMIT 5", c_id));
-         } else if (esql.executeQuery(qM) > 0) { //manager access
+         Session session = currentSession(esql);
+         if (session.isCustomer()) { //customer access
+            printCustomerOrders(esql.recentOrdersOfCustomer(Integer.parseInt(c_id)));
+         } else if (session.isManager()) { //manager access
             System.out.println("Would you like to see your personal orders, or order information for your store(s)?");
             System.out.println("1. See my Orders");
             System.out.println("2. See my Store(s) Orders");
             int sel = readChoice();
             switch(sel){
                case 1:
-                  esql.executeQueryAndPrintResult(String.format("SELECT storeID, productName, unitsOrdered, orderTime FROM ORDERS O WHERE O.customerID = %s ORDER BY orderTime DESC LIMIT 5", c_id));
+                  printCustomerOrders(esql.recentOrdersOfCustomer(Integer.parseInt(c_id)));
                   break;
                case 2:
                //get the storeId of this manager
-               List<List<String>> storesManaged = esql.executeQueryAndReturnResult(String.format("SELECT storeID, latitude, longitude FROM STORE WHERE managerID = %s", c_id));
-               List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS WHERE userId = %s", c_id));
+               LocationBatch storesManaged = session.getManagedStores();
                //for each store managed
                if (storesManaged.size() > 1){ //choose a store
-                  sel = SelectByDistance("Store ID", storesManaged, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)));
-                  esql.executeQueryAndPrintResult(String.format("SELECT O.orderNumber, U.name, O.productName, O.unitsOrdered, O.orderTime FROM ORDERS O, USERS U WHERE O.storeID = %s AND O.customerID = U.userID ORDER BY orderTime DESC LIMIT 5", sel));
+                  sel = SelectByDistance("Store ID", storesManaged, session.getLatitude(), session.getLongitude());
+                  printStoreOrders(esql.recentOrdersOfStore(sel));
                }
                else if (storesManaged.size() == 1){ //1 store
                   //print out the orderId, customerName, storeID, productName, date for each order
-                  esql.executeQueryAndPrintResult(String.format("SELECT O.orderNumber, U.name, O.productName, O.unitsOrdered, O.orderTime FROM ORDERS O, USERS U WHERE O.storeID = %s AND O.customerID = U.userID ORDER BY orderTime DESC LIMIT 5", storesManaged.get(0).get(0)));
+                  printStoreOrders(esql.recentOrdersOfStore(storesManaged.id(0)));
                } else
                   System.out.println("You are not the manager of any store. No orders to display.");
                break;
@@ -782,23 +2107,51 @@ public static void viewAndUpdateProducts(Amazon esql) {
       }
    }
 
+   //product listing of a store, printed from the cached listing
+   private static void printProducts(List<Product> products) {
+      List<List<String>> rows = new ArrayList<List<String>>(products.size());
+      for (Product p : products)
+         rows.add(Arrays.asList(p.getProductName(), Integer.toString(p.getNumberOfUnits()),
+                                BigDecimal.valueOf(p.getPricePerUnit()).stripTrailingZeros().toPlainString()));
+      printTable(new String[] { "productname", "numberofunits", "priceperunit" }, rows.iterator(), Integer.MAX_VALUE, System.out);
+   }
+
+   //the "last 5" tables, printed from the recent order and update buffers
+   private static void printCustomerOrders(List<Order> orders) {
+      System.out.println(String.format("%-10s%-32s%-15s%-25s", "storeid", "productname", "unitsordered", "ordertime"));
+      for (Order o : orders.subList(0, Math.min(5, orders.size())))
+         System.out.println(String.format("%-10d%-32s%-15d%-25s", o.getStoreId(), o.getProductName(), o.getUnitsOrdered(), o.getOrderTime()));
+   }
+
+   private static void printStoreOrders(List<Pair<Order, String>> orders) {
+      System.out.println(String.format("%-13s%-52s%-32s%-15s%-25s", "ordernumber", "name", "productname", "unitsordered", "ordertime"));
+      for (Pair<Order, String> p : orders.subList(0, Math.min(5, orders.size()))) {
+         Order o = p.getLeft();
+         System.out.println(String.format("%-13d%-52s%-32s%-15d%-25s", o.getOrderNumber(), p.getRight(), o.getProductName(), o.getUnitsOrdered(), o.getOrderTime()));
+      }
+   }
+
+   private static void printRecentUpdates(List<ProductUpdate> updates) {
+      System.out.println(String.format("%-15s%-12s%-10s%-32s%-25s", "updatenumber", "managerid", "storeid", "productname", "updatedon"));
+      for (ProductUpdate u : updates.subList(0, Math.min(5, updates.size())))
+         System.out.println(String.format("%-15d%-12d%-10d%-32s%-25s", u.getUpdateNumber(), u.getManagerId(), u.getStoreId(), u.getProductName(), u.getUpdatedOn()));
+   }
+
    //manager only, 5 popular products in their store(s) (based on order count of product)
    public static void viewPopularProducts(Amazon esql) {
       try {
-         String c_id = esql.getUserId();
-         String qM = String.format("SELECT * FROM USERS U WHERE U.type = 'manager' AND U.userID = '%s'", c_id);
-         if (esql.executeQuery(qM) > 0){
-            List<List<String>> storesManaged = esql.executeQueryAndReturnResult(String.format("SELECT storeID, latitude, longitude FROM STORE WHERE managerID = %s", c_id));
+         Session session = currentSession(esql);
+         if (session.isManager()){
+            LocationBatch storesManaged = session.getManagedStores();
             //for each store managed
             if (storesManaged.size() > 1){ //choose a store
-               List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS WHERE userId = %s", c_id));
-               int sel = SelectByDistance("Store ID", storesManaged, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)));
-               esql.executeQueryAndPrintResult(String.format("SELECT productName, SUM(unitsOrdered) as Sold FROM ORDERS WHERE storeId = %s GROUP BY productName ORDER BY Sold DESC LIMIT 5", sel));
+               int sel = SelectByDistance("Store ID", storesManaged, session.getLatitude(), session.getLongitude());
+               printTopProducts(esql, sel);
             }
             else if (storesManaged.size() == 1){ //1 store
                //print out the orderId, customerName, storeID, productName, date for each order
                //display 5 most pop. products
-               esql.executeQueryAndPrintResult(String.format("SELECT productName, SUM(unitsOrdered) as Sold FROM ORDERS WHERE storeId = %s GROUP BY productName ORDER BY Sold DESC LIMIT 5", storesManaged.get(0).get(0)));
+               printTopProducts(esql, storesManaged.id(0));
             } else
                System.out.println("You are not the manager of any store. No orders to display.");
          } else{
@@ -809,21 +2162,35 @@ public static void viewAndUpdateProducts(Amazon esql) {
       }
    }
 
+   //prints the 5 best selling products of a store from the sales counters
+   private static void printTopProducts(Amazon esql, int storeId) throws SQLException {
+      System.out.println(String.format("%-30s%-10s", "productname", "sold"));
+      for (SalesRanking.Entry<String> product : esql.topProducts(storeId, 5))
+         System.out.println(String.format("%-30s%-10d", product.key, product.units));
+   }
+
+   //prints the 5 customers who bought the most units at a store, from the purchase counters
+   private static void printTopCustomers(Amazon esql, int storeId) throws SQLException {
+      List<SalesRanking.Entry<Integer>> top = esql.topCustomers(storeId, 5);
+      Map<Integer, String> names = esql.namesOf(top);
+      System.out.println(String.format("%-50s%-10s", "name", "purchased"));
+      for (SalesRanking.Entry<Integer> customer : top)
+         System.out.println(String.format("%-50s%-10d", names.get(customer.key), customer.units));
+   }
+
    //manager only, view top 5 customers info (who placed most orders in their store)
    public static void viewPopularCustomers(Amazon esql) {
       try {
-         String c_id = esql.getUserId();
-         String qM = String.format("SELECT * FROM USERS U WHERE U.type = 'manager' AND U.userID = %s", c_id);
-         if (esql.executeQuery(qM) > 0){
-            List<List<String>> storesManaged = esql.executeQueryAndReturnResult(String.format("SELECT storeID, latitude, longitude FROM STORE WHERE managerID = %s", c_id));
+         Session session = currentSession(esql);
+         if (session.isManager()){
+            LocationBatch storesManaged = session.getManagedStores();
             //for each store managed
             if (storesManaged.size() > 1){ //choose a store
-               List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS WHERE userId = %s", c_id));
-               int sel = SelectByDistance("Store ID", storesManaged, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)));
-               esql.executeQueryAndPrintResult(String.format("SELECT U.name, SUM(O.unitsOrdered) AS Purchased FROM ORDERS O JOIN PRODUCT P ON O.productName = P.productName JOIN USERS U ON O.customerId = U.userId WHERE P.storeId = %s GROUP BY U.userId, U.name ORDER BY Purchased DESC LIMIT 5", sel));
+               int sel = SelectByDistance("Store ID", storesManaged, session.getLatitude(), session.getLongitude());
+               printTopCustomers(esql, sel);
             }
             else if (storesManaged.size() == 1){ //1 store
-               esql.executeQueryAndPrintResult(String.format("SELECT U.name, SUM(O.unitsOrdered) AS Purchased FROM ORDERS O JOIN PRODUCT P ON O.productName = P.productName JOIN USERS U ON O.customerId = U.userId WHERE P.storeId = %s GROUP BY U.userId, U.name ORDER BY Purchased DESC LIMIT 5", storesManaged.get(0).get(0)));
+               printTopCustomers(esql, storesManaged.id(0));
             } else
                System.out.println("You are not the manager of any store. No orders to display.");
          } else{
@@ -838,39 +2205,32 @@ public static void viewAndUpdateProducts(Amazon esql) {
    private static void placeProductSupplyRequests(Amazon esql, int mgrId, int storeId, double latitude, double longitude){
       try{
          //productName (display sorted by lowest quantity), number of units needed, warehouseId (sort by distance)
-         List<List<String>> products = esql.executeQueryAndReturnResult(String.format("SELECT productName, numberOfUnits FROM PRODUCT WHERE storeId = %s ORDER BY numberOfUnits ASC", storeId));
+         List<Product> products = esql.executeQueryForList("SELECT * FROM PRODUCT WHERE storeId = ? ORDER BY numberOfUnits ASC", Product.MAPPER, storeId);
          String pName;
          int nUnits;
          int whId;
          System.out.println("Please select a product to order:");
          for (int i = 0; i < products.size(); i++){
-            System.out.println(String.format("%2d. %s: %s Units on hand.", i+1, products.get(i).get(0), products.get(i).get(1)));
+            System.out.println(String.format("%2d. %-30s: %d Units on hand.", i+1, products.get(i).getProductName(), products.get(i).getNumberOfUnits()));
          }
          int sel = readChoice();
          while (sel < 1 || sel > products.size()){
             System.out.println("Invalid selection. Please enter a number in range.");
             sel = readChoice();
          }
-         pName = products.get(sel-1).get(0);
+         pName = products.get(sel-1).getProductName();
 
          System.out.println("Choose a warehouse by ID");
          System.out.println("Warehouse ID | Distance estimate from your store");
          //wareHouseID,area,latitude,longitude
-         List<List<String>> whFull = esql.executeQueryAndReturnResult(String.format("SELECT wareHouseID,latitude,longitude FROM WAREHOUSE"));
          //id, dist
-         whId = SelectByDistance("Warehouse ID", whFull, latitude, longitude);
+         whId = SelectByDistance("Warehouse ID", esql.getWarehouseIndex(), latitude, longitude, -1);
          System.out.println(String.format("Warehouse ID: %d", whId));
 
          System.out.println("How many units would you like?");
          nUnits = readChoice();
 
-         //requestNumber,managerID,warehouseID,storeID,productName,unitsRequested
-         //UPDATE the Product table
-         esql.executeUpdate(String.format("UPDATE PRODUCT SET numberOfUnits = numberOfUnits + %d WHERE PRODUCT.storeId = %s AND PRODUCT.productName = '%s'", nUnits, storeId, pName));
-         //UPDATE the product request table
-         //use sequence productsupplyrequests_requestNumber_seq
-         
-         esql.executeUpdate(String.format("INSERT INTO PRODUCTSUPPLYREQUESTS (requestNumber,managerID,warehouseID,storeID,productName,unitsRequested) VALUES (nextval('productsupplyrequests_requestNumber_seq'), %s, %s, %s, '%s', %s)", mgrId, whId, storeId, pName, nUnits));
+         esql.requestSupply(mgrId, whId, storeId, pName, nUnits);
 
          System.out.println(String.format("Warehouse %d delivered %d units of %s to store %d!", whId, nUnits, pName.trim(), storeId));
       } catch (Exception e){
@@ -882,22 +2242,19 @@ public static void viewAndUpdateProducts(Amazon esql) {
    public static void placeProductSupplyRequests(Amazon esql) {
       try {
          String c_id = esql.getUserId();
-         String qM = String.format("SELECT * FROM USERS U WHERE U.type = 'manager' AND U.userID = %s", c_id);
-         if (esql.executeQuery(qM) > 0){
-            List<List<String>> storesManaged = esql.executeQueryAndReturnResult(String.format("SELECT storeID, latitude, longitude FROM STORE WHERE managerID = %s", c_id));
-            List<List<String>> myloc = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM USERS WHERE userId = %s", c_id));
+         Session session = currentSession(esql);
+         if (session.isManager()){
+            LocationBatch storesManaged = session.getManagedStores();
             //for each store managed
             if (storesManaged.size() > 1){ //choose a store
                System.out.println("Select a store among those you manage");
-               int storeId = SelectByDistance("Store ID", storesManaged, Double.parseDouble(myloc.get(0).get(0)), Double.parseDouble(myloc.get(0).get(1)));
-               int index;
-               for (index = 0; index < storesManaged.size(); index++)
-                  if(storeId == Integer.parseInt(storesManaged.get(index).get(0))) break;
+               int storeId = SelectByDistance("Store ID", storesManaged, session.getLatitude(), session.getLongitude());
+               int index = storesManaged.indexOf(storeId);
 
-               placeProductSupplyRequests(esql, Integer.parseInt(c_id), storeId, Double.parseDouble(storesManaged.get(index).get(1)), Double.parseDouble(storesManaged.get(index).get(2)));
+               placeProductSupplyRequests(esql, Integer.parseInt(c_id), storeId, storesManaged.latitude(index), storesManaged.longitude(index));
             }
             else if (storesManaged.size() == 1){ //1 store
-               placeProductSupplyRequests(esql, Integer.parseInt(c_id), Integer.parseInt(storesManaged.get(0).get(0)), Double.parseDouble(storesManaged.get(0).get(1)), Double.parseDouble(storesManaged.get(0).get(2)));
+               placeProductSupplyRequests(esql, Integer.parseInt(c_id), storesManaged.id(0), storesManaged.latitude(0), storesManaged.longitude(0));
             } else
                System.out.println("You are not the manager of any store. No orders to display.");
          } else{
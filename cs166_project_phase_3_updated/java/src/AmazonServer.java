@@ -0,0 +1,432 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless HTTP/JSON front end for the menu operations, on the JDK's
+ * built-in HTTP server. Every exchange runs on its own virtual thread when
+ * the JVM has them (Java 21 and later) and on a cached thread pool
+ * otherwise; real database concurrency is bounded by the connection pool.
+ *
+ * Clients log in with POST /login and send the returned token as
+ * "Authorization: Bearer <token>"; the token replaces the console's
+ * curr_user_id, so any number of users can be served at once. Tokens expire
+ * after amazon.http.tokenTtlMs without use.
+ *
+ *   POST /login                        {name, password} -> {token, userId, type}
+ *   POST /logout
+ *   GET  /stores                       stores within 30 miles
+ *   GET  /products?storeId=            products of a store
+ *   POST /orders                       {storeId, productName, units} -> {orderNumber}
+ *   GET  /orders/recent                your 5 latest orders
+ *   GET  /stores/orders/recent?storeId=         manager: 5 latest orders of a store
+ *   POST /products/update              manager: {storeId, productName, units, price}
+ *   GET  /updates/recent?storeId=      manager: your 5 latest updates at a store
+ *   GET  /reports/popular-products?storeId=     manager
+ *   GET  /reports/popular-customers?storeId=    manager
+ *   POST /supply-requests              manager: {storeId, productName, units, warehouseId}
+ */
+public class AmazonServer {
+
+   // an error answered with its status code and message
+   private static final class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+      final int status;
+
+      HttpError(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }
+
+   // a logged in client
+   private static final class Token {
+      final int userId;
+      volatile long lastUsed = System.currentTimeMillis();
+
+      Token(int userId) {
+         this.userId = userId;
+      }
+   }
+
+   private final Amazon esql;
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final long tokenTtlMs = Long.getLong("amazon.http.tokenTtlMs", 3600000L);
+   private final Map<String, Token> tokens = new ConcurrentHashMap<String, Token>();
+   private final SecureRandom random = new SecureRandom();
+   private final CountDownLatch stopped = new CountDownLatch(1);
+
+   /**
+    * @param esql the Amazon instance whose connections and caches are used
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port can not be bound
+    */
+   public AmazonServer(Amazon esql, int port) throws IOException {
+      this.esql = esql;
+      this.server = HttpServer.create(new InetSocketAddress(port), 0);
+      this.executor = newExecutor();
+      server.setExecutor(executor);
+      server.createContext("/", this::handle);
+   }
+
+   // one virtual thread per exchange where available (Java 21+), else a cached pool
+   private static ExecutorService newExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   /**
+    * Serves requests until the JVM is shut down (e.g. with Ctrl-C).
+    *
+    * @throws java.lang.InterruptedException when the waiting thread is interrupted
+    */
+   public void run() throws InterruptedException {
+      Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+      server.start();
+      System.out.println(String.format("Listening on port %d", server.getAddress().getPort()));
+      stopped.await();
+   }
+
+   /**
+    * Stops accepting requests and lets running ones finish for up to a second.
+    */
+   public void stop() {
+      server.stop(1);
+      executor.shutdown();
+      stopped.countDown();
+   }
+
+   private void handle(HttpExchange exchange) throws IOException {
+      int status = 200;
+      Object body;
+      StatementMetrics.setOperation(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+      try {
+         body = route(exchange);
+      } catch (HttpError e) {
+         status = e.status;
+         body = error(e.getMessage());
+      } catch (IllegalArgumentException e) { // includes NumberFormatException
+         status = 400;
+         body = error(e.getMessage());
+      } catch (IOException e) { // the request body or query could not be read
+         status = 400;
+         body = error("Can not read request: " + e.getMessage());
+      } catch (SQLException | RuntimeException e) {
+         status = 500;
+         body = error(e.getMessage());
+      } finally {
+         StatementMetrics.setOperation(null);
+         ReplicaRouter.setUser(null);
+      }
+      byte[] bytes = Json.write(body).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+         out.write(bytes);
+      }
+   }
+
+   private Object route(HttpExchange exchange) throws IOException, SQLException, HttpError {
+      String route = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+      Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      switch (route) {
+         case "POST /login":
+            return login(readBody(exchange));
+         case "POST /logout": {
+            String bearer = bearer(exchange);
+            if (bearer != null)
+               tokens.remove(bearer);
+            return new LinkedHashMap<String, Object>();
+         }
+         case "GET /stores":
+            return stores(session(exchange));
+         case "GET /products":
+            session(exchange);
+            return products(intParam(query, "storeId"));
+         case "POST /orders":
+            return placeOrder(session(exchange), readBody(exchange));
+         case "GET /orders/recent":
+            return orders(esql.recentOrdersOfCustomer(session(exchange).getUserId()));
+         case "GET /stores/orders/recent":
+            return storeOrders(esql.recentOrdersOfStore(managedStore(session(exchange), intParam(query, "storeId"))));
+         case "POST /products/update":
+            return updateProduct(session(exchange), readBody(exchange));
+         case "GET /updates/recent": {
+            Session session = session(exchange);
+            return updates(esql.recentUpdates(session.getUserId(), managedStore(session, intParam(query, "storeId"))));
+         }
+         case "GET /reports/popular-products":
+            return ranking(esql.topProducts(managedStore(session(exchange), intParam(query, "storeId")), 5), "productName", "sold");
+         case "GET /reports/popular-customers":
+            return popularCustomers(managedStore(session(exchange), intParam(query, "storeId")));
+         case "POST /supply-requests":
+            return requestSupply(session(exchange), readBody(exchange));
+         default:
+            throw new HttpError(404, "No such endpoint: " + route);
+      }
+   }//end route
+
+   private Object login(Map<String, Object> body) throws SQLException, HttpError {
+      String name = stringParam(body, "name"), password = stringParam(body, "password");
+      // on the primary, so a user who was just created or changed their password can log in
+      List<User> users = esql.withConnection(conn -> esql.executeQueryForList("SELECT * FROM USERS WHERE name = ? AND password = ?",
+                                                                              User.MAPPER, name, password));
+      if (users.isEmpty())
+         throw new HttpError(401, "Invalid name or password");
+      User user = users.get(0);
+      esql.invalidateSession(user.getUserId());
+      esql.getSession(user.getUserId());
+
+      long now = System.currentTimeMillis();
+      tokens.values().removeIf(t -> now - t.lastUsed > tokenTtlMs);
+      byte[] bytes = new byte[24];
+      random.nextBytes(bytes);
+      String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+      tokens.put(token, new Token(user.getUserId()));
+
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+      result.put("token", token);
+      result.put("userId", user.getUserId());
+      result.put("type", user.getType());
+      return result;
+   }
+
+   private Object stores(Session session) throws SQLException {
+      List<Object> result = new ArrayList<Object>();
+      for (SpatialIndex.Neighbor<Store> store : esql.getStoreIndex().withinRadius(session.getLatitude(), session.getLongitude(), 30)) {
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         row.put("storeId", store.id);
+         row.put("distance", Math.round(store.distance * 100) / 100.0);
+         row.put("managerId", store.value.getManagerId());
+         row.put("dateEstablished", store.value.getDateEstablished());
+         result.add(row);
+      }
+      return result;
+   }
+
+   private Object products(int storeId) throws SQLException {
+      List<Object> result = new ArrayList<Object>();
+      for (Product p : esql.productsOf(storeId)) {
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         row.put("productName", p.getProductName());
+         row.put("numberOfUnits", p.getNumberOfUnits());
+         row.put("pricePerUnit", p.getPricePerUnit());
+         result.add(row);
+      }
+      return result;
+   }
+
+   private Object placeOrder(Session session, Map<String, Object> body) throws SQLException, HttpError {
+      int storeId = intParam(body, "storeId");
+      String productName = stringParam(body, "productName");
+      int units = intParam(body, "units");
+      int orderNumber = esql.getOrderEngine().placeOrder(session.getUserId(), storeId, productName, units);
+      if (orderNumber < 0)
+         throw new HttpError(409, String.format("Store %d does not have %d units of %s", storeId, units, productName));
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+      result.put("orderNumber", orderNumber);
+      return result;
+   }
+
+   private Object updateProduct(Session session, Map<String, Object> body) throws SQLException, HttpError {
+      int storeId = managedStore(session, intParam(body, "storeId"));
+      String productName = stringParam(body, "productName");
+      int units = intParam(body, "units"), price = intParam(body, "price");
+      if (units < 0)
+         throw new IllegalArgumentException("units must not be negative");
+      if (price < 0)
+         throw new IllegalArgumentException("price must not be negative");
+      ProductUpdate update = esql.updateProduct(session.getUserId(), storeId, productName, units, price);
+      if (update == null)
+         throw new HttpError(404, String.format("Store %d does not have %s", storeId, productName));
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+      result.put("updateNumber", update.getUpdateNumber());
+      return result;
+   }
+
+   private Object requestSupply(Session session, Map<String, Object> body) throws SQLException, HttpError {
+      int storeId = managedStore(session, intParam(body, "storeId"));
+      int warehouseId = intParam(body, "warehouseId");
+      String productName = stringParam(body, "productName");
+      int units = intParam(body, "units");
+      if (units <= 0)
+         throw new IllegalArgumentException("units must be positive");
+      if (!esql.getWarehouseIndex().contains(warehouseId))
+         throw new HttpError(404, "No such warehouse: " + warehouseId);
+      int requestNumber = esql.requestSupply(session.getUserId(), warehouseId, storeId, productName, units);
+      if (requestNumber < 0)
+         throw new HttpError(404, String.format("Store %d does not have %s", storeId, productName));
+      Map<String, Object> result = new LinkedHashMap<String, Object>();
+      result.put("requestNumber", requestNumber);
+      return result;
+   }
+
+   private Object popularCustomers(int storeId) throws SQLException {
+      List<SalesRanking.Entry<Integer>> top = esql.topCustomers(storeId, 5);
+      Map<Integer, String> names = esql.namesOf(top);
+      List<Object> result = new ArrayList<Object>();
+      for (SalesRanking.Entry<Integer> customer : top) {
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         row.put("customerId", customer.key);
+         row.put("name", names.get(customer.key));
+         row.put("purchased", customer.units);
+         result.add(row);
+      }
+      return result;
+   }
+
+   private static Object ranking(List<SalesRanking.Entry<String>> entries, String keyName, String unitsName) {
+      List<Object> result = new ArrayList<Object>();
+      for (SalesRanking.Entry<String> entry : entries) {
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         row.put(keyName, entry.key);
+         row.put(unitsName, entry.units);
+         result.add(row);
+      }
+      return result;
+   }
+
+   private static Object orders(List<Order> orders) {
+      List<Object> result = new ArrayList<Object>();
+      for (Order o : orders.subList(0, Math.min(5, orders.size())))
+         result.add(order(o));
+      return result;
+   }
+
+   private static Object storeOrders(List<Amazon.Pair<Order, String>> orders) {
+      List<Object> result = new ArrayList<Object>();
+      for (Amazon.Pair<Order, String> p : orders.subList(0, Math.min(5, orders.size()))) {
+         Map<String, Object> row = order(p.getLeft());
+         row.put("customerName", p.getRight());
+         result.add(row);
+      }
+      return result;
+   }
+
+   private static Map<String, Object> order(Order o) {
+      Map<String, Object> row = new LinkedHashMap<String, Object>();
+      row.put("orderNumber", o.getOrderNumber());
+      row.put("customerId", o.getCustomerId());
+      row.put("storeId", o.getStoreId());
+      row.put("productName", o.getProductName());
+      row.put("unitsOrdered", o.getUnitsOrdered());
+      row.put("orderTime", o.getOrderTime());
+      return row;
+   }
+
+   private static Object updates(List<ProductUpdate> updates) {
+      List<Object> result = new ArrayList<Object>();
+      for (ProductUpdate u : updates.subList(0, Math.min(5, updates.size()))) {
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         row.put("updateNumber", u.getUpdateNumber());
+         row.put("managerId", u.getManagerId());
+         row.put("storeId", u.getStoreId());
+         row.put("productName", u.getProductName());
+         row.put("updatedOn", u.getUpdatedOn());
+         result.add(row);
+      }
+      return result;
+   }
+
+   private static Map<String, Object> error(String message) {
+      Map<String, Object> body = new HashMap<String, Object>();
+      body.put("error", message);
+      return body;
+   }
+
+   // the session of the request's bearer token
+   private Session session(HttpExchange exchange) throws SQLException, HttpError {
+      String bearer = bearer(exchange);
+      Token token = bearer == null ? null : tokens.get(bearer);
+      long now = System.currentTimeMillis();
+      if (token == null || now - token.lastUsed > tokenTtlMs) {
+         if (token != null) tokens.remove(bearer);
+         throw new HttpError(401, "Log in first");
+      }
+      token.lastUsed = now;
+      ReplicaRouter.setUser(token.userId);
+      Session session = esql.getSession(token.userId);
+      if (session == null) {
+         tokens.remove(bearer);
+         throw new HttpError(401, "User no longer exists");
+      }
+      return session;
+   }
+
+   // the store, if the session's user is a manager of it
+   private static int managedStore(Session session, int storeId) throws HttpError {
+      if (!session.isManager())
+         throw new HttpError(403, "Manager access only");
+      if (!session.manages(storeId))
+         throw new HttpError(403, "You do not manage store " + storeId);
+      return storeId;
+   }
+
+   private static String bearer(HttpExchange exchange) {
+      String header = exchange.getRequestHeaders().getFirst("Authorization");
+      if (header == null || !header.startsWith("Bearer "))
+         return null;
+      return header.substring(7).trim();
+   }
+
+   private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream in = exchange.getRequestBody()) {
+         byte[] buf = new byte[4096];
+         for (int n; (n = in.read(buf)) > 0; )
+            out.write(buf, 0, n);
+      }
+      return Json.parseObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+   }
+
+   private static Map<String, String> parseQuery(String raw) throws UnsupportedEncodingException {
+      Map<String, String> query = new HashMap<String, String>();
+      if (raw == null)
+         return query;
+      for (String pair : raw.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq > 0)
+            query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      }
+      return query;
+   }
+
+   private static int intParam(Map<String, ?> params, String name) {
+      Object value = params.get(name);
+      if (value == null)
+         throw new IllegalArgumentException("Missing " + name);
+      if (value instanceof Number)
+         return ((Number) value).intValue();
+      return Integer.parseInt(value.toString().trim());
+   }
+
+   private static String stringParam(Map<String, ?> params, String name) {
+      Object value = params.get(name);
+      if (value == null)
+         throw new IllegalArgumentException("Missing " + name);
+      return value.toString();
+   }
+}//end AmazonServer
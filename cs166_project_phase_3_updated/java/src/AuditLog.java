@@ -0,0 +1,427 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes ProductUpdates rows behind the caller's back. add() puts the row
+ * on a bounded lock-free queue and returns; one flusher thread drains the
+ * queue with multi-row INSERTs once batchSize rows are waiting or flushMs
+ * after the oldest one arrived.
+ *
+ * Rows reach the table in the order they were added, so the updates of one
+ * (storeID, productName) are never reordered: there is a single flusher, a
+ * failed batch is retried as a whole, and while rows are parked on disk
+ * every newer row is parked behind them. add() decides between queue and
+ * file under the read side of a lock whose write side switches to parking,
+ * so no row is queued after a newer one was parked.
+ *
+ * Rows are parked (appended to spillFile and synced) when the queue is
+ * full, e.g. while the database is down, and by close() for whatever could
+ * not be written in time. The flusher replays the file once the queue has
+ * drained, including a file left by an earlier run. A row the database
+ * rejects for good (its product was deleted meanwhile) is reported and
+ * dropped instead of blocking the rows behind it.
+ *
+ * Several processes started from one directory share the spill file, so
+ * every access to it also holds an OS file lock on spillFile.lock, and
+ * only one process at a time replays it.
+ */
+public class AuditLog implements Runnable {
+
+   static final String INSERT_PREFIX = "INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES ";
+
+   private final Amazon esql;
+   private final int capacity;
+   private final int batchSize;
+   private final long flushMs;
+   private final File spillFile;
+   private final ConcurrentLinkedQueue<ProductUpdate> queue = new ConcurrentLinkedQueue<ProductUpdate>();
+   private final AtomicInteger queued = new AtomicInteger();
+   // read side held while a row is queued, write side while spilling is set or the spill file is touched
+   private final ReentrantReadWriteLock spillLock = new ReentrantReadWriteLock();
+   private volatile boolean spilling; // set under the write side of spillLock
+   private FileChannel lockChannel = null; // spillFile.lock, opened under the write side of spillLock
+   private volatile boolean running = true;
+   private final Thread flusher;
+   private final List<ProductUpdate> pending = new ArrayList<ProductUpdate>(); // flusher thread only, until it stops
+
+   /**
+    * Starts the flusher thread; rows parked by an earlier run are written first.
+    *
+    * @param esql the Amazon instance whose connections are used
+    * @param capacity rows queued in memory before new ones are parked on disk
+    * @param batchSize rows written per flush
+    * @param flushMs longest time a row waits for its batch to fill up
+    * @param spillFile file rows are parked in
+    */
+   public AuditLog(Amazon esql, int capacity, int batchSize, long flushMs, File spillFile) {
+      this.esql = esql;
+      this.capacity = Math.max(1, capacity);
+      this.batchSize = Math.max(1, batchSize);
+      this.flushMs = Math.max(1, flushMs);
+      this.spillFile = spillFile;
+      this.spilling = spillFile.length() > 0;
+      this.flusher = new Thread(this, "amazon-audit");
+      this.flusher.setDaemon(true);
+      this.flusher.start();
+   }
+
+   /**
+    * Logs a ProductUpdates row asynchronously.
+    *
+    * @param update the row
+    * @throws java.sql.SQLException when the row can be neither queued nor parked on disk
+    */
+   public void add(ProductUpdate update) throws SQLException {
+      spillLock.readLock().lock();
+      try {
+         if (!spilling && running) {
+            if (queued.incrementAndGet() <= capacity) {
+               queue.offer(update);
+               if (queued.get() >= batchSize)
+                  LockSupport.unpark(flusher);
+               return;
+            }
+            queued.decrementAndGet();
+         }
+      } finally {
+         spillLock.readLock().unlock();
+      }
+      spillLock.writeLock().lock();
+      try {
+         FileLock lock = lockSpill(0, true);
+         try {
+            spilling = true;
+            append(spillFile, singletonList(update));
+         } finally {
+            lock.release();
+         }
+      } catch (IOException e) {
+         throw new SQLException("Can not park product update " + update.getUpdateNumber() + " in " + spillFile + ": " + e.getMessage());
+      } finally {
+         spillLock.writeLock().unlock();
+      }
+   }//end add
+
+   public void run() {
+      long failures = 0;
+      long oldestAt = 0;
+      while (running) {
+         try {
+            if (pending.isEmpty()) {
+               if (queued.get() == 0) {
+                  if (spilling) {
+                     if (!replaySpill())
+                        LockSupport.parkNanos(flushMs * 1000000L); // another process is replaying
+                     continue;
+                  }
+                  oldestAt = 0;
+                  LockSupport.parkNanos(flushMs * 1000000L);
+                  continue;
+               }
+               if (oldestAt == 0)
+                  oldestAt = System.currentTimeMillis();
+               if (queued.get() < batchSize && System.currentTimeMillis() - oldestAt < flushMs) {
+                  LockSupport.parkNanos(Math.max(1, flushMs - (System.currentTimeMillis() - oldestAt)) * 1000000L);
+                  continue;
+               }
+               drain(pending, batchSize);
+            }
+            write(pending);
+            pending.clear();
+            failures = 0;
+            oldestAt = queued.get() > 0 ? System.currentTimeMillis() : 0;
+         } catch (SQLException | RuntimeException e) {
+            // keep the batch and retry it; meanwhile new rows queue up and then park on disk
+            if (failures++ == 0)
+               System.err.println("Audit log: " + e.getMessage());
+            LockSupport.parkNanos(Math.min(1000L << Math.min(failures, 5), 30000L) * 1000000L);
+         } catch (IOException e) {
+            System.err.println("Audit log: can not replay " + spillFile + ": " + e.getMessage());
+            LockSupport.parkNanos(30000L * 1000000L);
+         }
+      }
+   }//end run
+
+   // moves up to max rows from the queue to a list, oldest first
+   private void drain(List<ProductUpdate> into, int max) {
+      ProductUpdate update;
+      while (into.size() < max && (update = queue.poll()) != null) {
+         queued.decrementAndGet();
+         into.add(update);
+      }
+   }
+
+   // writes the parked rows, then drops them from the file; runs only while the queue is empty.
+   // Returns false, doing nothing, while another process replays the file.
+   private boolean replaySpill() throws IOException, SQLException {
+      List<ProductUpdate> parked;
+      long length;
+      FileLock replaying;
+      spillLock.writeLock().lock();
+      try {
+         replaying = lockSpill(1, false);
+         if (replaying == null)
+            return false;
+         FileLock lock = null;
+         try {
+            lock = lockSpill(0, true);
+            length = spillFile.length();
+            parked = read(spillFile);
+         } catch (IOException | RuntimeException e) {
+            replaying.release();
+            throw e;
+         } finally {
+            if (lock != null)
+               lock.release();
+         }
+      } finally {
+         spillLock.writeLock().unlock();
+      }
+      try {
+         for (int from = 0; from < parked.size(); from += batchSize)
+            write(parked.subList(from, Math.min(parked.size(), from + batchSize)));
+         spillLock.writeLock().lock();
+         FileLock lock = null;
+         try {
+            lock = lockSpill(0, true);
+            if (spillFile.length() == length) {
+               Files.deleteIfExists(spillFile.toPath());
+               spilling = false;
+               return true;
+            }
+            // rows parked while we replayed: keep only those
+            File rest = new File(spillFile.getPath() + ".tmp");
+            try (FileInputStream in = new FileInputStream(spillFile); FileOutputStream out = new FileOutputStream(rest)) {
+               in.skip(length);
+               byte[] buf = new byte[8192];
+               for (int n; (n = in.read(buf)) > 0; )
+                  out.write(buf, 0, n);
+               out.getFD().sync();
+            }
+            Files.move(rest.toPath(), spillFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+         } finally {
+            if (lock != null)
+               lock.release();
+            spillLock.writeLock().unlock();
+         }
+      } finally {
+         replaying.release();
+      }
+   }//end replaySpill
+
+   // locks one byte of spillFile.lock against the other processes sharing the spill file:
+   // byte 0 while the file is read or written, byte 1 while it is replayed. Call under the write side of spillLock.
+   private FileLock lockSpill(long position, boolean wait) throws IOException {
+      if (lockChannel == null)
+         lockChannel = FileChannel.open(new File(spillFile.getPath() + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      return wait ? lockChannel.lock(position, 1, false) : lockChannel.tryLock(position, 1, false);
+   }
+
+   // inserts rows in one transaction, as multi-row INSERTs of power-of-two sizes so few statements are prepared
+   private void write(List<ProductUpdate> rows) throws SQLException {
+      if (rows.isEmpty())
+         return;
+      StatementMetrics.setOperation("audit");
+      try {
+         esql.withConnection(conn -> {
+            conn.setAutoCommit(false);
+            boolean committed = false;
+            try {
+               for (int from = 0; from < rows.size(); ) {
+                  int n = Integer.highestOneBit(rows.size() - from);
+                  insert(rows.subList(from, from + n));
+                  from += n;
+               }
+               conn.commit();
+               committed = true;
+               return null;
+            } finally {
+               if (!committed)
+                  conn.rollback();
+               conn.setAutoCommit(true);
+            }
+         });
+      } catch (SQLException e) {
+         if (!isRejected(e))
+            throw e;
+         writeOneByOne(rows);
+      } finally {
+         StatementMetrics.setOperation(null);
+      }
+   }//end write
+
+   // a batch with a row the table refuses: write the others, report and drop the bad ones
+   private void writeOneByOne(List<ProductUpdate> rows) throws SQLException {
+      for (ProductUpdate row : rows) {
+         try {
+            insert(singletonList(row));
+         } catch (SQLException e) {
+            if (!isRejected(e))
+               throw e;
+            // e.g. a row written before an earlier attempt failed, or one whose product is gone
+            System.err.println(String.format("Audit log: skipped update %d of '%s' at store %d: %s",
+                                             row.getUpdateNumber(), row.getProductName(), row.getStoreId(), e.getMessage()));
+         }
+      }
+   }
+
+   private void insert(List<ProductUpdate> rows) throws SQLException {
+      StringBuilder sql = new StringBuilder(INSERT_PREFIX);
+      Object[] args = new Object[5 * rows.size()];
+      for (int i = 0; i < rows.size(); i++) {
+         ProductUpdate row = rows.get(i);
+         sql.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+         args[5 * i] = row.getUpdateNumber();
+         args[5 * i + 1] = row.getManagerId();
+         args[5 * i + 2] = row.getStoreId();
+         args[5 * i + 3] = row.getProductName();
+         args[5 * i + 4] = row.getUpdatedOn();
+      }
+      esql.executeUpdate(sql.toString(), args);
+   }
+
+   /**
+    * Returns the queued rows of a (manager, store) that may not be in the
+    * table yet, so a read of the latest updates can include them.
+    *
+    * @param managerId the manager
+    * @param storeId the store
+    * @return the rows, oldest first
+    */
+   public List<ProductUpdate> queued(int managerId, int storeId) {
+      List<ProductUpdate> rows = new ArrayList<ProductUpdate>();
+      for (ProductUpdate row : queue)
+         if (row.getManagerId() == managerId && row.getStoreId() == storeId)
+            rows.add(row);
+      return rows;
+   }
+
+   // integrity constraint violations (class 23) fail the same way on every retry
+   private static boolean isRejected(SQLException e) {
+      String state = e.getSQLState();
+      String msg = e.getMessage();
+      return (state != null && state.startsWith("23"))
+         || (msg != null && (msg.contains("violates foreign key") || msg.contains("duplicate key")));
+   }
+
+   private static List<ProductUpdate> singletonList(ProductUpdate update) {
+      List<ProductUpdate> list = new ArrayList<ProductUpdate>(1);
+      list.add(update);
+      return list;
+   }
+
+   // one row per line: updateNumber, managerID, storeID, updatedOn millis, productName (last, may contain tabs)
+   private static void append(File file, List<ProductUpdate> rows) throws IOException {
+      try (FileOutputStream out = new FileOutputStream(file, true)) {
+         Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+         for (ProductUpdate row : rows)
+            writer.write(String.format("%d\t%d\t%d\t%d\t%s%n", row.getUpdateNumber(), row.getManagerId(), row.getStoreId(),
+                                       row.getUpdatedOn().getTime(), row.getProductName()));
+         writer.flush();
+         out.getFD().sync();
+      }
+   }
+
+   private static List<ProductUpdate> read(File file) throws IOException {
+      List<ProductUpdate> rows = new ArrayList<ProductUpdate>();
+      if (!file.exists())
+         return rows;
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+         for (String line; (line = reader.readLine()) != null; ) {
+            String[] f = line.split("\t", 5);
+            try {
+               rows.add(new ProductUpdate(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), f[4],
+                                          new Timestamp(Long.parseLong(f[3]))));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+               // torn last line of a crash
+            }
+         }
+      }
+      return rows;
+   }
+
+   /**
+    * Stops the flusher after it wrote what it could within timeoutMs and
+    * parks the rest on disk, in order, for the next run.
+    *
+    * @param timeoutMs how long to wait for the final flush
+    */
+   public void close(long timeoutMs) {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (queued.get() > 0 && System.currentTimeMillis() < deadline && flusher.isAlive()) {
+         LockSupport.unpark(flusher);
+         try {
+            Thread.sleep(10);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+      }
+      running = false;
+      LockSupport.unpark(flusher);
+      try {
+         flusher.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (flusher.isAlive()) {
+         System.err.println("Audit log: flusher still writing, " + queued.get() + " queued updates may be lost");
+         return;
+      }
+      List<ProductUpdate> left = new ArrayList<ProductUpdate>(pending);
+      drain(left, Integer.MAX_VALUE);
+      if (left.isEmpty())
+         return;
+      // older than anything already parked, so they go in front of it
+      spillLock.writeLock().lock();
+      FileLock lock = null;
+      try {
+         lock = lockSpill(0, true);
+         File merged = new File(spillFile.getPath() + ".tmp");
+         try {
+            Files.deleteIfExists(merged.toPath());
+            append(merged, left);
+            if (spillFile.exists())
+               try (FileOutputStream out = new FileOutputStream(merged, true)) {
+                  Files.copy(spillFile.toPath(), out);
+                  out.getFD().sync();
+               }
+            Files.move(merged.toPath(), spillFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println(String.format("Audit log: parked %d product updates in %s", left.size(), spillFile));
+         } catch (IOException e) {
+            System.err.println("Audit log: lost " + left.size() + " product updates, can not write " + spillFile + ": " + e.getMessage());
+         }
+      } catch (IOException e) {
+         System.err.println("Audit log: lost " + left.size() + " product updates, can not lock " + spillFile + ": " + e.getMessage());
+      } finally {
+         try {
+            if (lock != null)
+               lock.release();
+         } catch (IOException e) {
+            // released when the process exits
+         }
+         spillLock.writeLock().unlock();
+      }
+   }//end close
+}//end AuditLog
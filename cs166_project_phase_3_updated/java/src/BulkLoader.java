@@ -0,0 +1,298 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the data/*.csv files through the client connection, so the loader
+ * needs no access to the database host's filesystem (load_data.sql uses
+ * server-side COPY paths).
+ *
+ * Tables are loaded in foreign key order, one level at a time, with the
+ * tables of a level loaded in parallel on separate connections:
+ *
+ *   Users, Warehouse -> Store -> Product -> Orders, ProductSupplyRequests, ProductUpdates
+ *
+ * The secondary indexes of create_indexes.sql are dropped before the load
+ * and built (in parallel) afterwards, the serial sequences are moved
+ * past the largest loaded key and the sales summaries are recomputed.
+ * The change notification triggers of create_triggers.sql are disabled for
+ * the load, which would otherwise send one NOTIFY per row; listeners get a
+ * single "all" notification once it is done.
+ *
+ * Rows are streamed with the driver's COPY FROM STDIN support when the
+ * driver has it (org.postgresql.copy.CopyManager, PostgreSQL JDBC 8.4 and
+ * later). The bundled pg73 driver does not, so the loader then falls back to
+ * multi-row INSERT statements of batchRows rows each.
+ */
+public class BulkLoader {
+
+   // a table, the csv file that feeds it and its serial key, if any
+   private static final class Table {
+      final String name;
+      final String file;
+      final String sequence;
+      final String keyColumn;
+
+      Table(String name, String file, String sequence, String keyColumn) {
+         this.name = name;
+         this.file = file;
+         this.sequence = sequence;
+         this.keyColumn = keyColumn;
+      }
+   }
+
+   // foreign key levels: every table only references tables of earlier levels
+   private static final Table[][] LEVELS = {
+      { new Table("Users", "users.csv", "users_userID_seq", "userID"),
+        new Table("Warehouse", "warehouse.csv", null, null) },
+      { new Table("Store", "stores.csv", null, null) },
+      { new Table("Product", "products.csv", null, null) },
+      { new Table("Orders", "orders.csv", Amazon.ORDER_SEQ, "orderNumber"),
+        new Table("ProductSupplyRequests", "productSupplyRequests.csv", Amazon.REQUEST_SEQ, "requestNumber"),
+        new Table("ProductUpdates", "productUpdates.csv", Amazon.UPDATE_SEQ, "updateNumber") },
+   };
+
+   // tables whose triggers send change notifications, see create_triggers.sql
+   private static final String[] NOTIFYING = { "Users", "Store", "Product" };
+
+   private final Amazon esql;
+   private final File dataDir;
+   private final File indexFile;
+   private final int batchRows;
+
+   /**
+    * @param esql the Amazon instance whose connections are used; its pool should allow 3 connections
+    * @param dataDir directory holding the csv files
+    * @param indexFile create_indexes.sql, or null to leave indexes alone
+    * @param batchRows rows per INSERT statement when COPY is not available
+    */
+   public BulkLoader(Amazon esql, File dataDir, File indexFile, int batchRows) {
+      this.esql = esql;
+      this.dataDir = dataDir;
+      this.indexFile = indexFile;
+      this.batchRows = batchRows;
+   }
+
+   /**
+    * Runs the whole load.
+    *
+    * @param truncate empty all seven tables first
+    * @throws java.lang.Exception when any table fails to load
+    */
+   public void load(boolean truncate) throws Exception {
+      long start = System.nanoTime();
+      List<String> drops = new ArrayList<String>();
+      List<String> creates = new ArrayList<String>();
+      if (indexFile != null)
+         readIndexStatements(drops, creates);
+
+      for (String table : NOTIFYING)
+         esql.executeUpdate("ALTER TABLE " + table + " DISABLE TRIGGER USER");
+      try {
+         load(truncate, drops, creates);
+      } finally {
+         for (String table : NOTIFYING)
+            esql.executeUpdate("ALTER TABLE " + table + " ENABLE TRIGGER USER");
+      }
+      esql.executeUpdate("NOTIFY " + ChangeListener.CHANNEL + ", 'all'");
+      System.out.println(String.format("Load finished in %.2fs", (System.nanoTime() - start) / 1e9));
+   }//end load
+
+   // the load itself, run while the notification triggers are disabled
+   private void load(boolean truncate, List<String> drops, List<String> creates) throws Exception {
+      if (truncate)
+         esql.executeUpdate("TRUNCATE Users, Warehouse, Store, Product, Orders, ProductSupplyRequests, ProductUpdates, OrdersArchive, ProductUpdatesArchive CASCADE");
+      for (String drop : drops)
+         esql.executeUpdate(drop);
+
+      ExecutorService workers = Executors.newFixedThreadPool(3);
+      try {
+         for (Table[] level : LEVELS) {
+            List<Future<Long>> loads = new ArrayList<Future<Long>>();
+            for (final Table table : level)
+               loads.add(workers.submit(() -> load(table)));
+            for (int i = 0; i < level.length; i++)
+               System.out.println(String.format("%-22s %10d rows", level[i].name, get(loads.get(i))));
+         }
+
+         long indexStart = System.nanoTime();
+         List<Future<Long>> builds = new ArrayList<Future<Long>>();
+         for (final String create : creates)
+            builds.add(workers.submit(() -> { esql.executeUpdate(create); return 0L; }));
+         for (Future<Long> build : builds)
+            get(build);
+         if (!creates.isEmpty())
+            System.out.println(String.format("Built %d indexes in %.2fs", creates.size(), (System.nanoTime() - indexStart) / 1e9));
+      } finally {
+         workers.shutdown();
+      }
+
+      for (Table[] level : LEVELS)
+         for (Table table : level)
+            if (table.sequence != null)
+               esql.executeQueryAndReturnResult(String.format(
+                  "SELECT setval('%s', (SELECT COALESCE(MAX(%s), 0) + 1 FROM %s), false)", table.sequence, table.keyColumn, table.name));
+      esql.rebuildSalesSummaries();
+      esql.executeUpdate("ANALYZE");
+   }
+
+   // loads one table on its own connection and returns the number of rows
+   private long load(Table table) throws Exception {
+      final File csv = new File(dataDir, table.file);
+      return esql.withConnection(conn -> {
+         try (Reader reader = new BufferedReader(new FileReader(csv), 1 << 16)) {
+            Long copied = copyIn(conn, "COPY " + table.name + " FROM STDIN WITH CSV HEADER", reader);
+            if (copied != null)
+               return copied;
+         } catch (IOException e) {
+            throw new SQLException("Can not read " + csv + ": " + e.getMessage());
+         }
+         return insertBatches(conn, table.name, csv);
+      });
+   }
+
+   // streams the reader through CopyManager.copyIn, or returns null if the driver has no COPY support
+   private static Long copyIn(Connection conn, String sql, Reader reader) throws SQLException {
+      try {
+         Class<?> managerClass = Class.forName("org.postgresql.copy.CopyManager");
+         Class<?> baseConnection = Class.forName("org.postgresql.core.BaseConnection");
+         if (!baseConnection.isInstance(conn))
+            return null;
+         Object manager = managerClass.getConstructor(baseConnection).newInstance(conn);
+         return (Long) managerClass.getMethod("copyIn", String.class, Reader.class).invoke(manager, sql, reader);
+      } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException e) {
+         return null;
+      } catch (InvocationTargetException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         throw new SQLException(sql + ": " + cause);
+      }
+   }
+
+   // fallback: multi-row INSERT ... VALUES statements of batchRows rows each, in one transaction
+   private long insertBatches(Connection conn, String table, File csv) throws SQLException {
+      long rows = 0;
+      conn.setAutoCommit(false);
+      boolean committed = false;
+      try (BufferedReader reader = new BufferedReader(new FileReader(csv), 1 << 16);
+           Statement stmt = conn.createStatement()) {
+         reader.readLine(); // header
+         StringBuilder sql = new StringBuilder();
+         int pending = 0;
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            sql.append(pending == 0 ? "INSERT INTO " + table + " VALUES " : ", ");
+            appendRow(sql, parseCsvLine(line));
+            rows++;
+            if (++pending == batchRows) {
+               stmt.executeUpdate(sql.toString());
+               sql.setLength(0);
+               pending = 0;
+            }
+         }
+         if (pending > 0)
+            stmt.executeUpdate(sql.toString());
+         conn.commit();
+         committed = true;
+      } catch (IOException e) {
+         throw new SQLException("Can not read " + csv + ": " + e.getMessage());
+      } finally {
+         if (!committed)
+            conn.rollback();
+         conn.setAutoCommit(true);
+      }
+      return rows;
+   }
+
+   // appends ('a', 'b', NULL) with every value as a quoted literal Postgres coerces to the column type
+   private static void appendRow(StringBuilder sql, List<String> values) {
+      sql.append('(');
+      for (int i = 0; i < values.size(); i++) {
+         if (i > 0) sql.append(", ");
+         String value = values.get(i);
+         if (value == null)
+            sql.append("NULL");
+         else
+            sql.append('\'').append(value.replace("'", "''")).append('\'');
+      }
+      sql.append(')');
+   }
+
+   /**
+    * Splits one CSV line following COPY's CSV rules: fields may be quoted
+    * with ", a doubled "" inside quotes is a literal quote and an empty
+    * unquoted field is NULL.
+    *
+    * @param line the CSV line
+    * @return the field values
+    */
+   static List<String> parseCsvLine(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false, wasQuoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               i++;
+            } else if (c == '"') {
+               quoted = false;
+            } else {
+               field.append(c);
+            }
+         } else if (c == '"') {
+            quoted = wasQuoted = true;
+         } else if (c == ',') {
+            fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+            field.setLength(0);
+            wasQuoted = false;
+         } else {
+            field.append(c);
+         }
+      }
+      fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+      return fields;
+   }
+
+   // splits create_indexes.sql into its DROP INDEX and CREATE INDEX statements
+   private void readIndexStatements(List<String> drops, List<String> creates) throws IOException {
+      StringBuilder script = new StringBuilder();
+      for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+         int comment = line.indexOf("--");
+         script.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+      }
+      for (String stmt : script.toString().split(";")) {
+         String sql = stmt.trim().replaceAll("\\s+", " ");
+         if (sql.toUpperCase().startsWith("DROP INDEX"))
+            drops.add(sql);
+         else if (sql.toUpperCase().startsWith("CREATE"))
+            creates.add(sql);
+      }
+   }
+
+   private static long get(Future<Long> f) throws Exception {
+      try {
+         return f.get();
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof Exception) throw (Exception) cause;
+         throw e;
+      }
+   }
+}//end BulkLoader
@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A customer's shopping cart: (storeID, productName, units) lines that are
+ * committed together by OrderEngine.checkout. Adding the same product of the
+ * same store twice merges the lines.
+ */
+public class Cart {
+
+   /**
+    * One line of the cart.
+    */
+   public static final class Line {
+      private final int storeId;
+      private final String productName;
+      private int units;
+
+      Line(int storeId, String productName, int units) {
+         this.storeId = storeId;
+         this.productName = productName;
+         this.units = units;
+      }
+
+      public int getStoreId() { return storeId; }
+      public String getProductName() { return productName; }
+      public int getUnits() { return units; }
+   }
+
+   // the order rows are locked in at checkout, so stock is decremented in this order by every session
+   static final Comparator<Line> LOCK_ORDER =
+      Comparator.comparingInt(Line::getStoreId).thenComparing(Line::getProductName);
+
+   private final List<Line> lines = new ArrayList<Line>();
+
+   /**
+    * Adds units of a product to the cart.
+    *
+    * @param storeId the store the product is bought from
+    * @param productName the product name
+    * @param units number of units, must be positive
+    */
+   public void add(int storeId, String productName, int units) {
+      if (units <= 0)
+         throw new IllegalArgumentException("Number of units must be positive");
+      String name = productName.trim();
+      for (Line line : lines) {
+         if (line.storeId == storeId && line.productName.equals(name)) {
+            line.units += units;
+            return;
+         }
+      }
+      lines.add(new Line(storeId, name, units));
+   }
+
+   public void clear() { lines.clear(); }
+
+   public boolean isEmpty() { return lines.isEmpty(); }
+
+   public int size() { return lines.size(); }
+
+   public List<Line> getLines() { return Collections.unmodifiableList(lines); }
+
+   // the lines sorted by (storeID, productName)
+   List<Line> inLockOrder() {
+      List<Line> sorted = new ArrayList<Line>(lines);
+      Collections.sort(sorted, LOCK_ORDER);
+      return sorted;
+   }
+}//end Cart
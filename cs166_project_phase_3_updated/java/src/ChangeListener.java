@@ -0,0 +1,210 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.postgresql.PGNotification;
+
+/**
+ * Keeps the in-memory caches of an Amazon instance current with the writes
+ * of other instances. The triggers of create_triggers.sql send a NOTIFY on
+ * the amazon_changes channel for every Store, Product and Users row that
+ * changes; this thread LISTENs on a connection of its own and drops the
+ * cached entries the changes touch. Stock-only changes, one per order,
+ * arrive on the amazon_stock channel.
+ *
+ * Notifications are polled every pollMs and each poll's batch is coalesced
+ * before it is applied, so a burst of writes to one store costs one
+ * invalidation. A batch of more than maxBatch notifications, one without a
+ * payload (drivers older than pgjdbc 8.0 do not expose it), a lost
+ * connection (notifications sent meanwhile are lost) and every
+ * fullRefreshMs all fall back to dropping every cache.
+ *
+ * A stock change only drops the product listing of its store (of every
+ * store without a payload); the rankings and recent rows do not depend on
+ * stock and stay cached. Stock changes sent by this instance's own
+ * connections are skipped, since the writing path already dropped the
+ * listing.
+ */
+public class ChangeListener implements Runnable {
+
+   /** The NOTIFY channel the triggers send on. */
+   public static final String CHANNEL = "amazon_changes";
+
+   /** The NOTIFY channel of changes that only touch a product's stock. */
+   public static final String STOCK_CHANNEL = "amazon_stock";
+
+   private final Amazon esql;
+   private final ConnectionPool pool;
+   private final long pollMs;
+   private final long fullRefreshMs;
+   private final int maxBatch;
+   private final Thread thread;
+   private volatile boolean running = true;
+   private Connection conn = null; // listener thread only
+   private long lastFullRefresh = 0;
+
+   /**
+    * Starts the listener thread.
+    *
+    * @param esql the instance whose caches are invalidated
+    * @param pool opens the listening connection
+    * @param pollMs interval between two checks for notifications
+    * @param fullRefreshMs interval of the fallback full refresh, or 0 for none
+    * @param maxBatch notifications in one poll above which everything is refreshed instead
+    */
+   public ChangeListener(Amazon esql, ConnectionPool pool, long pollMs, long fullRefreshMs, int maxBatch) {
+      this.esql = esql;
+      this.pool = pool;
+      this.pollMs = pollMs;
+      this.fullRefreshMs = fullRefreshMs;
+      this.maxBatch = maxBatch;
+      this.thread = new Thread(this, "amazon-change-listener");
+      this.thread.setDaemon(true);
+      this.thread.start();
+   }
+
+   public void run() {
+      long backoffMs = pollMs;
+      while (running) {
+         try {
+            if (conn == null) {
+               conn = pool.openUnpooled();
+               try (Statement stmt = conn.createStatement()) {
+                  stmt.execute("LISTEN " + CHANNEL);
+                  stmt.execute("LISTEN " + STOCK_CHANNEL);
+               }
+               refreshAll(); // whatever changed while we were not listening
+            }
+            poll();
+            backoffMs = pollMs;
+            if (fullRefreshMs > 0 && System.currentTimeMillis() - lastFullRefresh >= fullRefreshMs)
+               refreshAll();
+         } catch (SQLException e) {
+            if (running)
+               System.err.println("Change listener: " + e.getMessage());
+            closeConnection();
+            backoffMs = Math.min(Math.max(2 * backoffMs, 1000L), 30000L);
+         }
+         try {
+            Thread.sleep(backoffMs);
+         } catch (InterruptedException e) {
+            break;
+         }
+      }
+      closeConnection();
+   }//end run
+
+   // reads the pending notifications and applies them as one batch
+   private void poll() throws SQLException {
+      // the driver only reads notifications off the socket while it runs a statement
+      try (Statement stmt = conn.createStatement()) {
+         stmt.execute("SELECT 1");
+      }
+      PGNotification[] pending = ((org.postgresql.PGConnection) conn).getNotifications();
+      if (pending == null || pending.length == 0)
+         return;
+      List<PGNotification> changes = new ArrayList<PGNotification>(pending.length);
+      boolean stockOnly = true;
+      for (PGNotification notification : pending) {
+         boolean stock = STOCK_CHANNEL.equals(notification.getName());
+         if (stock && pool.isOwnBackend(notification.getPID()))
+            continue; // our own order or restock, already applied
+         changes.add(notification);
+         stockOnly &= stock;
+      }
+      if (changes.isEmpty())
+         return;
+      if (changes.size() > maxBatch) {
+         if (stockOnly)
+            esql.invalidateListings();
+         else
+            refreshAll();
+         return;
+      }
+      Set<Integer> stores = new HashSet<Integer>();
+      Set<Integer> products = new HashSet<Integer>();
+      Set<Integer> listings = new HashSet<Integer>();
+      Set<Integer> users = new HashSet<Integer>();
+      boolean allListings = false;
+      for (PGNotification notification : changes) {
+         String payload = payloadOf(notification);
+         int colon = payload == null ? -1 : payload.indexOf(':');
+         try {
+            String kind = colon < 0 ? "" : payload.substring(0, colon);
+            int id = colon < 0 ? 0 : Integer.parseInt(payload.substring(colon + 1));
+            if (kind.equals("store"))
+               stores.add(id);
+            else if (kind.equals("product"))
+               products.add(id);
+            else if (kind.equals("stock"))
+               listings.add(id);
+            else if (kind.equals("user"))
+               users.add(id);
+            else if (payload == null && STOCK_CHANNEL.equals(notification.getName()))
+               allListings = true; // a stock change of a store we can not tell
+            else {
+               refreshAll(); // "all", no payload or one we do not know
+               return;
+            }
+         } catch (NumberFormatException e) {
+            refreshAll();
+            return;
+         }
+      }
+      if (!stores.isEmpty())
+         esql.invalidateLocationIndexes();
+      for (int storeId : products)
+         esql.invalidateProducts(storeId);
+      if (allListings)
+         esql.invalidateListings();
+      else
+         for (int storeId : listings)
+            esql.invalidateListing(storeId);
+      for (int userId : users)
+         esql.invalidateSession(userId);
+   }//end poll
+
+   // the payload of a notification, if the driver exposes it
+   private static String payloadOf(PGNotification notification) {
+      try {
+         Method getParameter = notification.getClass().getMethod("getParameter");
+         Object payload = getParameter.invoke(notification);
+         return payload == null || payload.toString().isEmpty() ? null : payload.toString();
+      } catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }
+
+   private void refreshAll() {
+      esql.invalidateCaches();
+      lastFullRefresh = System.currentTimeMillis();
+   }
+
+   private void closeConnection() {
+      if (conn != null) {
+         try {
+            conn.close();
+         } catch (SQLException e) {
+            // already broken
+         }
+         conn = null;
+      }
+   }
+
+   /**
+    * Stops the listener and closes its connection.
+    */
+   public void close() {
+      running = false;
+      thread.interrupt();
+      try {
+         thread.join(1000L);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}//end ChangeListener
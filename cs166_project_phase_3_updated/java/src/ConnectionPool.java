@@ -0,0 +1,265 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small bounded pool of physical PostgreSQL connections. Connections are
+ * borrowed by the Amazon execute helpers for the duration of one statement
+ * (or one unit of work) and handed back afterwards, so several threads can
+ * share one Amazon instance.
+ *
+ * The pool keeps at least minSize connections open, never opens more than
+ * maxSize, closes connections that sat idle for longer than idleTimeoutMs
+ * (down to minSize), validates a connection on borrow if it has been idle
+ * for longer than validateAfterMs and waits at most maxWaitMs for a free
+ * connection before giving up.
+ *
+ * Each connection also carries its own StatementCache, which lives and
+ * dies with the physical connection.
+ */
+public class ConnectionPool {
+
+   // an idle connection together with the time it was handed back
+   private static class Entry {
+      final Connection conn;
+      final long lastUsed;
+
+      Entry(Connection conn, long lastUsed) {
+         this.conn = conn;
+         this.lastUsed = lastUsed;
+      }
+   }
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final int minSize;
+   private final int maxSize;
+   private final long idleTimeoutMs;
+   private final long maxWaitMs;
+   private final long validateAfterMs;
+   private final int stmtCacheSize;
+   private final int prepareThreshold;
+
+   // most recently used connections sit at the head, eviction works from the tail
+   private final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<Entry>();
+   // one permit per connection that may still be handed out
+   private final Semaphore permits;
+   // number of physical connections currently open (idle + borrowed)
+   private final AtomicInteger open = new AtomicInteger();
+   // prepared statement cache of every open connection
+   private final Map<Connection, StatementCache> caches = new ConcurrentHashMap<Connection, StatementCache>();
+   // server process ID of every open connection, to tell our own NOTIFYs from other instances'
+   private final Map<Connection, Integer> backendPids = new ConcurrentHashMap<Connection, Integer>();
+   private final ScheduledExecutorService evictor;
+   private volatile boolean closed = false;
+
+   /**
+    * Creates the pool and eagerly opens minSize connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open while idle
+    * @param maxSize the maximum number of connections open at once
+    * @param idleTimeoutMs how long a connection may sit idle before it is closed
+    * @param maxWaitMs how long borrow() waits for a free connection
+    * @param validateAfterMs idle time after which a connection is re-validated on borrow
+    * @param stmtCacheSize prepared statements cached per connection
+    * @param prepareThreshold uses after which a cached statement is prepared on the server
+    * @throws java.sql.SQLException when the initial connections can not be opened
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+                         long idleTimeoutMs, long maxWaitMs, long validateAfterMs,
+                         int stmtCacheSize, int prepareThreshold) throws SQLException {
+      if (maxSize < 1 || minSize < 0 || minSize > maxSize)
+         throw new IllegalArgumentException(String.format("Invalid pool size min=%d max=%d", minSize, maxSize));
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.idleTimeoutMs = idleTimeoutMs;
+      this.maxWaitMs = maxWaitMs;
+      this.validateAfterMs = validateAfterMs;
+      this.stmtCacheSize = stmtCacheSize;
+      this.prepareThreshold = prepareThreshold;
+      this.permits = new Semaphore(maxSize, true);
+
+      for (int i = 0; i < minSize; i++)
+         idle.offerLast(new Entry(open(), System.currentTimeMillis()));
+
+      this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "amazon-pool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000, idleTimeoutMs / 2);
+      this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to maxWaitMs if all connections are in
+    * use. The caller must hand it back with release().
+    *
+    * @return an open, validated connection
+    * @throws java.sql.SQLException when the pool is exhausted or closed
+    */
+   public Connection borrow() throws SQLException {
+      if (closed)
+         throw new SQLException("Connection pool is closed");
+      try {
+         if (!permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS))
+            throw new SQLException(String.format("Timed out after %dms waiting for a database connection (%d in use)", maxWaitMs, maxSize));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }
+
+      try {
+         Entry e;
+         while ((e = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - e.lastUsed < validateAfterMs || isValid(e.conn))
+               return e.conn;
+            discard(e.conn);
+         }
+         return open();
+      } catch (SQLException | RuntimeException ex) {
+         permits.release();
+         throw ex;
+      }
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool. Closed connections are
+    * discarded and an open transaction is rolled back.
+    *
+    * @param conn the connection obtained from borrow()
+    */
+   public void release(Connection conn) {
+      if (conn == null) return;
+      try {
+         if (closed || conn.isClosed()) {
+            discard(conn);
+         } else {
+            if (!conn.getAutoCommit()) {
+               conn.rollback();
+               conn.setAutoCommit(true);
+            }
+            idle.offerFirst(new Entry(conn, System.currentTimeMillis()));
+         }
+      } catch (SQLException e) {
+         discard(conn);
+      } finally {
+         permits.release();
+      }
+   }//end release
+
+   /**
+    * Closes every idle connection and stops the eviction thread. Connections
+    * that are still borrowed are closed when they are released.
+    */
+   public void close() {
+      closed = true;
+      evictor.shutdownNow();
+      Entry e;
+      while ((e = idle.pollFirst()) != null)
+         discard(e.conn);
+   }//end close
+
+   /**
+    * Returns the prepared statement cache of a borrowed connection.
+    *
+    * @param conn a connection obtained from borrow()
+    * @return the connection's statement cache
+    */
+   public StatementCache statementCache(Connection conn) {
+      StatementCache cache = caches.get(conn);
+      if (cache == null) {
+         cache = new StatementCache(conn, stmtCacheSize, prepareThreshold);
+         caches.put(conn, cache);
+      }
+      return cache;
+   }//end statementCache
+
+   /**
+    * Whether a server process belongs to one of the pool's connections,
+    * e.g. the sender of a notification.
+    *
+    * @param pid a backend process ID, as reported by pg_backend_pid()
+    * @return true if one of the open connections runs on that backend
+    */
+   public boolean isOwnBackend(int pid) {
+      return backendPids.containsValue(pid);
+   }
+
+   public int getOpenCount() { return open.get(); }
+   public int getIdleCount() { return idle.size(); }
+
+   /**
+    * Opens a connection outside the pool, for side work that must not hold
+    * one of the application's connections. The caller closes it.
+    *
+    * @return a new connection to the pool's database
+    * @throws java.sql.SQLException when the connection can not be opened
+    */
+   public Connection openUnpooled() throws SQLException {
+      return DriverManager.getConnection(url, user, passwd);
+   }
+
+   // closes connections idle for longer than idleTimeoutMs while more than minSize are open
+   private void evictIdle() {
+      long now = System.currentTimeMillis();
+      Entry e;
+      while (open.get() > minSize && (e = idle.peekLast()) != null && now - e.lastUsed > idleTimeoutMs) {
+         if (idle.removeLastOccurrence(e))
+            discard(e.conn);
+      }
+   }
+
+   private Connection open() throws SQLException {
+      Connection conn = DriverManager.getConnection(url, user, passwd);
+      try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()")) {
+         if (rs.next())
+            backendPids.put(conn, rs.getInt(1));
+      } catch (SQLException e) {
+         conn.close();
+         throw e;
+      }
+      open.incrementAndGet();
+      return conn;
+   }
+
+   private void discard(Connection conn) {
+      open.decrementAndGet();
+      backendPids.remove(conn);
+      StatementCache cache = caches.remove(conn);
+      if (cache != null)
+         cache.close();
+      try {
+         conn.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   // the bundled driver predates Connection.isValid, so run a trivial query instead
+   private static boolean isValid(Connection conn) {
+      try (Statement stmt = conn.createStatement()) {
+         stmt.executeQuery("SELECT 1").close();
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }
+   }
+}//end ConnectionPool
@@ -0,0 +1,555 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the indexes of a loaded database against the statements the
+ * application issues and reports redundant, unused and missing indexes.
+ *
+ *   redundant  a plain index whose columns are a prefix of another index or
+ *              of the primary key; it only costs writes
+ *   unused     a plain index pg_stat_user_indexes has never seen scanned
+ *   missing    an index built from the filter and sort columns of a scan in
+ *              the plan of some statement
+ *
+ * Every finding is measured, not guessed. All statements are EXPLAINed
+ * once as a baseline. Each index is then dropped, or each candidate created,
+ * inside a transaction, and everything is EXPLAINed again. The difference
+ * in estimated total cost is reported and the transaction is rolled back.
+ * DROP INDEX and CREATE INDEX lock their table until the rollback, so run
+ * the advisor against a loaded copy, not a database in use.
+ *
+ * The statements are those of Amazon, OrderEngine and the menu, with sample
+ * bind values taken from the database; keep statements() in step with them.
+ */
+public class IndexAdvisor {
+
+   // an application statement with sample bind values
+   private static final class Probe {
+      final String name;
+      final String sql;
+      final Object[] args;
+
+      Probe(String name, String sql, Object... args) {
+         this.name = name;
+         this.sql = sql;
+         this.args = args;
+      }
+   }
+
+   // an index of the database, with its usage statistics
+   private static final class Index {
+      String name;
+      String table;
+      List<String> columns;
+      boolean unique;
+      boolean primary;
+      boolean plain;      // no expressions and no predicate
+      long scans;
+      long bytes;
+      long tableWrites;   // rows inserted, updated and deleted in its table
+   }
+
+   // a proposed index: equality columns in any order, then sort columns in order
+   private static final class Candidate {
+      final String table;
+      final Set<String> equality = new LinkedHashSet<String>();
+      final List<String> sort = new ArrayList<String>();  // "col" or "col DESC"
+      final Set<String> reasons = new LinkedHashSet<String>();
+
+      Candidate(String table) {
+         this.table = table;
+      }
+
+      List<String> columns() {
+         List<String> columns = new ArrayList<String>(equality);
+         columns.addAll(sort);
+         return columns;
+      }
+
+      String key() {
+         return table + " " + columns();
+      }
+   }
+
+   private static final Pattern COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+   private static final Pattern SCAN = Pattern.compile(
+      "(?:Seq Scan|Bitmap Heap Scan|Index Scan(?: Backward)? using \\S+|Index Only Scan(?: Backward)? using \\S+) on (\\w+)(?: (\\w+))?");
+   private static final Pattern CONDITION = Pattern.compile("(?:Filter|Index Cond|Recheck Cond): (.*)");
+   private static final Pattern EQUALITY = Pattern.compile("(?:(\\w+)\\.)?\\(?(\\w+)\\)?(?:::[\\w ]+?)?\\)? = ");
+   private static final Pattern SORT_KEY = Pattern.compile("Sort Key: (.*)");
+   private static final Pattern CREATE_INDEX = Pattern.compile("CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)",
+                                                                Pattern.CASE_INSENSITIVE);
+
+   // every index that is not itself a partition of another index, with the usage statistics of it and, for
+   // the index of a partitioned table, of its partitions' indexes (only those have statistics)
+   private static final String INDEXES =
+      "WITH RECURSIVE tree(root, relid) AS (SELECT indexrelid, indexrelid FROM pg_index " +
+      "UNION ALL SELECT tree.root, i.inhrelid FROM tree JOIN pg_inherits i ON i.inhparent = tree.relid), " +
+      "stats AS (SELECT tree.root, SUM(s.idx_scan)::bigint AS scans, SUM(pg_relation_size(s.indexrelid))::bigint AS bytes, " +
+      "SUM(t.n_tup_ins + t.n_tup_upd + t.n_tup_del)::bigint AS writes " +
+      "FROM tree JOIN pg_stat_user_indexes s ON s.indexrelid = tree.relid JOIN pg_stat_user_tables t ON t.relid = s.relid " +
+      "GROUP BY tree.root) " +
+      "SELECT c.relname, i.relname, x.indisunique, x.indisprimary, " +
+      "x.indexprs IS NULL AND x.indpred IS NULL, u.scans, u.bytes, u.writes, " +
+      "array_to_string(ARRAY(SELECT a.attname FROM unnest(x.indkey) WITH ORDINALITY k(attnum, ord) " +
+      "JOIN pg_attribute a ON a.attrelid = x.indrelid AND a.attnum = k.attnum ORDER BY k.ord), ',') " +
+      "FROM pg_index x JOIN pg_class c ON c.oid = x.indrelid JOIN pg_class i ON i.oid = x.indexrelid " +
+      "JOIN stats u ON u.root = x.indexrelid " +
+      "WHERE x.indisvalid AND NOT EXISTS (SELECT 1 FROM pg_inherits p WHERE p.inhrelid = x.indexrelid) " +
+      "ORDER BY c.relname, i.relname";
+
+   // the partitioned table each partition belongs to, e.g. orders_default -> orders
+   private static final String PARTITIONS =
+      "WITH RECURSIVE up(relid, root) AS (SELECT inhrelid, inhparent FROM pg_inherits " +
+      "UNION ALL SELECT up.relid, i.inhparent FROM up JOIN pg_inherits i ON i.inhrelid = up.root) " +
+      "SELECT c.relname, r.relname FROM up JOIN pg_class c ON c.oid = up.relid JOIN pg_class r ON r.oid = up.root " +
+      "WHERE c.relkind IN ('r', 'p') AND r.relkind = 'p' AND NOT EXISTS (SELECT 1 FROM pg_inherits i WHERE i.inhrelid = up.root)";
+
+   private final Amazon esql;
+   private final File indexFile;
+
+   /**
+    * @param esql the Amazon instance connected to a loaded database
+    * @param indexFile create_indexes.sql, or null to skip checking it
+    */
+   public IndexAdvisor(Amazon esql, File indexFile) {
+      this.esql = esql;
+      this.indexFile = indexFile;
+   }
+
+   /**
+    * Runs the analysis and prints the report.
+    *
+    * @param out where the report goes
+    * @param ddlFile file the generated DDL is written to, or null to print it with the report
+    * @throws java.lang.Exception when the database can not be analyzed
+    */
+   public void run(final PrintStream out, File ddlFile) throws Exception {
+      final List<Probe> probes = statements();
+      final List<String> ddl = new ArrayList<String>();
+      esql.withConnection(conn -> {
+         conn.setAutoCommit(false);
+         try {
+            analyze(conn, probes, out, ddl);
+         } finally {
+            conn.rollback();
+            conn.setAutoCommit(true);
+         }
+         return null;
+      });
+      if (ddlFile != null) {
+         Files.write(ddlFile.toPath(), ddl, StandardCharsets.UTF_8);
+         out.println(String.format("DDL written to %s", ddlFile));
+      } else {
+         out.println();
+         out.println("DDL");
+         for (String line : ddl)
+            out.println("  " + line);
+      }
+   }//end run
+
+   // the application's statements, bound to rows of the loaded database
+   private List<Probe> statements() throws SQLException {
+      List<List<String>> user = esql.executeQueryAndReturnResult("SELECT userID, name, password FROM Users ORDER BY userID LIMIT 1");
+      List<List<String>> store = esql.executeQueryAndReturnResult("SELECT storeID, managerID FROM Store ORDER BY storeID LIMIT 1");
+      if (user.isEmpty() || store.isEmpty())
+         throw new SQLException("The database is empty; load it before running the index advisor");
+      int userId = Integer.parseInt(user.get(0).get(0).trim());
+      String name = user.get(0).get(1).trim(), password = user.get(0).get(2).trim();
+      int storeId = Integer.parseInt(store.get(0).get(0).trim());
+      int managerId = Integer.parseInt(store.get(0).get(1).trim());
+      String product = esql.executeQueryForObject("SELECT productName FROM Product WHERE storeID = ? ORDER BY productName LIMIT 1",
+                                                  rs -> rs.getString(1).trim(), storeId);
+      Integer warehouseId = esql.executeQueryForObject("SELECT warehouseID FROM Warehouse ORDER BY warehouseID LIMIT 1", rs -> rs.getInt(1));
+      if (product == null || warehouseId == null)
+         throw new SQLException("The database has no products or warehouses; load it before running the index advisor");
+      Timestamp now = Amazon.now();
+      long hotDays = esql.getRecentHotDays();
+      Timestamp hot = new Timestamp(now.getTime() - hotDays * 86400000L);
+
+      List<Probe> probes = new ArrayList<Probe>(Arrays.asList(
+         new Probe("login", "SELECT * FROM USERS WHERE name = ? AND password = ?", name, password),
+         new Probe("createUser", "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)", name, password, 0.0, 0.0, "customer"),
+         new Probe("session user", "SELECT * FROM USERS WHERE userID = ?", userId),
+         new Probe("session stores", "SELECT storeID, latitude, longitude FROM STORE WHERE managerID = ?", managerId),
+         new Probe("store index", "SELECT * FROM STORE"),
+         new Probe("warehouse index", "SELECT * FROM WAREHOUSE"),
+         new Probe("productsOf", "SELECT * FROM Product WHERE storeID = ? ORDER BY productName", storeId),
+         new Probe("updateProduct listing", "SELECT productName, numberOfUnits, pricePerUnit FROM PRODUCT WHERE storeId = ? ORDER BY productName", storeId),
+         new Probe("product exists", "SELECT productName FROM PRODUCT WHERE storeId = ? AND productName = ?", storeId, product),
+         new Probe("placeOrder", OrderEngine.PLACE_ORDER, 1, storeId, product, 1, 0, userId, 1, now),
+         new Probe("checkout lock", OrderEngine.lockStock(1), storeId, product),
+         new Probe("checkout", OrderEngine.checkoutLines(1), 0, 0, storeId, product, 1, userId, now),
+         new Probe("viewRecentOrders customer", "SELECT * FROM ORDERS WHERE customerID = ? ORDER BY orderTime DESC LIMIT ?", userId, 5),
+         new Probe("viewRecentOrders customer hot",
+                   "SELECT * FROM ORDERS WHERE customerID = ? AND orderTime >= ? ORDER BY orderTime DESC LIMIT ?", userId, hot, 5),
+         new Probe("viewRecentOrders store",
+                   "SELECT O.*, U.name FROM ORDERS O, USERS U WHERE O.storeID = ? AND O.customerID = U.userID ORDER BY O.orderTime DESC LIMIT ?", storeId, 5),
+         new Probe("viewRecentOrders store hot",
+                   "SELECT O.*, U.name FROM ORDERS O, USERS U WHERE O.storeID = ? AND O.customerID = U.userID AND O.orderTime >= ? ORDER BY O.orderTime DESC LIMIT ?",
+                   storeId, hot, 5),
+         new Probe("updateProduct", "UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE Product.storeID = ? AND Product.productName = ?",
+                   1, 1.0, storeId, product),
+         new Probe("updateProduct log", "INSERT INTO PRODUCTUPDATES (updateNumber,managerID,storeID,productName,updatedOn) VALUES (?, ?, ?, ?, ?)",
+                   0, managerId, storeId, product, now),
+         new Probe("viewRecentUpdates", "SELECT * FROM ProductUpdates WHERE managerID = ? AND storeID = ? ORDER BY updatedOn DESC LIMIT ?",
+                   managerId, storeId, 5),
+         new Probe("viewRecentUpdates hot",
+                   "SELECT * FROM ProductUpdates WHERE managerID = ? AND storeID = ? AND updatedOn >= ? ORDER BY updatedOn DESC LIMIT ?",
+                   managerId, storeId, hot, 5),
+         new Probe("viewPopularProducts", "SELECT productName, unitsSold FROM ProductSales WHERE storeID = ?", storeId),
+         new Probe("viewPopularCustomers", "SELECT customerID, unitsPurchased FROM CustomerPurchases WHERE storeID = ?", storeId),
+         new Probe("viewPopularCustomers names", "SELECT * FROM USERS WHERE userID IN (?, ?, ?, ?, ?)", userId, userId, userId, userId, userId),
+         new Probe("supply products", "SELECT * FROM PRODUCT WHERE storeId = ? ORDER BY numberOfUnits ASC", storeId),
+         new Probe("supply restock", "UPDATE PRODUCT SET numberOfUnits = numberOfUnits + ? WHERE PRODUCT.storeId = ? AND PRODUCT.productName = ?",
+                   1, storeId, product),
+         new Probe("supply request", "INSERT INTO PRODUCTSUPPLYREQUESTS (requestNumber,managerID,warehouseID,storeID,productName,unitsRequested) VALUES (?, ?, ?, ?, ?, ?)",
+                   0, managerId, warehouseId, storeId, product, 1),
+         new Probe("replenish scan", Replenisher.LOW_STOCK, 10, storeId, storeId, product, 200),
+         new Probe("replenish restock", Replenisher.restockLines(1), 0, managerId, warehouseId, storeId, product, 10, 1),
+         new Probe("admin user lookup", "SELECT * FROM USERS U WHERE U.userID = ?", userId),
+         new Probe("admin user update",
+                   "UPDATE Users SET name = ?, password = ?, latitude = ?, longitude = ?, type = ? WHERE Users.userID = ?",
+                   name, password, BigDecimal.ZERO, BigDecimal.ZERO, "customer", userId),
+         new Probe("admin product lookup", "SELECT * FROM Product P WHERE P.productName = ?", product),
+         new Probe("admin product update",
+                   "UPDATE Product SET storeID = ?, productName = ?, numberOfUnits = ?, pricePerUnit = ? WHERE Product.storeID = ? AND Product.productName = ?",
+                   storeId, product, 1, 1.0, storeId, product),
+         new Probe("admin store manager", "SELECT managerID FROM STORE WHERE storeId = ?", storeId),
+         new Probe("product sales drift", Amazon.PRODUCT_SALES_DRIFT),
+         new Probe("customer purchases drift", Amazon.CUSTOMER_PURCHASES_DRIFT)));
+      if (hotDays <= 0)
+         probes.removeIf(probe -> probe.name.endsWith(" hot")); // the loads never bound the time
+      return probes;
+   }//end statements
+
+   private void analyze(Connection conn, List<Probe> probes, PrintStream out, List<String> ddl) throws SQLException {
+      String[] plans = new String[probes.size()];
+      double[] baseline = explainAll(conn, probes, plans);
+      out.println("Statement costs (EXPLAIN total cost)");
+      for (int i = 0; i < probes.size(); i++)
+         out.println(String.format("  %-30s%14s", probes.get(i).name, Double.isNaN(baseline[i]) ? "failed" : String.format("%.2f", baseline[i])));
+
+      List<Index> indexes = readIndexes(conn);
+      Map<String, String> partitions = readPartitions(conn);
+      if (indexFile != null) {
+         Set<String> existing = new HashSet<String>();
+         for (Index index : indexes)
+            existing.add(index.name);
+         List<String> absent = new ArrayList<String>();
+         for (String name : indexNamesOf(indexFile))
+            if (!existing.contains(name))
+               absent.add(name);
+         if (!absent.isEmpty())
+            out.println(String.format("%nIndexes of %s missing from the database: %s", indexFile, String.join(", ", absent)));
+      }
+
+      // redundant: a plain, non-unique index covered by a longer or unique one
+      out.println();
+      out.println("Redundant indexes");
+      Set<String> reported = new HashSet<String>();
+      for (Index index : indexes) {
+         Index cover = coveringIndex(index, indexes);
+         if (cover == null)
+            continue;
+         reported.add(index.name);
+         double[] costs = withoutIndex(conn, index, probes);
+         String change = describeChange(probes, baseline, costs);
+         out.println(String.format("  %s on %s (%s): prefix of %s (%s); %d scans, %d kB, %d table writes to maintain it; without it: %s",
+                                   index.name, index.table, String.join(", ", index.columns), cover.name, String.join(", ", cover.columns),
+                                   index.scans, index.bytes / 1024, index.tableWrites, change));
+         ddl.add(String.format("DROP INDEX IF EXISTS %s; -- prefix of %s", index.name, cover.name));
+      }
+      if (reported.isEmpty())
+         out.println("  none");
+
+      // unused: never scanned since the statistics were reset
+      out.println();
+      out.println("Unused indexes (no scans recorded in pg_stat_user_indexes)");
+      boolean anyUnused = false;
+      for (Index index : indexes) {
+         if (index.unique || index.primary || index.scans > 0 || reported.contains(index.name))
+            continue;
+         anyUnused = true;
+         double[] costs = withoutIndex(conn, index, probes);
+         String change = describeChange(probes, baseline, costs);
+         out.println(String.format("  %s on %s (%s): %d kB, %d table writes to maintain it; without it: %s",
+                                   index.name, index.table, String.join(", ", index.columns), index.bytes / 1024, index.tableWrites, change));
+         if (!worse(baseline, costs))
+            ddl.add(String.format("-- DROP INDEX IF EXISTS %s; -- unused, and no statement plans worse without it", index.name));
+      }
+      if (!anyUnused)
+         out.println("  none");
+
+      // missing: filter and sort columns of the scans in the baseline plans
+      out.println();
+      out.println("Missing indexes");
+      Map<String, Candidate> candidates = new LinkedHashMap<String, Candidate>();
+      for (int i = 0; i < probes.size(); i++)
+         if (plans[i] != null)
+            for (Candidate c : candidatesOf(plans[i], partitions))
+               if (!covered(c, indexes)) {
+                  Candidate known = candidates.get(c.key());
+                  if (known == null)
+                     candidates.put(c.key(), known = c);
+                  known.reasons.add(probes.get(i).name);
+               }
+      boolean anyMissing = false;
+      for (Candidate c : candidates.values()) {
+         String name = "idx_" + c.table + "_" + String.join("_", c.columns()).replace(" DESC", "").toLowerCase(Locale.ROOT);
+         String create = String.format("CREATE INDEX %s ON %s (%s);", name, c.table, String.join(", ", c.columns()));
+         double[] costs = explainWith(conn, create, probes);
+         boolean helps = false;
+         for (int i = 0; i < probes.size(); i++)
+            if (costs[i] < 0.9 * baseline[i])
+               helps = true;
+         if (!helps)
+            continue;
+         anyMissing = true;
+         Long writes = tableWrites(indexes, c.table);
+         out.println(String.format("  %s (%s) for %s; %s; %s table writes to maintain it",
+                                   c.table, String.join(", ", c.columns()), String.join(", ", c.reasons), describeChange(probes, baseline, costs),
+                                   writes == null ? "unknown" : writes.toString()));
+         ddl.add(create);
+      }
+      if (!anyMissing)
+         out.println("  none");
+   }//end analyze
+
+   // EXPLAINs every probe; a probe that can not be planned gets NaN
+   private static double[] explainAll(Connection conn, List<Probe> probes, String[] plans) throws SQLException {
+      double[] costs = new double[probes.size()];
+      for (int i = 0; i < probes.size(); i++) {
+         Probe probe = probes.get(i);
+         execute(conn, "SAVEPOINT probe");
+         StringBuilder plan = new StringBuilder();
+         try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + probe.sql)) {
+            for (int a = 0; a < probe.args.length; a++)
+               stmt.setObject(a + 1, probe.args[a]);
+            try (ResultSet rs = stmt.executeQuery()) {
+               while (rs.next())
+                  plan.append(rs.getString(1)).append('\n');
+            }
+            Matcher m = COST.matcher(plan);
+            costs[i] = m.find() ? Double.parseDouble(m.group(1)) : Double.NaN;
+            if (plans != null)
+               plans[i] = plan.toString();
+            execute(conn, "RELEASE SAVEPOINT probe");
+         } catch (SQLException e) {
+            execute(conn, "ROLLBACK TO SAVEPOINT probe");
+            costs[i] = Double.NaN;
+         }
+      }
+      return costs;
+   }//end explainAll
+
+   // costs with one index dropped; the drop is rolled back
+   private static double[] withoutIndex(Connection conn, Index index, List<Probe> probes) throws SQLException {
+      return explainWith(conn, "DROP INDEX " + index.name, probes);
+   }
+
+   // costs after one DDL statement; the statement is rolled back
+   private static double[] explainWith(Connection conn, String ddl, List<Probe> probes) throws SQLException {
+      execute(conn, "SAVEPOINT experiment");
+      try {
+         execute(conn, ddl);
+         return explainAll(conn, probes, null);
+      } finally {
+         execute(conn, "ROLLBACK TO SAVEPOINT experiment");
+      }
+   }
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      try (Statement stmt = conn.createStatement()) {
+         stmt.execute(sql);
+      }
+   }
+
+   // whether any probe plans more than 1% worse
+   private static boolean worse(double[] before, double[] after) {
+      for (int i = 0; i < before.length; i++)
+         if (after[i] > 1.01 * before[i])
+            return true;
+      return false;
+   }
+
+   // summarizes the cost changes between two runs of the probes
+   private static String describeChange(List<Probe> probes, double[] before, double[] after) {
+      double total = 0;
+      List<String> changed = new ArrayList<String>();
+      for (int i = 0; i < probes.size(); i++) {
+         if (Double.isNaN(before[i]) || Double.isNaN(after[i]))
+            continue;
+         total += after[i] - before[i];
+         if (Math.abs(after[i] - before[i]) > 0.01 * Math.max(1, before[i]))
+            changed.add(String.format("%s %.2f -> %.2f (%+.0f%%)", probes.get(i).name, before[i], after[i],
+                                      100 * (after[i] - before[i]) / Math.max(0.01, before[i])));
+      }
+      if (changed.isEmpty())
+         return "no statement changes cost";
+      return String.format("total cost %+.2f: %s", total, String.join(", ", changed));
+   }
+
+   private static List<Index> readIndexes(Connection conn) throws SQLException {
+      List<Index> indexes = new ArrayList<Index>();
+      try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(INDEXES)) {
+         while (rs.next()) {
+            Index index = new Index();
+            index.table = rs.getString(1);
+            index.name = rs.getString(2);
+            index.unique = rs.getBoolean(3);
+            index.primary = rs.getBoolean(4);
+            index.plain = rs.getBoolean(5);
+            index.scans = rs.getLong(6);
+            index.bytes = rs.getLong(7);
+            index.tableWrites = rs.getLong(8);
+            index.columns = Arrays.asList(rs.getString(9).split(","));
+            indexes.add(index);
+         }
+      }
+      return indexes;
+   }//end readIndexes
+
+   private static Map<String, String> readPartitions(Connection conn) throws SQLException {
+      Map<String, String> partitions = new HashMap<String, String>();
+      try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(PARTITIONS)) {
+         while (rs.next())
+            partitions.put(rs.getString(1), rs.getString(2));
+      }
+      return partitions;
+   }
+
+   // the index that makes a plain, non-unique one redundant, if any
+   private static Index coveringIndex(Index index, List<Index> indexes) {
+      if (index.unique || index.primary || !index.plain)
+         return null;
+      for (Index other : indexes) {
+         if (other == index || !other.table.equals(index.table) || !other.plain || other.columns.size() < index.columns.size())
+            continue;
+         if (!other.columns.subList(0, index.columns.size()).equals(index.columns))
+            continue;
+         // of two identical plain indexes, keep the one that sorts first
+         if (other.columns.size() > index.columns.size() || other.unique || other.primary || other.name.compareTo(index.name) < 0)
+            return other;
+      }
+      return null;
+   }
+
+   private static Long tableWrites(List<Index> indexes, String table) {
+      for (Index index : indexes)
+         if (index.table.equals(table))
+            return index.tableWrites;
+      return null;
+   }
+
+   // whether an existing index already serves a candidate
+   private static boolean covered(Candidate c, List<Index> indexes) {
+      int k = c.equality.size();
+      for (Index index : indexes) {
+         if (!index.table.equals(c.table) || !index.plain || index.columns.size() < k + c.sort.size())
+            continue;
+         if (!new HashSet<String>(index.columns.subList(0, k)).equals(c.equality))
+            continue;
+         boolean sorted = true;
+         for (int i = 0; i < c.sort.size(); i++)
+            if (!index.columns.get(k + i).equals(c.sort.get(i).replace(" DESC", "")))
+               sorted = false;
+         if (sorted)
+            return true;
+      }
+      return false;
+   }
+
+   // candidate indexes from the scans of a plan: equality columns, then the sort keys of the same table;
+   // a scan of a partition proposes the index on its partitioned table
+   static List<Candidate> candidatesOf(String plan, Map<String, String> partitions) {
+      Map<String, Candidate> byAlias = new LinkedHashMap<String, Candidate>();
+      Candidate current = null;
+      String currentAlias = null;
+      List<String> sortKeys = new ArrayList<String>();
+      for (String line : plan.split("\n")) {
+         Matcher scan = SCAN.matcher(line);
+         if (scan.find()) {
+            currentAlias = scan.group(2) != null ? scan.group(2) : scan.group(1);
+            current = byAlias.get(currentAlias);
+            if (current == null)
+               byAlias.put(currentAlias, current = new Candidate(partitions.getOrDefault(scan.group(1), scan.group(1))));
+            continue;
+         }
+         if (line.contains("->"))
+            current = null;
+         Matcher sort = SORT_KEY.matcher(line);
+         if (sort.find()) {
+            sortKeys.addAll(Arrays.asList(sort.group(1).split(",\\s*")));
+            continue;
+         }
+         Matcher condition = CONDITION.matcher(line);
+         if (current != null && condition.find()) {
+            Matcher eq = EQUALITY.matcher(condition.group(1));
+            while (eq.find())
+               if (eq.group(1) == null || eq.group(1).equals(currentAlias))
+                  current.equality.add(eq.group(2));
+         }
+      }
+      List<Candidate> result = new ArrayList<Candidate>();
+      for (Map.Entry<String, Candidate> e : byAlias.entrySet()) {
+         Candidate c = e.getValue();
+         if (c.equality.isEmpty())
+            continue;
+         for (String key : sortKeys) {
+            String k = key.replaceAll("[()]", "").replaceAll("::\\w+", "").trim();
+            boolean desc = k.endsWith(" DESC");
+            if (desc) k = k.substring(0, k.length() - 5).trim();
+            int dot = k.indexOf('.');
+            if (dot >= 0) {
+               String qualifier = k.substring(0, dot);
+               // a sort above the scans of several partitions names the partitioned table
+               if (!qualifier.equals(e.getKey()) && !qualifier.equals(c.table))
+                  continue;
+               k = k.substring(dot + 1);
+            } else if (byAlias.size() > 1) {
+               continue; // unqualified key of a join; its table is unknown
+            }
+            if (!c.equality.contains(k))
+               c.sort.add(desc ? k + " DESC" : k);
+         }
+         result.add(c);
+      }
+      return result;
+   }//end candidatesOf
+
+   // names of the indexes created by a script such as create_indexes.sql
+   private static List<String> indexNamesOf(File file) throws SQLException {
+      try {
+         List<String> names = new ArrayList<String>();
+         Matcher m = CREATE_INDEX.matcher(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+         while (m.find())
+            names.add(m.group(1).toLowerCase(Locale.ROOT));
+         return names;
+      } catch (IOException e) {
+         throw new SQLException("Can not read " + file + ": " + e.getMessage());
+      }
+   }
+}//end IndexAdvisor
@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The small part of JSON the HTTP service needs: writing maps, lists,
+ * strings, numbers, booleans and null, and reading request bodies into the
+ * same types (objects become LinkedHashMaps, numbers Doubles or Longs).
+ * Any other value is written as its toString(), e.g. timestamps.
+ */
+public final class Json {
+
+   private Json() {}
+
+   /**
+    * Serializes a value.
+    *
+    * @param value a Map, Iterable, String, Number, Boolean, null or any object written as a string
+    * @return the JSON text
+    */
+   public static String write(Object value) {
+      StringBuilder out = new StringBuilder();
+      write(out, value);
+      return out.toString();
+   }
+
+   private static void write(StringBuilder out, Object value) {
+      if (value == null) {
+         out.append("null");
+      } else if (value instanceof Number || value instanceof Boolean) {
+         out.append(value);
+      } else if (value instanceof Map) {
+         out.append('{');
+         Iterator<? extends Map.Entry<?, ?>> it = ((Map<?, ?>) value).entrySet().iterator();
+         while (it.hasNext()) {
+            Map.Entry<?, ?> e = it.next();
+            writeString(out, String.valueOf(e.getKey()));
+            out.append(':');
+            write(out, e.getValue());
+            if (it.hasNext()) out.append(',');
+         }
+         out.append('}');
+      } else if (value instanceof Iterable) {
+         out.append('[');
+         Iterator<?> it = ((Iterable<?>) value).iterator();
+         while (it.hasNext()) {
+            write(out, it.next());
+            if (it.hasNext()) out.append(',');
+         }
+         out.append(']');
+      } else {
+         writeString(out, value.toString());
+      }
+   }
+
+   private static void writeString(StringBuilder out, String s) {
+      out.append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+               else out.append(c);
+         }
+      }
+      out.append('"');
+   }
+
+   /**
+    * Parses a JSON document.
+    *
+    * @param text the JSON text
+    * @return the parsed value
+    * @throws java.lang.IllegalArgumentException when the text is not valid JSON
+    */
+   public static Object parse(String text) {
+      Parser p = new Parser(text);
+      Object value = p.value();
+      p.skipSpace();
+      if (p.pos != text.length())
+         throw p.error("Unexpected trailing characters");
+      return value;
+   }
+
+   /**
+    * Parses a JSON object, e.g. a request body.
+    *
+    * @param text the JSON text; empty text is an empty object
+    * @return the object's members
+    * @throws java.lang.IllegalArgumentException when the text is not a JSON object
+    */
+   @SuppressWarnings("unchecked")
+   public static Map<String, Object> parseObject(String text) {
+      if (text.trim().isEmpty())
+         return new LinkedHashMap<String, Object>();
+      Object value = parse(text);
+      if (!(value instanceof Map))
+         throw new IllegalArgumentException("Expected a JSON object");
+      return (Map<String, Object>) value;
+   }
+
+   private static final class Parser {
+      final String s;
+      int pos = 0;
+
+      Parser(String s) {
+         this.s = s;
+      }
+
+      Object value() {
+         skipSpace();
+         if (pos >= s.length()) throw error("Unexpected end of input");
+         char c = s.charAt(pos);
+         if (c == '{') return object();
+         if (c == '[') return array();
+         if (c == '"') return string();
+         if (s.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+         if (s.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+         if (s.startsWith("null", pos)) { pos += 4; return null; }
+         return number();
+      }
+
+      Map<String, Object> object() {
+         Map<String, Object> map = new LinkedHashMap<String, Object>();
+         pos++; // {
+         skipSpace();
+         if (peek() == '}') { pos++; return map; }
+         while (true) {
+            skipSpace();
+            if (peek() != '"') throw error("Expected a member name");
+            String key = string();
+            skipSpace();
+            expect(':');
+            map.put(key, value());
+            skipSpace();
+            if (peek() == ',') { pos++; continue; }
+            expect('}');
+            return map;
+         }
+      }
+
+      List<Object> array() {
+         List<Object> list = new ArrayList<Object>();
+         pos++; // [
+         skipSpace();
+         if (peek() == ']') { pos++; return list; }
+         while (true) {
+            list.add(value());
+            skipSpace();
+            if (peek() == ',') { pos++; continue; }
+            expect(']');
+            return list;
+         }
+      }
+
+      String string() {
+         StringBuilder out = new StringBuilder();
+         pos++; // opening quote
+         while (pos < s.length()) {
+            char c = s.charAt(pos++);
+            if (c == '"') return out.toString();
+            if (c != '\\') { out.append(c); continue; }
+            if (pos >= s.length()) break;
+            char e = s.charAt(pos++);
+            switch (e) {
+               case 'b': out.append('\b'); break;
+               case 'f': out.append('\f'); break;
+               case 'n': out.append('\n'); break;
+               case 'r': out.append('\r'); break;
+               case 't': out.append('\t'); break;
+               case 'u':
+                  if (pos + 4 > s.length()) throw error("Bad unicode escape");
+                  out.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                  pos += 4;
+                  break;
+               default: out.append(e);
+            }
+         }
+         throw error("Unterminated string");
+      }
+
+      Number number() {
+         int start = pos;
+         while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+         String n = s.substring(start, pos);
+         if (n.isEmpty()) throw error("Unexpected character '" + s.charAt(start) + "'");
+         try {
+            if (n.indexOf('.') < 0 && n.indexOf('e') < 0 && n.indexOf('E') < 0)
+               return Long.parseLong(n);
+            return Double.parseDouble(n);
+         } catch (NumberFormatException e) {
+            throw error("Bad number " + n);
+         }
+      }
+
+      char peek() {
+         return pos < s.length() ? s.charAt(pos) : '\0';
+      }
+
+      void expect(char c) {
+         if (peek() != c) throw error("Expected '" + c + "'");
+         pos++;
+      }
+
+      void skipSpace() {
+         while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+      }
+
+      IllegalArgumentException error(String msg) {
+         return new IllegalArgumentException(msg + " at position " + pos);
+      }
+   }
+}//end Json
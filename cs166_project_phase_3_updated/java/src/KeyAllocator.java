@@ -0,0 +1,105 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out keys of one Postgres sequence from blocks reserved ahead of
+ * time, hi/lo style, so inserts do not call nextval() for every row.
+ *
+ * A block is reserved with a single SELECT nextval(..) FROM
+ * generate_series(1, blockSize). Keys are taken from the current block with
+ * an atomic counter; once a block is half used the next one is fetched in
+ * the background. Keys that are reserved but never used (e.g. on shutdown)
+ * leave gaps, just as rolled back nextval() calls already do.
+ */
+public class KeyAllocator {
+
+   // a reserved block of keys and the position of the next free one
+   private static final class Block {
+      final int[] keys;
+      final AtomicInteger next = new AtomicInteger();
+
+      Block(int[] keys) {
+         this.keys = keys;
+      }
+   }
+
+   private final Amazon esql;
+   private final String sequence;
+   private final int blockSize;
+   private final ExecutorService background;
+   private final AtomicReference<Block> current = new AtomicReference<Block>(new Block(new int[0]));
+   private Future<Block> prefetch = null; // guarded by this
+
+   /**
+    * @param esql the Amazon instance whose connections are used
+    * @param sequence the sequence name, e.g. orders_orderNumber_seq
+    * @param blockSize number of keys reserved per round trip
+    * @param background runs the prefetch of the next block
+    */
+   public KeyAllocator(Amazon esql, String sequence, int blockSize, ExecutorService background) {
+      if (!sequence.matches("[A-Za-z_][A-Za-z0-9_]*"))
+         throw new IllegalArgumentException("Invalid sequence name: " + sequence);
+      this.esql = esql;
+      this.sequence = sequence;
+      this.blockSize = Math.max(1, blockSize);
+      this.background = background;
+   }
+
+   /**
+    * Returns the next unused key.
+    *
+    * @return a key no other caller has received
+    * @throws java.sql.SQLException when a new block can not be reserved
+    */
+   public int next() throws SQLException {
+      while (true) {
+         Block block = current.get();
+         int i = block.next.getAndIncrement();
+         if (i < block.keys.length) {
+            if (i == block.keys.length / 2)
+               startPrefetch();
+            return block.keys[i];
+         }
+         refill(block);
+      }
+   }//end next
+
+   // replaces an exhausted block, preferring the one fetched in the background
+   private synchronized void refill(Block exhausted) throws SQLException {
+      if (current.get() != exhausted)
+         return; // another thread already refilled
+      Block block = null;
+      if (prefetch != null) {
+         try {
+            block = prefetch.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while reserving keys for " + sequence);
+         } catch (ExecutionException e) {
+            // fall through and fetch synchronously
+         } finally {
+            prefetch = null;
+         }
+      }
+      current.set(block != null ? block : fetch());
+   }
+
+   private synchronized void startPrefetch() {
+      if (prefetch == null)
+         prefetch = background.submit(this::fetch);
+   }
+
+   private Block fetch() throws SQLException {
+      List<Integer> keys = esql.executeQueryForList(
+         "SELECT nextval('" + sequence + "') FROM generate_series(1, ?)", rs -> rs.getInt(1), blockSize);
+      int[] block = new int[keys.size()];
+      for (int i = 0; i < block.length; i++)
+         block[i] = keys.get(i);
+      return new Block(block);
+   }
+}//end KeyAllocator
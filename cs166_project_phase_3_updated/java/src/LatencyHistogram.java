@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: values below 64 ns
+ * get a bucket each, above that every power of two is split into 32
+ * buckets, so percentiles are accurate to about 3% over the whole long
+ * range with a fixed 15 KB footprint. Recording is one atomic increment.
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;          // 32
+   private static final int LINEAR = SUB_BUCKETS * 2;             // values 0..63 are exact
+   private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BITS) + LINEAR;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records one value.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   public void record(long nanos) {
+      long v = Math.max(0, nanos);
+      counts.incrementAndGet(bucketOf(v));
+      count.incrementAndGet();
+      sum.addAndGet(v);
+      long m;
+      while (v > (m = max.get()) && !max.compareAndSet(m, v)) { }
+   }
+
+   static int bucketOf(long v) {
+      if (v < LINEAR)
+         return (int) v;
+      int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+      return SUB_BUCKETS * shift + (int) (v >>> shift);
+   }
+
+   // smallest value of a bucket
+   static long lowerBound(int bucket) {
+      if (bucket < LINEAR)
+         return bucket;
+      int shift = bucket / SUB_BUCKETS - 1;
+      return (long) (bucket - SUB_BUCKETS * shift) << shift;
+   }
+
+   // largest value of a bucket
+   static long upperBound(int bucket) {
+      return bucket + 1 < BUCKETS ? lowerBound(bucket + 1) - 1 : Long.MAX_VALUE;
+   }
+
+   public long getCount() { return count.get(); }
+   public long getMax() { return max.get(); }
+
+   /** @return the mean in nanoseconds, 0 when empty */
+   public double getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : (double) sum.get() / n;
+   }
+
+   /**
+    * Returns a percentile, as the upper bound of the bucket holding it (never
+    * more than the largest recorded value).
+    *
+    * @param p the fraction, e.g. 0.99
+    * @return the latency in nanoseconds, 0 when empty
+    */
+   public long percentile(double p) {
+      long n = 0;
+      long[] snapshot = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++)
+         n += snapshot[i] = counts.get(i);
+      if (n == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(p * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += snapshot[i];
+         if (seen >= rank)
+            return Math.min(upperBound(i), max.get());
+      }
+      return max.get();
+   }
+
+   /**
+    * Clears all recorded values. Values recorded concurrently with the
+    * reset may be partly kept.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; i++)
+         counts.set(i, 0);
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+   }
+}//end LatencyHistogram
@@ -0,0 +1,250 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the menu mix against a database with simulated users and reports
+ * throughput and latency per operation. Users, stores and products are drawn
+ * from the data/*.csv files the database was loaded from.
+ *
+ *   browse  a customer lists the stores within 30 miles and the products of the nearest one
+ *   order   a customer orders one unit of a random product of a random store
+ *   report  a manager views the popular products, popular customers and recent orders of a store
+ *
+ * Orders change stock, so run it against a scratch copy of the database.
+ * The stock of every product is read before the run and after it, and the
+ * units of the successful orders are counted per product. A product is
+ * oversold if more units were ordered than it had, and its stock is off if
+ * the final stock plus the ordered units does not add up to the first (a
+ * lost update, or another client changed the stock meanwhile).
+ */
+public class LoadTest {
+
+   static final String[] OPERATIONS = { "browse", "order", "report" };
+
+   // a customer from users.csv
+   private static final class SimUser {
+      final int id;
+      final double latitude;
+      final double longitude;
+
+      SimUser(int id, double latitude, double longitude) {
+         this.id = id;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+   }
+
+   private final Amazon esql;
+   private final int threads;
+   private final long rampUpMs;
+   private final long durationMs;
+   private final long thinkMs;
+   private final int[] mix; // cumulative weights, in OPERATIONS order
+
+   private final List<SimUser> customers = new ArrayList<SimUser>();
+   private final List<Integer> stores = new ArrayList<Integer>();
+   private final List<Object[]> products = new ArrayList<Object[]>();  // {storeID, productName}
+
+   private final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+   private final AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+   private final AtomicLong rejected = new AtomicLong();
+   // units of the successful orders, by storeID and trimmed productName
+   private final Map<String, AtomicLong> ordered = new ConcurrentHashMap<String, AtomicLong>();
+
+   /**
+    * @param esql the Amazon instance to drive; its pool bounds real concurrency
+    * @param dataDir directory with users.csv, stores.csv and products.csv
+    * @param threads number of simulated users running at once
+    * @param rampUpMs time over which the simulated users are started
+    * @param durationMs length of the run, including the ramp-up
+    * @param thinkMs pause between the operations of one simulated user
+    * @param mix weights of browse, order and report, e.g. "browse:70,order:20,report:10"
+    * @throws java.io.IOException when a csv file can not be read
+    */
+   public LoadTest(Amazon esql, File dataDir, int threads, long rampUpMs, long durationMs, long thinkMs, String mix) throws IOException {
+      if (threads < 1 || durationMs <= 0)
+         throw new IllegalArgumentException("threads and duration must be positive");
+      this.esql = esql;
+      this.threads = threads;
+      this.rampUpMs = Math.max(0, rampUpMs);
+      this.durationMs = durationMs;
+      this.thinkMs = Math.max(0, thinkMs);
+      this.mix = parseMix(mix);
+      for (int i = 0; i < OPERATIONS.length; i++) {
+         latency[i] = new LatencyHistogram();
+         errors[i] = new AtomicLong();
+      }
+
+      for (List<String> row : readCsv(new File(dataDir, "users.csv")))
+         if ("customer".equalsIgnoreCase(row.get(5).trim()))
+            customers.add(new SimUser(Integer.parseInt(row.get(0)), Double.parseDouble(row.get(3)), Double.parseDouble(row.get(4))));
+      for (List<String> row : readCsv(new File(dataDir, "stores.csv")))
+         stores.add(Integer.parseInt(row.get(0)));
+      for (List<String> row : readCsv(new File(dataDir, "products.csv")))
+         products.add(new Object[] { Integer.parseInt(row.get(0)), row.get(1).trim() });
+      if (customers.isEmpty() || stores.isEmpty() || products.isEmpty())
+         throw new IllegalArgumentException("Need customers, stores and products in " + dataDir);
+   }
+
+   // "browse:70,order:20,report:10" -> cumulative weights
+   private static int[] parseMix(String mix) {
+      Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+      for (String part : mix.split(",")) {
+         String[] kv = part.trim().split(":");
+         if (kv.length != 2)
+            throw new IllegalArgumentException("Bad mix entry: " + part);
+         weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+      }
+      int[] cumulative = new int[OPERATIONS.length];
+      int total = 0;
+      for (int i = 0; i < OPERATIONS.length; i++) {
+         Integer w = weights.remove(OPERATIONS[i]);
+         total += w == null ? 0 : Math.max(0, w);
+         cumulative[i] = total;
+      }
+      if (!weights.isEmpty())
+         throw new IllegalArgumentException("Unknown operations in mix: " + weights.keySet());
+      if (total == 0)
+         throw new IllegalArgumentException("The mix has no operations");
+      return cumulative;
+   }
+
+   private static List<List<String>> readCsv(File csv) throws IOException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      try (BufferedReader reader = new BufferedReader(new FileReader(csv))) {
+         reader.readLine(); // header
+         for (String line; (line = reader.readLine()) != null; )
+            if (!line.isEmpty())
+               rows.add(BulkLoader.parseCsvLine(line));
+      }
+      return rows;
+   }
+
+   /**
+    * Runs the test and prints the report.
+    *
+    * @throws java.lang.Exception when the test can not be run
+    */
+   public void run() throws Exception {
+      OrderEngine orders = esql.getOrderEngine();
+      long placedBefore = orders.getPlaced(), retriesBefore = orders.getRetries(), failedBefore = orders.getFailed();
+      Map<String, Long> stockBefore = readStock();
+      final long start = System.currentTimeMillis();
+      final long deadline = start + durationMs;
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+         final long startAt = start + rampUpMs * t / threads;
+         workers[t] = new Thread(() -> simulate(startAt, deadline), "load-" + t);
+         workers[t].start();
+      }
+      for (Thread w : workers) w.join();
+      double seconds = (System.currentTimeMillis() - start) / 1e3;
+
+      long total = 0;
+      System.out.println(String.format("%d users, %.1fs ramp-up, %.1fs run", threads, rampUpMs / 1e3, seconds));
+      System.out.println(String.format("%-8s%10s%8s%10s%10s%10s%10s%10s", "op", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+      for (int i = 0; i < OPERATIONS.length; i++) {
+         LatencyHistogram h = latency[i];
+         total += h.getCount();
+         System.out.println(String.format("%-8s%10d%8d%10.1f%10.2f%10.2f%10.2f%10.2f", OPERATIONS[i], h.getCount(), errors[i].get(),
+            h.getCount() / seconds, h.percentile(0.50) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.getMax() / 1e6));
+      }
+      System.out.println(String.format("total %.1f ops/s", total / seconds));
+      System.out.println(String.format("orders placed %d, rejected (out of stock) %d, retries %d, failed %d",
+         orders.getPlaced() - placedBefore, rejected.get(), orders.getRetries() - retriesBefore, orders.getFailed() - failedBefore));
+      Map<String, Long> stockAfter = readStock();
+      int oversold = 0, off = 0;
+      for (Map.Entry<String, AtomicLong> sold : ordered.entrySet()) {
+         long before = stockBefore.getOrDefault(sold.getKey(), 0L), after = stockAfter.getOrDefault(sold.getKey(), 0L);
+         if (sold.getValue().get() > before) {
+            oversold++;
+            System.out.println(String.format("oversold: %s, %d in stock, %d ordered", sold.getKey().replace('\t', ' '), before, sold.getValue().get()));
+         }
+         if (after + sold.getValue().get() != before)
+            off++;
+      }
+      System.out.println(String.format("oversold products: %d, products whose stock does not add up: %d", oversold, off));
+      System.out.println("product listings: " + esql.productCacheStatus());
+      if (esql.getReplicaRouter() != null)
+         System.out.print(esql.getReplicaRouter().status());
+   }//end run
+
+   // stock of every product by storeID and trimmed productName, read on the primary
+   private Map<String, Long> readStock() throws SQLException {
+      Map<String, Long> stock = new HashMap<String, Long>();
+      for (Product product : esql.withConnection(conn -> esql.executeQueryForList("SELECT * FROM Product", Product.MAPPER)))
+         stock.put(product.getStoreId() + "\t" + product.getProductName().trim(), (long) product.getNumberOfUnits());
+      return stock;
+   }
+
+   // one simulated user: waits for its start time, then runs operations until the deadline
+   private void simulate(long startAt, long deadline) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      try {
+         long wait = startAt - System.currentTimeMillis();
+         if (wait > 0) Thread.sleep(wait);
+         while (System.currentTimeMillis() < deadline) {
+            int pick = random.nextInt(mix[mix.length - 1]);
+            int op = 0;
+            while (pick >= mix[op]) op++;
+            StatementMetrics.setOperation("load-test " + OPERATIONS[op]);
+            long t0 = System.nanoTime();
+            try {
+               run(op, random);
+               latency[op].record(System.nanoTime() - t0);
+            } catch (Exception e) {
+               latency[op].record(System.nanoTime() - t0);
+               errors[op].incrementAndGet();
+            }
+            if (thinkMs > 0) Thread.sleep(thinkMs);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void run(int op, ThreadLocalRandom random) throws SQLException {
+      switch (OPERATIONS[op]) {
+         case "browse": {
+            SimUser user = customers.get(random.nextInt(customers.size()));
+            ReplicaRouter.setUser(user.id);
+            esql.getStoreIndex().withinRadius(user.latitude, user.longitude, 30);
+            List<SpatialIndex.Neighbor<Store>> nearest = esql.getStoreIndex().nearest(user.latitude, user.longitude, 1);
+            if (!nearest.isEmpty())
+               esql.productsOf(nearest.get(0).id);
+            break;
+         }
+         case "order": {
+            SimUser user = customers.get(random.nextInt(customers.size()));
+            ReplicaRouter.setUser(user.id);
+            Object[] product = products.get(random.nextInt(products.size()));
+            if (esql.getOrderEngine().placeOrder(user.id, (Integer) product[0], (String) product[1], 1) < 0)
+               rejected.incrementAndGet();
+            else
+               ordered.computeIfAbsent(product[0] + "\t" + product[1], key -> new AtomicLong()).incrementAndGet();
+            break;
+         }
+         case "report": {
+            int storeId = stores.get(random.nextInt(stores.size()));
+            ReplicaRouter.setUser(null);
+            esql.topProducts(storeId, 5);
+            esql.namesOf(esql.topCustomers(storeId, 5));
+            esql.recentOrdersOfStore(storeId);
+            break;
+         }
+         default:
+            throw new IllegalStateException(OPERATIONS[op]);
+      }
+   }
+}//end LoadTest
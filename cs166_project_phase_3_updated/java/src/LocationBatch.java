@@ -0,0 +1,64 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Column-oriented container for (id, latitude, longitude) rows, backed by
+ * primitive arrays. Proximity lookups read thousands of these rows; keeping
+ * them as ints and doubles avoids a String per value and the parsing that
+ * used to follow.
+ */
+public final class LocationBatch {
+
+   private int[] ids;
+   private double[] latitudes;
+   private double[] longitudes;
+   private int size = 0;
+
+   public LocationBatch(int capacity) {
+      capacity = Math.max(capacity, 4);
+      ids = new int[capacity];
+      latitudes = new double[capacity];
+      longitudes = new double[capacity];
+   }
+
+   /**
+    * Reads every row of a result set whose first three columns are the id,
+    * latitude and longitude.
+    *
+    * @param rs the result set positioned before the first row
+    * @return the rows as a batch
+    * @throws java.sql.SQLException when the rows can not be read
+    */
+   public static LocationBatch read(ResultSet rs) throws SQLException {
+      LocationBatch batch = new LocationBatch(16);
+      while (rs.next())
+         batch.add(rs.getInt(1), rs.getDouble(2), rs.getDouble(3));
+      return batch;
+   }
+
+   public void add(int id, double latitude, double longitude) {
+      if (size == ids.length) {
+         int capacity = size * 2;
+         ids = Arrays.copyOf(ids, capacity);
+         latitudes = Arrays.copyOf(latitudes, capacity);
+         longitudes = Arrays.copyOf(longitudes, capacity);
+      }
+      ids[size] = id;
+      latitudes[size] = latitude;
+      longitudes[size] = longitude;
+      size++;
+   }
+
+   public int size() { return size; }
+   public int id(int i) { return ids[i]; }
+   public double latitude(int i) { return latitudes[i]; }
+   public double longitude(int i) { return longitudes[i]; }
+
+   // returns the position of an id, or -1
+   public int indexOf(int id) {
+      for (int i = 0; i < size; i++)
+         if (ids[i] == id) return i;
+      return -1;
+   }
+}//end LocationBatch
@@ -0,0 +1,39 @@
+import java.sql.Timestamp;
+
+/**
+ * One row of the Orders table.
+ */
+public final class Order {
+
+   /** Maps a row containing the Orders columns. */
+   public static final Amazon.RowMapper<Order> MAPPER = rs -> new Order(
+      rs.getInt("orderNumber"),
+      rs.getInt("customerID"),
+      rs.getInt("storeID"),
+      rs.getString("productName").trim(),
+      rs.getInt("unitsOrdered"),
+      rs.getTimestamp("orderTime"));
+
+   private final int orderNumber;
+   private final int customerId;
+   private final int storeId;
+   private final String productName;
+   private final int unitsOrdered;
+   private final Timestamp orderTime;
+
+   public Order(int orderNumber, int customerId, int storeId, String productName, int unitsOrdered, Timestamp orderTime) {
+      this.orderNumber = orderNumber;
+      this.customerId = customerId;
+      this.storeId = storeId;
+      this.productName = productName;
+      this.unitsOrdered = unitsOrdered;
+      this.orderTime = orderTime;
+   }
+
+   public int getOrderNumber() { return orderNumber; }
+   public int getCustomerId() { return customerId; }
+   public int getStoreId() { return storeId; }
+   public String getProductName() { return productName; }
+   public int getUnitsOrdered() { return unitsOrdered; }
+   public Timestamp getOrderTime() { return orderTime; }
+}//end Order
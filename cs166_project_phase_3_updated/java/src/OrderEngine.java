@@ -0,0 +1,341 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Places orders atomically. The stock check, the stock decrement, the
+ * Orders insert and the sales summary counters are one statement:
+ *
+ *   WITH sold AS (UPDATE Product SET numberOfUnits = numberOfUnits - n
+ *                 WHERE ... AND numberOfUnits >= n RETURNING ...),
+ *   placed AS (INSERT INTO Orders ... SELECT ... FROM sold RETURNING ...),
+ *   counted AS (INSERT INTO ProductSales ... ON CONFLICT DO UPDATE ...),
+ *   bought AS (INSERT INTO CustomerPurchases ... ON CONFLICT DO UPDATE ...)
+ *   SELECT orderNumber FROM placed
+ *
+ * so concurrent customers can never oversell a product (the conditional
+ * update re-checks the stock after waiting for a competing row lock) and an
+ * order costs a single round trip. Order numbers come from the
+ * Amazon key allocator. Serialization failures and deadlocks are
+ * retried with jittered exponential backoff.
+ *
+ * A multi-line Cart is checked out in one transaction of two statements
+ * over a VALUES list of its lines: one locks the stock rows in (storeID,
+ * productName) order, the other is the order statement above for every
+ * line at once. A bulk purchase therefore costs the same three round trips
+ * (with the commit) whatever its size; JDBC batches would not, since the
+ * bundled pg73 driver sends every batch entry on its own.
+ */
+public class OrderEngine {
+
+   static final String PLACE_ORDER =
+      "WITH sold AS (UPDATE Product SET numberOfUnits = numberOfUnits - ? " +
+      "WHERE storeID = ? AND productName = ? AND numberOfUnits >= ? RETURNING storeID, productName), " +
+      "placed AS (INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) " +
+      "SELECT ?, ?, storeID, productName, ?, ? FROM sold RETURNING orderNumber, customerID, storeID, productName, unitsOrdered), " +
+      "counted AS (INSERT INTO ProductSales (storeID, productName, unitsSold) " +
+      "SELECT storeID, productName, unitsOrdered FROM placed " +
+      "ON CONFLICT (storeID, productName) DO UPDATE SET unitsSold = ProductSales.unitsSold + EXCLUDED.unitsSold), " +
+      "bought AS (INSERT INTO CustomerPurchases (storeID, customerID, unitsPurchased) " +
+      "SELECT storeID, customerID, unitsOrdered FROM placed " +
+      "ON CONFLICT (storeID, customerID) DO UPDATE SET unitsPurchased = CustomerPurchases.unitsPurchased + EXCLUDED.unitsPurchased) " +
+      "SELECT orderNumber FROM placed";
+
+   /**
+    * The statement that locks the stock rows of a checkout in lock order.
+    *
+    * @param lines number of cart lines, each bound as (storeID, productName)
+    * @return the SQL text
+    */
+   static String lockStock(int lines) {
+      return "SELECT P.storeID FROM Product P, (VALUES " + values("(?::integer, ?::char(30))", lines) + ") AS L (storeID, productName) " +
+             "WHERE P.storeID = L.storeID AND P.productName = L.productName ORDER BY P.storeID, P.productName FOR UPDATE OF P";
+   }
+
+   /**
+    * The statement that orders every line of a checkout whose store has
+    * enough units and returns the numbers of those lines.
+    *
+    * @param lines number of cart lines, each bound as (line number, orderNumber, storeID, productName, units),
+    *              followed by customerID and orderTime
+    * @return the SQL text
+    */
+   static String checkoutLines(int lines) {
+      return "WITH lines (n, orderNumber, storeID, productName, units) AS (VALUES " +
+             values("(?::integer, ?::integer, ?::integer, ?::char(30), ?::integer)", lines) + "), " +
+             "sold AS (UPDATE Product P SET numberOfUnits = P.numberOfUnits - L.units FROM lines L " +
+             "WHERE P.storeID = L.storeID AND P.productName = L.productName AND P.numberOfUnits >= L.units " +
+             "RETURNING L.n, L.orderNumber, L.storeID, L.productName, L.units), " +
+             "placed AS (INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) " +
+             "SELECT orderNumber, ?, storeID, productName, units, ? FROM sold RETURNING customerID, storeID, productName, unitsOrdered), " +
+             "counted AS (INSERT INTO ProductSales (storeID, productName, unitsSold) " +
+             "SELECT storeID, productName, unitsOrdered FROM placed " +
+             "ON CONFLICT (storeID, productName) DO UPDATE SET unitsSold = ProductSales.unitsSold + EXCLUDED.unitsSold), " +
+             // one row per store, since an upsert may not touch a row twice
+             "bought AS (INSERT INTO CustomerPurchases (storeID, customerID, unitsPurchased) " +
+             "SELECT storeID, customerID, SUM(unitsOrdered) FROM placed GROUP BY storeID, customerID " +
+             "ON CONFLICT (storeID, customerID) DO UPDATE SET unitsPurchased = CustomerPurchases.unitsPurchased + EXCLUDED.unitsPurchased) " +
+             "SELECT n FROM sold";
+   }
+
+   /**
+    * Repeats a parenthesized row of placeholders for a VALUES list.
+    *
+    * @param row the row, e.g. "(?, ?)"
+    * @param rows number of rows
+    * @return the rows separated by commas
+    */
+   static String values(String row, int rows) {
+      StringBuilder sql = new StringBuilder(rows * (row.length() + 2));
+      for (int i = 0; i < rows; i++)
+         sql.append(i == 0 ? "" : ", ").append(row);
+      return sql.toString();
+   }
+
+   private final Amazon esql;
+   private final int maxRetries;
+   private final long baseBackoffMs;
+
+   private final AtomicLong placed = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+   private final AtomicLong retries = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+
+   /**
+    * @param esql the Amazon instance whose connections are used
+    * @param maxRetries how often a serialization failure or deadlock is retried
+    * @param baseBackoffMs backoff before the first retry; doubled on every retry
+    */
+   public OrderEngine(Amazon esql, int maxRetries, long baseBackoffMs) {
+      this.esql = esql;
+      this.maxRetries = maxRetries;
+      this.baseBackoffMs = baseBackoffMs;
+   }
+
+   /**
+    * Places one order.
+    *
+    * @param customerId the ordering user
+    * @param storeId the store the product is bought from
+    * @param productName the product name
+    * @param units number of units ordered
+    * @return the new order number, or -1 if the store does not have enough units
+    * @throws java.sql.SQLException when the order fails for another reason or retries run out
+    */
+   public int placeOrder(int customerId, int storeId, String productName, int units) throws SQLException {
+      if (units <= 0)
+         throw new IllegalArgumentException("Number of units must be positive");
+      int key = esql.nextKey(Amazon.ORDER_SEQ);
+      for (int attempt = 0; ; attempt++) {
+         try {
+            Timestamp orderTime = Amazon.now();
+            // a write that returns rows: pinned, so it runs on the primary whatever the read routing says
+            Integer orderNumber = esql.withConnection(conn -> esql.executeQueryForObject(PLACE_ORDER, rs -> rs.getInt(1),
+               units, storeId, productName, units, key, customerId, units, orderTime));
+            if (orderNumber == null) {
+               rejected.incrementAndGet();
+               return -1;
+            }
+            placed.incrementAndGet();
+            esql.recordOrder(new Order(orderNumber, customerId, storeId, productName, units, orderTime));
+            return orderNumber;
+         } catch (SQLException e) {
+            if (!isRetryable(e) || attempt >= maxRetries) {
+               failed.incrementAndGet();
+               throw e;
+            }
+            retries.incrementAndGet();
+            backoff(attempt);
+         }
+      }
+   }//end placeOrder
+
+   /**
+    * Checks out a whole cart in one transaction: either every line is
+    * ordered or none is. Stock rows are decremented in (storeID,
+    * productName) order, the same order every session uses, so two
+    * overlapping checkouts wait on each other instead of deadlocking.
+    *
+    * @param customerId the ordering user
+    * @param cart the lines to order; cleared on success
+    * @return null on success, otherwise the first line the store did not have enough units for
+    * @throws java.sql.SQLException when the checkout fails for another reason or retries run out
+    */
+   public Cart.Line checkout(int customerId, Cart cart) throws SQLException {
+      if (cart.isEmpty())
+         return null;
+      final List<Cart.Line> lines = cart.inLockOrder();
+      // keys are taken before the transaction starts and reused by retries
+      final int[] keys = new int[lines.size()];
+      for (int i = 0; i < keys.length; i++)
+         keys[i] = esql.nextKey(Amazon.ORDER_SEQ);
+      for (int attempt = 0; ; attempt++) {
+         try {
+            final Timestamp orderTime = Amazon.now();
+            Cart.Line shortLine = esql.withConnection(conn -> checkout(conn, customerId, lines, keys, orderTime));
+            if (shortLine != null) {
+               rejected.incrementAndGet();
+               return shortLine;
+            }
+            placed.addAndGet(lines.size());
+            for (int i = 0; i < keys.length; i++) {
+               Cart.Line line = lines.get(i);
+               esql.recordOrder(new Order(keys[i], customerId, line.getStoreId(), line.getProductName(), line.getUnits(), orderTime));
+            }
+            cart.clear();
+            return null;
+         } catch (SQLException e) {
+            if (!isRetryable(e) || attempt >= maxRetries) {
+               failed.incrementAndGet();
+               throw e;
+            }
+            retries.incrementAndGet();
+            backoff(attempt);
+         }
+      }
+   }//end checkout
+
+   // one checkout attempt on a pinned connection
+   private Cart.Line checkout(Connection conn, int customerId, List<Cart.Line> lines, int[] keys,
+                              Timestamp orderTime) throws SQLException {
+      Object[] lockArgs = new Object[2 * lines.size()];
+      Object[] orderArgs = new Object[5 * lines.size() + 2];
+      for (int i = 0; i < lines.size(); i++) {
+         Cart.Line line = lines.get(i);
+         lockArgs[2 * i] = line.getStoreId();
+         lockArgs[2 * i + 1] = line.getProductName();
+         orderArgs[5 * i] = i;
+         orderArgs[5 * i + 1] = keys[i];
+         orderArgs[5 * i + 2] = line.getStoreId();
+         orderArgs[5 * i + 3] = line.getProductName();
+         orderArgs[5 * i + 4] = line.getUnits();
+      }
+      orderArgs[5 * lines.size()] = customerId;
+      orderArgs[5 * lines.size() + 1] = orderTime;
+
+      conn.setAutoCommit(false);
+      boolean committed = false;
+      try {
+         esql.executeQueryForList(lockStock(lines.size()), rs -> rs.getInt(1), lockArgs);
+         Set<Integer> sold = new HashSet<Integer>(esql.executeQueryForList(checkoutLines(lines.size()), rs -> rs.getInt(1), orderArgs));
+         for (int i = 0; i < lines.size(); i++) {
+            if (!sold.contains(i))
+               return lines.get(i); // rolled back below, so the other lines are not ordered either
+         }
+         conn.commit();
+         committed = true;
+         return null;
+      } finally {
+         if (!committed)
+            conn.rollback();
+         conn.setAutoCommit(true);
+      }
+   }//end checkout
+
+   /**
+    * Whether a failed statement may succeed when simply run again:
+    * serialization_failure (40001) and deadlock_detected (40P01). Old
+    * drivers do not report SQLSTATE, so the server message is checked too.
+    * A failed executeBatch throws a BatchUpdateException that carries the
+    * server error as its next exception, so the whole chain is checked.
+    *
+    * @param e the failure
+    * @return true if the transaction should be retried
+    */
+   public static boolean isRetryable(SQLException e) {
+      for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+         String state = cause.getSQLState();
+         if ("40001".equals(state) || "40P01".equals(state))
+            return true;
+         String msg = cause.getMessage();
+         if (msg != null && (msg.contains("could not serialize") || msg.contains("deadlock detected")))
+            return true;
+      }
+      return false;
+   }
+
+   // sleeps baseBackoffMs * 2^attempt, with full jitter
+   private void backoff(int attempt) throws SQLException {
+      long cap = baseBackoffMs << Math.min(attempt, 10);
+      try {
+         Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying order");
+      }
+   }
+
+   public long getPlaced() { return placed.get(); }
+   public long getRejected() { return rejected.get(); }
+   public long getRetries() { return retries.get(); }
+   public long getFailed() { return failed.get(); }
+
+   /**
+    * Hammers one (storeID, productName) with concurrent one-unit orders and
+    * prints throughput, latency percentiles and the stock consistency check.
+    *
+    * @param esql the Amazon instance to use; its pool bounds real concurrency
+    * @param customerId the customer placing every order
+    * @param storeId the hot store
+    * @param productName the hot product
+    * @param threads number of concurrent customers
+    * @param ordersPerThread orders placed by each customer
+    * @throws java.lang.Exception when the test can not be run
+    */
+   public static void contentionTest(Amazon esql, int customerId, int storeId, String productName,
+                                     int threads, int ordersPerThread) throws Exception {
+      if (threads < 1 || ordersPerThread < 1)
+         throw new IllegalArgumentException("threads and ordersPerThread must be positive");
+      final OrderEngine engine = new OrderEngine(esql, 10, 2);
+      Integer before = esql.withConnection(conn -> esql.executeQueryForObject("SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?",
+                                                                              rs -> rs.getInt(1), storeId, productName));
+      if (before == null) {
+         System.out.println(String.format("Store %d does not have '%s'", storeId, productName));
+         return;
+      }
+
+      final long[] latencies = new long[threads * ordersPerThread];
+      Thread[] workers = new Thread[threads];
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+         final int offset = t * ordersPerThread;
+         workers[t] = new Thread(() -> {
+            for (int i = 0; i < ordersPerThread; i++) {
+               long t0 = System.nanoTime();
+               try {
+                  engine.placeOrder(customerId, storeId, productName, 1);
+               } catch (SQLException e) {
+                  System.err.println(e.getMessage());
+               }
+               latencies[offset + i] = System.nanoTime() - t0;
+            }
+         });
+         workers[t].start();
+      }
+      for (Thread w : workers) w.join();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      Integer after = esql.withConnection(conn -> esql.executeQueryForObject("SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?",
+                                                                             rs -> rs.getInt(1), storeId, productName));
+      Arrays.sort(latencies);
+      System.out.println(String.format("%d threads x %d orders on store %d '%s' in %.2fs", threads, ordersPerThread, storeId, productName, seconds));
+      System.out.println(String.format("placed %d, rejected (out of stock) %d, retries %d, failed %d",
+                                       engine.getPlaced(), engine.getRejected(), engine.getRetries(), engine.getFailed()));
+      System.out.println(String.format("throughput %.1f orders/s", latencies.length / seconds));
+      System.out.println(String.format("latency p50 %.2fms  p99 %.2fms  max %.2fms",
+                                       percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, latencies[latencies.length - 1] / 1e6));
+      System.out.println(String.format("stock %d -> %d, oversold: %s", before, after,
+                                       (after < 0 || before - after != engine.getPlaced()) ? "YES" : "no"));
+   }//end contentionTest
+
+   private static long percentile(long[] sorted, double p) {
+      if (sorted.length == 0) return 0;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1))];
+   }
+}//end OrderEngine
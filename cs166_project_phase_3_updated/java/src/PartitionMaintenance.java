@@ -0,0 +1,271 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the monthly partitions of Orders and ProductUpdates (see
+ * create_tables.sql) rolling:
+ *
+ * 1. Rows that landed in the default partition (no partition existed for
+ *    their month, e.g. data loaded before the first run) are moved into a
+ *    partition of their month.
+ * 2. Partitions are created for the current month and aheadMonths ahead,
+ *    so inserts do not fall into the default partition.
+ * 3. Partitions older than retainMonths are detached and either attached to
+ *    OrdersArchive/ProductUpdatesArchive, which only moves catalog entries,
+ *    or, with an export directory, written there as gzipped CSV (the format
+ *    bulk-load reads) and dropped.
+ *
+ * The indexes of the hot tables therefore only cover retainMonths of
+ * history, and "last N" reads that are limited to recent rows (see
+ * amazon.recent.hotDays) only visit the newest partitions. Every step is
+ * one short transaction, so the task can be interrupted and rerun at any
+ * time. An exported month is written out before its transaction starts,
+ * and that transaction checks that its row count did not change meanwhile.
+ * Partitions are named after the table and month, e.g. orders_2024_05.
+ */
+public class PartitionMaintenance {
+
+   // a partitioned table, its serial key, its partition key and its archive
+   private static final class Table {
+      final String name;
+      final String key;
+      final String column;
+      final String archive;
+
+      Table(String name, String key, String column, String archive) {
+         this.name = name;
+         this.key = key;
+         this.column = column;
+         this.archive = archive;
+      }
+
+      String partition(YearMonth month) {
+         return String.format("%s_%04d_%02d", name.toLowerCase(), month.getYear(), month.getMonthValue());
+      }
+   }
+
+   private static final Table[] TABLES = {
+      new Table("Orders", "orderNumber", "orderTime", "OrdersArchive"),
+      new Table("ProductUpdates", "updateNumber", "updatedOn", "ProductUpdatesArchive") };
+
+   // rows read per query when a month is exported
+   private static final int PAGE_ROWS = 10000;
+
+   private final Amazon esql;
+   private final int aheadMonths;
+   private final int retainMonths;
+   private final File exportDir;
+
+   /**
+    * @param esql the Amazon instance whose connections are used
+    * @param aheadMonths months after the current one that get a partition in advance
+    * @param retainMonths months kept in the hot tables, the current one included; 0 keeps everything
+    * @param exportDir where archived months are exported to, or null to attach them to the archive tables
+    */
+   public PartitionMaintenance(Amazon esql, int aheadMonths, int retainMonths, File exportDir) {
+      this.esql = esql;
+      this.aheadMonths = Math.max(0, aheadMonths);
+      this.retainMonths = Math.max(0, retainMonths);
+      this.exportDir = exportDir;
+   }
+
+   /**
+    * Runs every step on both tables.
+    *
+    * @param out receives one line per partition created or archived
+    * @throws java.sql.SQLException when a step fails, or an archived month can not be exported; the steps before it stay done
+    */
+   public void run(PrintStream out) throws SQLException {
+      StatementMetrics.setOperation("partitions");
+      try {
+         YearMonth current = YearMonth.now();
+         for (Table table : TABLES) {
+            // pinned, so the catalog and the default partition are read on the primary
+            List<Timestamp> stray = esql.withConnection(conn -> esql.executeQueryForList(
+               "SELECT DISTINCT date_trunc('month', " + table.column + ") FROM " + table.name + "_default",
+               rs -> rs.getTimestamp(1)));
+            for (Timestamp month : stray)
+               create(table, YearMonth.from(month.toLocalDateTime()), out);
+            for (int i = 0; i <= aheadMonths; i++)
+               create(table, current.plusMonths(i), out);
+            if (retainMonths > 0)
+               archive(table, current.minusMonths(retainMonths - 1), out);
+         }
+      } finally {
+         StatementMetrics.setOperation(null);
+      }
+   }//end run
+
+   // creates the partition of a month unless it exists, taking over its rows from the default partition
+   private void create(Table table, YearMonth month, PrintStream out) throws SQLException {
+      String partition = table.partition(month);
+      String bounds = bounds(month);
+      boolean created = inTransaction(conn -> {
+         if (exists(partition))
+            return false;
+         // the default partition is locked first so no row of the month can slip into it meanwhile
+         esql.executeUpdate("LOCK TABLE " + table.name + "_default IN SHARE ROW EXCLUSIVE MODE");
+         String range = table.column + " >= TIMESTAMP '" + month.atDay(1) + "' AND " + table.column + " < TIMESTAMP '" + month.plusMonths(1).atDay(1) + "'";
+         Long stray = esql.executeQueryForObject("SELECT COUNT(*) FROM " + table.name + "_default WHERE " + range, rs -> rs.getLong(1));
+         if (stray == 0) {
+            esql.executeUpdate("CREATE TABLE " + partition + " PARTITION OF " + table.name + " FOR VALUES " + bounds);
+            return true;
+         }
+         esql.executeUpdate("CREATE TABLE " + partition + " (LIKE " + table.name + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+         esql.executeUpdate("WITH moved AS (DELETE FROM " + table.name + "_default WHERE " + range + " RETURNING *) " +
+                            "INSERT INTO " + partition + " SELECT * FROM moved");
+         esql.executeUpdate("ALTER TABLE " + table.name + " ATTACH PARTITION " + partition + " FOR VALUES " + bounds);
+         out.println(String.format("moved %d rows of %s from %s_default", stray, partition, table.name));
+         return true;
+      });
+      if (created)
+         out.println("created " + partition);
+   }//end create
+
+   // detaches every partition of a month before the first retained one
+   private void archive(Table table, YearMonth firstRetained, PrintStream out) throws SQLException {
+      List<String> partitions = esql.withConnection(conn -> esql.executeQueryForList(
+         "SELECT C.relname FROM pg_inherits I, pg_class C, pg_class P " +
+         "WHERE I.inhrelid = C.oid AND I.inhparent = P.oid AND P.relname = ? ORDER BY C.relname",
+         rs -> rs.getString(1), table.name.toLowerCase()));
+      String prefix = table.name.toLowerCase() + "_";
+      for (String partition : partitions) {
+         if (!partition.matches(prefix + "\\d{4}_\\d{2}"))
+            continue; // the default partition
+         YearMonth month = YearMonth.of(Integer.parseInt(partition.substring(prefix.length(), prefix.length() + 4)),
+                                        Integer.parseInt(partition.substring(prefix.length() + 5)));
+         if (!month.isBefore(firstRetained))
+            continue;
+         if (exportDir == null) {
+            inTransaction(conn -> {
+               esql.executeUpdate("ALTER TABLE " + table.name + " DETACH PARTITION " + partition);
+               esql.executeUpdate("ALTER TABLE " + table.archive + " ATTACH PARTITION " + partition + " FOR VALUES " + bounds(month));
+               return null;
+            });
+            out.println("archived " + partition + " to " + table.archive);
+         } else {
+            // the export runs before the detach, which locks the parent table: inserts and reads wait only for the drop
+            File file = new File(exportDir, partition + ".csv.gz");
+            long rows = esql.withConnection(conn -> export(table, partition, file));
+            try {
+               inTransaction(conn -> {
+                  esql.executeUpdate("ALTER TABLE " + table.name + " DETACH PARTITION " + partition);
+                  long now = esql.executeQueryForObject("SELECT COUNT(*) FROM " + partition, rs -> rs.getLong(1));
+                  if (now != rows)
+                     throw new SQLException(String.format("%s changed during its export (%d rows exported, %d now); rerun partitions", partition, rows, now));
+                  esql.executeUpdate("DROP TABLE " + partition);
+                  return null;
+               });
+            } catch (SQLException e) {
+               file.delete();
+               throw e;
+            }
+            out.println(String.format("exported %d rows of %s to %s", rows, partition, file));
+         }
+      }
+   }//end archive
+
+   // writes a partition as gzipped CSV with a header; an empty unquoted field is NULL, as bulk-load reads it.
+   // The rows are read PAGE_ROWS at a time in key order, so memory stays bounded on drivers without cursors.
+   private long export(Table table, String partition, File file) throws SQLException {
+      List<String> columns = esql.executeQueryForList(
+         "SELECT attname FROM pg_attribute WHERE attrelid = ?::regclass AND attnum > 0 AND NOT attisdropped ORDER BY attnum",
+         rs -> rs.getString(1), partition);
+      int keyAt = indexOf(columns, table.key), timeAt = indexOf(columns, table.column);
+      String order = " ORDER BY " + table.key + ", " + table.column + " LIMIT ?";
+      File tmp = new File(file.getPath() + ".tmp");
+      file.getParentFile().mkdirs();
+      long rows = 0;
+      boolean written = false;
+      try {
+         try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            GZIPOutputStream gzip = new GZIPOutputStream(stream);
+            Writer out = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), 1 << 16);
+            writeCsvLine(out, columns);
+            List<List<String>> page = esql.executeQueryAndReturnResult("SELECT * FROM " + partition + order, PAGE_ROWS);
+            while (!page.isEmpty()) {
+               for (List<String> row : page)
+                  writeCsvLine(out, row);
+               rows += page.size();
+               if (page.size() < PAGE_ROWS)
+                  break;
+               List<String> last = page.get(page.size() - 1);
+               page = esql.executeQueryAndReturnResult(
+                  "SELECT * FROM " + partition + " WHERE (" + table.key + ", " + table.column + ") > (?, ?::timestamp)" + order,
+                  Integer.parseInt(last.get(keyAt).trim()), last.get(timeAt), PAGE_ROWS);
+            }
+            out.flush();
+            gzip.finish();
+            stream.getFD().sync();
+         }
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         written = true;
+      } catch (IOException e) {
+         throw new SQLException("Can not export " + partition + " to " + file + ": " + e.getMessage());
+      } finally {
+         if (!written)
+            tmp.delete();
+      }
+      return rows;
+   }//end export
+
+   private static void writeCsvLine(Writer out, List<String> values) throws IOException {
+      for (int i = 0; i < values.size(); i++) {
+         if (i > 0) out.write(',');
+         String value = values.get(i);
+         if (value == null)
+            continue;
+         if (value.isEmpty() || value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+            out.write('"' + value.replace("\"", "\"\"") + '"');
+         else
+            out.write(value);
+      }
+      out.write('\n');
+   }
+
+   private static int indexOf(List<String> columns, String column) throws SQLException {
+      for (int i = 0; i < columns.size(); i++)
+         if (columns.get(i).equalsIgnoreCase(column))
+            return i;
+      throw new SQLException("No column " + column + " in " + columns);
+   }
+
+   private boolean exists(String relation) throws SQLException {
+      return esql.executeQueryForObject("SELECT to_regclass(?) IS NOT NULL", rs -> rs.getBoolean(1), relation);
+   }
+
+   private static String bounds(YearMonth month) {
+      return "FROM ('" + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')";
+   }
+
+   // runs DDL and the statements around it in one transaction on a pinned connection
+   private <T> T inTransaction(Amazon.ConnectionCallback<T> work) throws SQLException {
+      return esql.withConnection(conn -> {
+         conn.setAutoCommit(false);
+         boolean committed = false;
+         try {
+            T result = work.run(conn);
+            conn.commit();
+            committed = true;
+            return result;
+         } finally {
+            if (!committed)
+               conn.rollback();
+            conn.setAutoCommit(true);
+         }
+      });
+   }
+}//end PartitionMaintenance
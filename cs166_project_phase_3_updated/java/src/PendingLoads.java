@@ -0,0 +1,82 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The keys a cache is loading from the database, and whether a write
+ * touched each of them while its loads ran. A load that raced a write may
+ * have read the rows before it, so its result must not be cached.
+ *
+ * Several threads can load the same key at once; the key stays marked
+ * until the last of them has finished, so a mark is never lost to a load
+ * that started later. Not synchronized: the owning cache calls every
+ * method under its own lock.
+ *
+ * @param <K> the key the cache is loaded by
+ */
+class PendingLoads<K> {
+
+   // loads of one key in flight, and whether a write raced any of them
+   private static final class Load {
+      int loaders;
+      boolean raced;
+   }
+
+   private final Map<K, Load> loads = new HashMap<K, Load>();
+
+   /**
+    * Registers a load of a key; pair every call with finish().
+    *
+    * @param key the key being loaded
+    */
+   void start(K key) {
+      Load load = loads.get(key);
+      if (load == null)
+         loads.put(key, load = new Load());
+      load.loaders++;
+   }
+
+   /**
+    * Ends a load of a key.
+    *
+    * @param key the key that was loaded
+    * @return whether its result may be cached, i.e. no write raced it
+    */
+   boolean finish(K key) {
+      Load load = loads.get(key);
+      if (load == null)
+         return false;
+      if (--load.loaders == 0)
+         loads.remove(key);
+      return !load.raced;
+   }
+
+   /**
+    * Marks the loads of a key after a write to its rows.
+    *
+    * @param key the written key
+    */
+   void mark(K key) {
+      Load load = loads.get(key);
+      if (load != null)
+         load.raced = true;
+   }
+
+   /**
+    * Marks the loads of every key that matches.
+    *
+    * @param matches selects the written keys
+    */
+   void markIf(Predicate<K> matches) {
+      for (Map.Entry<K, Load> entry : loads.entrySet())
+         if (matches.test(entry.getKey()))
+            entry.getValue().raced = true;
+   }
+
+   /**
+    * Marks every load in flight.
+    */
+   void markAll() {
+      markIf(key -> true);
+   }
+}//end PendingLoads
@@ -0,0 +1,30 @@
+/**
+ * One row of the Product table. productName is stored as char(30), so the
+ * padding is trimmed when the row is mapped.
+ */
+public final class Product {
+
+   /** Maps a row containing the Product columns. */
+   public static final Amazon.RowMapper<Product> MAPPER = rs -> new Product(
+      rs.getInt("storeID"),
+      rs.getString("productName").trim(),
+      rs.getInt("numberOfUnits"),
+      rs.getDouble("pricePerUnit"));
+
+   private final int storeId;
+   private final String productName;
+   private final int numberOfUnits;
+   private final double pricePerUnit;
+
+   public Product(int storeId, String productName, int numberOfUnits, double pricePerUnit) {
+      this.storeId = storeId;
+      this.productName = productName;
+      this.numberOfUnits = numberOfUnits;
+      this.pricePerUnit = pricePerUnit;
+   }
+
+   public int getStoreId() { return storeId; }
+   public String getProductName() { return productName; }
+   public int getNumberOfUnits() { return numberOfUnits; }
+   public double getPricePerUnit() { return pricePerUnit; }
+}//end Product
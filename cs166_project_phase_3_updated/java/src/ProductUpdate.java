@@ -0,0 +1,35 @@
+import java.sql.Timestamp;
+
+/**
+ * One row of the ProductUpdates table.
+ */
+public final class ProductUpdate {
+
+   /** Maps a row containing the ProductUpdates columns. */
+   public static final Amazon.RowMapper<ProductUpdate> MAPPER = rs -> new ProductUpdate(
+      rs.getInt("updateNumber"),
+      rs.getInt("managerID"),
+      rs.getInt("storeID"),
+      rs.getString("productName").trim(),
+      rs.getTimestamp("updatedOn"));
+
+   private final int updateNumber;
+   private final int managerId;
+   private final int storeId;
+   private final String productName;
+   private final Timestamp updatedOn;
+
+   public ProductUpdate(int updateNumber, int managerId, int storeId, String productName, Timestamp updatedOn) {
+      this.updateNumber = updateNumber;
+      this.managerId = managerId;
+      this.storeId = storeId;
+      this.productName = productName;
+      this.updatedOn = updatedOn;
+   }
+
+   public int getUpdateNumber() { return updateNumber; }
+   public int getManagerId() { return managerId; }
+   public int getStoreId() { return storeId; }
+   public String getProductName() { return productName; }
+   public Timestamp getUpdatedOn() { return updatedOn; }
+}//end ProductUpdate
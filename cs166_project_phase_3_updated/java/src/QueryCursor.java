@@ -0,0 +1,127 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Forward-only view over a query result that fetches rows from the server
+ * in batches of the statement's fetch size instead of materializing the
+ * whole result. Postgres only honours the fetch size inside a transaction,
+ * so the cursor holds its connection with autocommit off until close().
+ * Drivers that do not support a fetch size, like the bundled pg73jdbc3.jar,
+ * read the whole result when the query runs.
+ *
+ * Rows are returned as lists of attribute values, like
+ * Amazon.executeQueryAndReturnResult. Always close the cursor, preferably
+ * with try-with-resources.
+ */
+public class QueryCursor implements Iterator<List<String>>, AutoCloseable {
+
+   private final Connection conn;
+   private final Statement stmt;
+   private final ResultSet rs;
+   private final boolean ownsTransaction;
+   private final Runnable onClose;
+   private final String[] columnNames;
+
+   private List<String> pending = null;
+   private boolean done = false;
+   private boolean closed = false;
+
+   /**
+    * @param conn the connection the statement runs on
+    * @param stmt the statement that produced the result set, closed with the cursor
+    * @param rs the open result set
+    * @param ownsTransaction whether the cursor opened the transaction and must end it
+    * @param onClose hands the connection back once the cursor is closed
+    * @throws java.sql.SQLException when the result metadata can not be read
+    */
+   QueryCursor(Connection conn, Statement stmt, ResultSet rs, boolean ownsTransaction, Runnable onClose) throws SQLException {
+      this.conn = conn;
+      this.stmt = stmt;
+      this.rs = rs;
+      this.ownsTransaction = ownsTransaction;
+      this.onClose = onClose;
+      ResultSetMetaData rsmd = rs.getMetaData();
+      this.columnNames = new String[rsmd.getColumnCount()];
+      for (int i = 0; i < columnNames.length; i++)
+         columnNames[i] = rsmd.getColumnName(i + 1);
+   }
+
+   public String[] getColumnNames() { return columnNames.clone(); }
+
+   public int getColumnCount() { return columnNames.length; }
+
+   @Override
+   public boolean hasNext() {
+      if (pending != null) return true;
+      if (done) return false;
+      try {
+         if (!rs.next()) {
+            done = true;
+            return false;
+         }
+         List<String> record = new ArrayList<String>(columnNames.length);
+         for (int i = 1; i <= columnNames.length; ++i)
+            record.add(rs.getString(i));
+         pending = record;
+         return true;
+      } catch (SQLException e) {
+         throw new IllegalStateException(e.getMessage(), e);
+      }
+   }
+
+   @Override
+   public List<String> next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      List<String> record = pending;
+      pending = null;
+      return record;
+   }
+
+   /**
+    * Exposes the remaining rows as a sequential stream. Closing the stream
+    * closes the cursor.
+    *
+    * @return the rows as a stream
+    */
+   public Stream<List<String>> stream() {
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                          .onClose(this::close);
+   }
+
+   /**
+    * Closes the result set and statement, ends the read-only transaction
+    * and hands the connection back.
+    */
+   @Override
+   public void close() {
+      if (closed) return;
+      closed = true;
+      try {
+         rs.close();
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      try {
+         if (ownsTransaction) {
+            conn.commit();
+            conn.setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         // ignored, the pool rolls back connections left in a transaction.
+      } finally {
+         onClose.run();
+      }
+   }//end close
+}//end QueryCursor
@@ -0,0 +1,129 @@
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The latest rows per key (customer, store, ...) kept in fixed-size ring
+ * buffers, newest first, so the "last 5" screens do not sort the table.
+ *
+ * A key's buffer is filled from the database on first access and then
+ * appended to by the insert paths through add(). Adds to keys that are not
+ * buffered are dropped; the database already has the row for when the key
+ * is loaded. At most maxKeys buffers are held, the least recently used one
+ * is evicted first, so memory stays below maxKeys * capacity rows.
+ *
+ * @param <K> the key the rows are grouped by
+ * @param <V> the buffered row
+ */
+public class RecentLog<K, V> {
+
+   /**
+    * Reads the latest rows of one key from the database.
+    */
+   public interface Loader<K, V> {
+      /**
+       * @param key the key to load
+       * @param limit number of rows wanted
+       * @return at most limit rows, newest first
+       * @throws java.sql.SQLException when the rows can not be read
+       */
+      List<V> load(K key, int limit) throws SQLException;
+   }
+
+   private final int capacity;
+   private final Map<K, ArrayDeque<V>> buffers;
+   // keys being loaded, marked when a row is added while a load runs
+   private final PendingLoads<K> loading = new PendingLoads<K>();
+
+   /**
+    * @param capacity rows kept per key
+    * @param maxKeys keys kept before the least recently used one is evicted
+    */
+   public RecentLog(int capacity, final int maxKeys) {
+      this.capacity = Math.max(1, capacity);
+      this.buffers = new LinkedHashMap<K, ArrayDeque<V>>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<K, ArrayDeque<V>> eldest) {
+            return size() > maxKeys;
+         }
+      };
+   }
+
+   /**
+    * Returns the buffered rows of a key, loading them on first access.
+    *
+    * @param key the key
+    * @param loader reads the key's latest rows when they are not buffered
+    * @return at most capacity rows, newest first
+    * @throws java.sql.SQLException when the rows can not be loaded
+    */
+   public List<V> latest(K key, Loader<K, V> loader) throws SQLException {
+      synchronized (this) {
+         ArrayDeque<V> buffer = buffers.get(key);
+         if (buffer != null)
+            return new ArrayList<V>(buffer);
+         loading.start(key);
+      }
+      List<V> rows = null;
+      try {
+         rows = loader.load(key, capacity);
+      } finally {
+         synchronized (this) {
+            // a row committed during the load may be missing from it; keep the result unbuffered then
+            if (loading.finish(key) && rows != null && !buffers.containsKey(key))
+               buffers.put(key, new ArrayDeque<V>(rows.subList(0, Math.min(rows.size(), capacity))));
+         }
+      }
+      return rows;
+   }//end latest
+
+   /**
+    * Adds a newly committed row in front of a buffered key, dropping the
+    * oldest row once the buffer is full.
+    *
+    * @param key the key
+    * @param row the new row
+    */
+   public synchronized void add(K key, V row) {
+      ArrayDeque<V> buffer = buffers.get(key);
+      if (buffer == null) {
+         loading.mark(key);
+         return;
+      }
+      buffer.addFirst(row);
+      if (buffer.size() > capacity)
+         buffer.removeLast();
+   }
+
+   /**
+    * Drops the buffer of a key so the next access reloads it.
+    *
+    * @param key the key
+    */
+   public synchronized void remove(K key) {
+      buffers.remove(key);
+      loading.mark(key);
+   }
+
+   /**
+    * Drops the buffers of every key that matches.
+    *
+    * @param matches selects the keys to drop
+    */
+   public synchronized void removeIf(Predicate<K> matches) {
+      buffers.keySet().removeIf(matches);
+      loading.markIf(matches);
+   }
+
+   /**
+    * Drops every buffer.
+    */
+   public synchronized void clear() {
+      buffers.clear();
+      loading.markAll();
+   }
+}//end RecentLog
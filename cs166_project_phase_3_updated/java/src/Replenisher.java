@@ -0,0 +1,297 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restocks products that run low without a manager going through the
+ * supply request menu. Every pass scans Product for rows below their
+ * store's threshold, picks the nearest warehouse of each store from the
+ * warehouse index and, batchSize products at a time, raises the stock to
+ * the target and logs one ProductSupplyRequests row per product, in the
+ * name of the store's manager.
+ *
+ * Each batch is one statement over a VALUES list of its products: an
+ * UPDATE ... FROM that raises the stock and returns the restocked rows,
+ * feeding an INSERT of their ProductSupplyRequests rows in the same CTE. A
+ * pass over thousands of stores therefore costs a few round trips per
+ * batch instead of two statements per product. A product is only
+ * restocked if it is still below the threshold when its row is locked, so
+ * concurrent orders, managers and other instances never make it restock
+ * twice. That recheck also lets the scan run on a read replica. The batch
+ * locks its rows in no particular order; a deadlock with a checkout gives
+ * the batch up like a lock timeout.
+ *
+ * To stay out of the way of orders the pass runs on one low priority
+ * thread, pauses pauseMs between batches, and gives up a batch (leaving it
+ * to the next pass) when a row lock is not granted within lockTimeoutMs.
+ */
+public class Replenisher {
+
+   static final String LOW_STOCK =
+      "SELECT P.storeID, P.productName, P.numberOfUnits, S.managerID, S.latitude, S.longitude " +
+      "FROM Product P, Store S WHERE P.storeID = S.storeID AND P.numberOfUnits < ? " +
+      "AND (P.storeID > ? OR (P.storeID = ? AND P.productName > ?)) " +
+      "ORDER BY P.storeID, P.productName LIMIT ?";
+
+   /**
+    * The statement that restocks a batch and logs its supply requests.
+    *
+    * @param lines number of products, each bound as (requestNumber, managerID, warehouseID, storeID,
+    *              productName, threshold, units)
+    * @return the SQL text; returns the request numbers of the products that were still below their threshold
+    */
+   static String restockLines(int lines) {
+      return "WITH lines (requestNumber, managerID, warehouseID, storeID, productName, threshold, units) AS (VALUES " +
+             OrderEngine.values("(?::integer, ?::integer, ?::integer, ?::integer, ?::char(30), ?::integer, ?::integer)", lines) + "), " +
+             "restocked AS (UPDATE Product P SET numberOfUnits = P.numberOfUnits + L.units FROM lines L " +
+             "WHERE P.storeID = L.storeID AND P.productName = L.productName AND P.numberOfUnits < L.threshold " +
+             "RETURNING L.requestNumber, L.managerID, L.warehouseID, L.storeID, L.productName, L.units), " +
+             "requested AS (INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested) " +
+             "SELECT requestNumber, managerID, warehouseID, storeID, productName, units FROM restocked) " +
+             "SELECT requestNumber FROM restocked";
+   }
+
+   // a product below its threshold and the request that restocks it
+   private static final class Line {
+      final int storeId;
+      final String productName;
+      final int managerId;
+      final int warehouseId;
+      final int threshold;
+      final int units;
+      int requestNumber;
+
+      Line(int storeId, String productName, int managerId, int warehouseId, int threshold, int units) {
+         this.storeId = storeId;
+         this.productName = productName;
+         this.managerId = managerId;
+         this.warehouseId = warehouseId;
+         this.threshold = threshold;
+         this.units = units;
+      }
+   }
+
+   /**
+    * What one pass did.
+    */
+   public static final class Result {
+      public int products;
+      public long units;
+      public int batches;
+      public int skippedBatches;
+      public final Set<Integer> stores = new HashSet<Integer>();
+
+      @Override
+      public String toString() {
+         return String.format("restocked %d products at %d stores with %d units in %d batches, %d batches left for the next pass",
+                              products, stores.size(), units, batches, skippedBatches);
+      }
+   }
+
+   private final Amazon esql;
+   private final int threshold;
+   private final Map<Integer, Integer> storeThresholds;
+   private final int targetUnits;
+   private final int batchSize;
+   private final long pauseMs;
+   private final long lockTimeoutMs;
+   private ScheduledExecutorService scheduler = null;
+
+   /**
+    * @param esql the Amazon instance whose connections are used
+    * @param threshold products with fewer units are restocked
+    * @param storeThresholds thresholds of stores that differ from the default
+    * @param targetUnits units a restocked product is raised to, at least its threshold
+    * @param batchSize products restocked per transaction
+    * @param pauseMs pause between two batches
+    * @param lockTimeoutMs how long a batch waits for a row lock before it is left for the next pass
+    */
+   public Replenisher(Amazon esql, int threshold, Map<Integer, Integer> storeThresholds, int targetUnits,
+                      int batchSize, long pauseMs, long lockTimeoutMs) {
+      this.esql = esql;
+      this.threshold = threshold;
+      this.storeThresholds = storeThresholds;
+      this.targetUnits = targetUnits;
+      this.batchSize = Math.max(1, batchSize);
+      this.pauseMs = pauseMs;
+      this.lockTimeoutMs = lockTimeoutMs;
+   }
+
+   /**
+    * Parses per-store thresholds such as "12:5,40:100".
+    *
+    * @param spec comma-separated storeID:threshold pairs, may be empty
+    * @return threshold by storeID
+    */
+   public static Map<Integer, Integer> parseThresholds(String spec) {
+      Map<Integer, Integer> thresholds = new HashMap<Integer, Integer>();
+      for (String pair : spec.split(",")) {
+         pair = pair.trim();
+         if (pair.isEmpty())
+            continue;
+         int colon = pair.indexOf(':');
+         if (colon < 0)
+            throw new IllegalArgumentException("Expected storeID:threshold, got " + pair);
+         thresholds.put(Integer.parseInt(pair.substring(0, colon).trim()), Integer.parseInt(pair.substring(colon + 1).trim()));
+      }
+      return thresholds;
+   }
+
+   /**
+    * Runs a pass every intervalMs on a daemon thread.
+    *
+    * @param intervalMs time between the end of one pass and the start of the next
+    */
+   public void start(long intervalMs) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "amazon-replenish");
+         t.setDaemon(true);
+         t.setPriority(Thread.MIN_PRIORITY);
+         return t;
+      });
+      scheduler.scheduleWithFixedDelay(() -> {
+         try {
+            run();
+         } catch (SQLException | RuntimeException e) {
+            System.err.println("Replenishment failed: " + e.getMessage());
+         }
+      }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Restocks every product below its threshold.
+    *
+    * @return what was restocked
+    * @throws java.sql.SQLException when the scan fails
+    */
+   public Result run() throws SQLException {
+      StatementMetrics.setOperation("replenish");
+      try {
+         Result result = new Result();
+         int maxThreshold = threshold;
+         for (int t : storeThresholds.values())
+            maxThreshold = Math.max(maxThreshold, t);
+         int lastStore = Integer.MIN_VALUE;
+         String lastProduct = "";
+         while (!Thread.currentThread().isInterrupted()) {
+            List<Object[]> rows = esql.executeQueryForList(LOW_STOCK, rs -> new Object[] {
+               rs.getInt(1), rs.getString(2).trim(), rs.getInt(3), rs.getInt(4), rs.getDouble(5), rs.getDouble(6) },
+               maxThreshold, lastStore, lastStore, lastProduct, batchSize);
+            if (rows.isEmpty())
+               break;
+            List<Line> lines = new ArrayList<Line>();
+            for (Object[] row : rows) {
+               int storeId = (Integer) row[0];
+               int units = (Integer) row[2];
+               Integer storeThreshold = storeThresholds.get(storeId);
+               int below = storeThreshold != null ? storeThreshold : threshold;
+               if (units >= below)
+                  continue; // under the highest threshold, not under its store's
+               List<SpatialIndex.Neighbor<Warehouse>> nearest = esql.getWarehouseIndex().nearest((Double) row[4], (Double) row[5], 1);
+               if (nearest.isEmpty())
+                  return result; // no warehouse to restock from
+               lines.add(new Line(storeId, (String) row[1], (Integer) row[3], nearest.get(0).id, below,
+                                  Math.max(targetUnits, below) - units));
+            }
+            Object[] last = rows.get(rows.size() - 1);
+            lastStore = (Integer) last[0];
+            lastProduct = (String) last[1];
+            if (!lines.isEmpty()) {
+               restock(lines, result);
+               if (pauseMs > 0)
+                  Thread.sleep(pauseMs);
+            }
+            if (rows.size() < batchSize)
+               break;
+         }
+         return result;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while replenishing");
+      } finally {
+         StatementMetrics.setOperation(null);
+      }
+   }//end run
+
+   // restocks one batch in one transaction, or leaves it to the next pass when rows stay locked
+   private void restock(List<Line> lines, Result result) throws SQLException {
+      // keys are taken outside the transaction; unused ones leave gaps like rolled back nextval() calls
+      for (Line line : lines)
+         line.requestNumber = esql.nextKey(Amazon.REQUEST_SEQ);
+      List<Line> restocked;
+      try {
+         restocked = esql.withConnection(conn -> restock(conn, lines));
+      } catch (SQLException e) {
+         if (!isLockTimeout(e) && !OrderEngine.isRetryable(e))
+            throw e;
+         result.skippedBatches++;
+         return;
+      }
+      result.batches++;
+      for (Line line : restocked) {
+         result.products++;
+         result.units += line.units;
+         if (result.stores.add(line.storeId))
+            esql.recordRestock(line.storeId);
+      }
+   }
+
+   // one batch on a pinned connection
+   private List<Line> restock(Connection conn, List<Line> lines) throws SQLException {
+      Object[] args = new Object[7 * lines.size()];
+      for (int i = 0; i < lines.size(); i++) {
+         Line line = lines.get(i);
+         args[7 * i] = line.requestNumber;
+         args[7 * i + 1] = line.managerId;
+         args[7 * i + 2] = line.warehouseId;
+         args[7 * i + 3] = line.storeId;
+         args[7 * i + 4] = line.productName;
+         args[7 * i + 5] = line.threshold;
+         args[7 * i + 6] = line.units;
+      }
+      conn.setAutoCommit(false);
+      boolean committed = false;
+      try {
+         esql.executeUpdate("SET LOCAL lock_timeout = " + lockTimeoutMs);
+         Set<Integer> requested = new HashSet<Integer>(esql.executeQueryForList(restockLines(lines.size()), rs -> rs.getInt(1), args));
+         List<Line> restocked = new ArrayList<Line>(requested.size());
+         for (Line line : lines)
+            if (requested.contains(line.requestNumber))
+               restocked.add(line); // the others were restocked meanwhile by someone else
+         conn.commit();
+         committed = true;
+         return restocked;
+      } finally {
+         if (!committed)
+            conn.rollback();
+         conn.setAutoCommit(true);
+      }
+   }//end restock
+
+   // lock_not_available (55P03), raised when lock_timeout expires; the whole exception chain
+   // is checked, as drivers may carry the server error as a next exception
+   private static boolean isLockTimeout(SQLException e) {
+      for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+         String msg = cause.getMessage();
+         if ("55P03".equals(cause.getSQLState()) || (msg != null && msg.contains("lock timeout")))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * Stops the scheduled passes.
+    */
+   public void close() {
+      if (scheduler != null)
+         scheduler.shutdownNow();
+   }
+}//end Replenisher
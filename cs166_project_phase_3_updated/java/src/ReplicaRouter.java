@@ -0,0 +1,284 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the plain reads of the Amazon execute helpers to streaming
+ * replicas and everything else to the primary.
+ *
+ * A read goes to a replica when it is a SELECT (no FOR UPDATE/SHARE, no
+ * nextval/setval), it is not issued inside withConnection, the replica is
+ * reachable and no more than maxLagMs behind, and the acting user (see
+ * setUser) has not written within stickyMs. The last rule gives each user
+ * read-your-writes: after their own order or update their reads stay on the
+ * primary until every replica in use must have replayed the write. Replicas
+ * are used round robin; when none qualifies the read goes to the primary.
+ *
+ * Lag is measured every checkMs by comparing the WAL position each replica
+ * has replayed with the positions the primary reported at earlier checks,
+ * so an idle primary does not make its replicas look behind. This needs
+ * PostgreSQL 10 or later.
+ */
+public class ReplicaRouter {
+
+   private static final ThreadLocal<Integer> USER = new ThreadLocal<Integer>();
+
+   // one replica: its pool and how far it was behind at the last check
+   private static final class Replica {
+      final String url;
+      final ConnectionPool pool;
+      final AtomicLong reads = new AtomicLong();
+      volatile boolean available = false;
+      volatile long lagMs = -1;
+      volatile String problem = "not checked yet";
+
+      Replica(String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+   }
+
+   private final ConnectionPool primary;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final long maxLagMs;
+   private final long checkMs;
+   private final long stickyMs;
+   private final Map<Integer, Long> lastWrite = new ConcurrentHashMap<Integer, Long>();
+   private final Map<Connection, ConnectionPool> borrowed = new ConcurrentHashMap<Connection, ConnectionPool>();
+   private final AtomicInteger next = new AtomicInteger();
+   private final AtomicLong primaryReads = new AtomicLong();
+   private final ArrayDeque<long[]> primaryPositions = new ArrayDeque<long[]>(); // {time, WAL position}, checker thread only
+   private final ScheduledExecutorService checker;
+
+   /**
+    * Creates a pool per replica, opened lazily so a replica that is down
+    * does not stop the application, and starts the lag checks.
+    *
+    * @param primary the pool of the primary
+    * @param urls JDBC URLs of the replicas
+    * @param user the user name used to login to the replicas
+    * @param passwd the user login password
+    * @param poolMax maximum number of connections open at once per replica
+    * @param idleTimeoutMs idle time after which replica connections are closed
+    * @param maxWaitMs how long a read waits for a free replica connection
+    * @param stmtCacheSize prepared statements cached per connection
+    * @param prepareThreshold uses after which a cached statement is prepared on the server
+    * @param maxLagMs replicas further behind are not read from
+    * @param checkMs interval of the lag checks
+    * @param stickyMs time after a user's write during which their reads stay on the primary
+    * @throws java.sql.SQLException when a replica pool can not be created
+    */
+   public ReplicaRouter(ConnectionPool primary, List<String> urls, String user, String passwd, int poolMax,
+                        long idleTimeoutMs, long maxWaitMs, int stmtCacheSize, int prepareThreshold,
+                        long maxLagMs, long checkMs, long stickyMs) throws SQLException {
+      this.primary = primary;
+      this.maxLagMs = maxLagMs;
+      this.checkMs = checkMs;
+      this.stickyMs = stickyMs;
+      for (String url : urls)
+         replicas.add(new Replica(url, new ConnectionPool(url, user, passwd, 0, poolMax, idleTimeoutMs, maxWaitMs, 1000L,
+                                                          stmtCacheSize, prepareThreshold)));
+      this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "amazon-replica-lag");
+         t.setDaemon(true);
+         return t;
+      });
+      this.checker.scheduleWithFixedDelay(this::checkLag, 0, checkMs, TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   /**
+    * Sets the user the current thread acts for, e.g. the logged in menu
+    * user or the user of an HTTP request.
+    *
+    * @param userId the user, or null for none
+    */
+   public static void setUser(Integer userId) {
+      if (userId == null) USER.remove();
+      else USER.set(userId);
+   }
+
+   /**
+    * Notes a write by the current thread's user.
+    */
+   public void wrote() {
+      Integer userId = USER.get();
+      if (userId != null)
+         wrote(userId);
+   }
+
+   /**
+    * Notes a write made for a user, such as their order.
+    *
+    * @param userId the user
+    */
+   public void wrote(int userId) {
+      long now = System.currentTimeMillis();
+      if (lastWrite.size() > 100000)
+         lastWrite.values().removeIf(t -> now - t > stickyMs);
+      lastWrite.put(userId, now);
+   }
+
+   /**
+    * Borrows a connection for a read: from a replica if the read and the
+    * replicas allow it, from the primary otherwise. Hand it back with
+    * release().
+    *
+    * @param sql the statement to be run
+    * @return a borrowed connection
+    * @throws java.sql.SQLException when no connection can be borrowed
+    */
+   public Connection borrowForRead(String sql) throws SQLException {
+      if (isPlainRead(sql) && !wroteRecently()) {
+         int n = replicas.size(), start = next.getAndIncrement();
+         for (int i = 0; i < n; i++) {
+            Replica replica = replicas.get(Math.floorMod(start + i, n));
+            if (!replica.available || replica.lagMs > maxLagMs)
+               continue;
+            try {
+               Connection conn = replica.pool.borrow();
+               borrowed.put(conn, replica.pool);
+               replica.reads.incrementAndGet();
+               return conn;
+            } catch (SQLException e) {
+               replica.available = false;
+               replica.problem = e.getMessage();
+            }
+         }
+      }
+      primaryReads.incrementAndGet();
+      return primary.borrow();
+   }//end borrowForRead
+
+   /**
+    * Hands back a connection borrowed from a replica.
+    *
+    * @param conn a connection
+    * @return false if the connection is not a replica's
+    */
+   public boolean release(Connection conn) {
+      ConnectionPool pool = borrowed.remove(conn);
+      if (pool == null)
+         return false;
+      pool.release(conn);
+      return true;
+   }
+
+   /**
+    * @param conn a borrowed connection
+    * @return the pool it came from
+    */
+   public ConnectionPool poolOf(Connection conn) {
+      ConnectionPool pool = borrowed.get(conn);
+      return pool == null ? primary : pool;
+   }
+
+   private boolean wroteRecently() {
+      Integer userId = USER.get();
+      Long at = userId == null ? null : lastWrite.get(userId);
+      return at != null && System.currentTimeMillis() - at < stickyMs;
+   }
+
+   // a SELECT that neither locks rows nor advances a sequence
+   static boolean isPlainRead(String sql) {
+      String s = sql.trim();
+      if (!s.regionMatches(true, 0, "SELECT", 0, 6))
+         return false;
+      s = s.toUpperCase(Locale.ROOT);
+      return !s.contains("NEXTVAL(") && !s.contains("SETVAL(") && !s.contains(" FOR UPDATE") && !s.contains(" FOR SHARE");
+   }
+
+   // runs on the checker thread
+   private void checkLag() {
+      long now = System.currentTimeMillis();
+      Long position;
+      try {
+         Connection conn = primary.borrow();
+         try {
+            position = walPosition(conn, "SELECT pg_current_wal_lsn()");
+         } finally {
+            primary.release(conn);
+         }
+      } catch (SQLException e) {
+         return; // the primary is down; reads on the replicas keep their last verdict
+      }
+      primaryPositions.addLast(new long[] { now, position });
+      while (primaryPositions.size() > 2 && now - primaryPositions.peekFirst()[0] > 2 * maxLagMs + 2 * checkMs)
+         primaryPositions.pollFirst();
+
+      for (Replica replica : replicas) {
+         try {
+            Connection conn = replica.pool.borrow();
+            Long replayed;
+            try {
+               replayed = walPosition(conn, "SELECT pg_last_wal_replay_lsn()");
+            } finally {
+               replica.pool.release(conn);
+            }
+            if (replayed == null) {
+               replica.available = false;
+               replica.problem = "not a streaming replica";
+               continue;
+            }
+            // behind since the first check whose primary position it has not replayed yet
+            long lag = 0;
+            for (long[] p : primaryPositions)
+               if (p[1] > replayed) {
+                  lag = now - p[0];
+                  break;
+               }
+            replica.lagMs = lag;
+            replica.available = true;
+            replica.problem = null;
+         } catch (SQLException e) {
+            replica.available = false;
+            replica.problem = e.getMessage();
+         }
+      }
+   }//end checkLag
+
+   // a pg_lsn such as 16/B374D848 as a number, or null
+   private static Long walPosition(Connection conn, String sql) throws SQLException {
+      try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+         String lsn = rs.next() ? rs.getString(1) : null;
+         if (lsn == null)
+            return null;
+         int slash = lsn.indexOf('/');
+         return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+      }
+   }
+
+   /**
+    * Describes every replica: reads served, lag and availability.
+    *
+    * @return one line per replica
+    */
+   public String status() {
+      StringBuilder out = new StringBuilder(String.format("reads on primary %d%n", primaryReads.get()));
+      for (Replica replica : replicas)
+         out.append(String.format("reads on %s %d, %s%n", replica.url, replica.reads.get(),
+                                  replica.problem != null ? "unavailable: " + replica.problem
+                                  : replica.lagMs > maxLagMs ? "lagging " + replica.lagMs + " ms" : "lag " + replica.lagMs + " ms"));
+      return out.toString();
+   }
+
+   /**
+    * Stops the lag checks and closes the replica pools.
+    */
+   public void close() {
+      checker.shutdownNow();
+      for (Replica replica : replicas)
+         replica.pool.close();
+   }
+}//end ReplicaRouter
@@ -0,0 +1,163 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-store sales counters kept in rank order, so the top K keys of a store
+ * (products, customers, ...) are read off the front of a sorted set instead
+ * of aggregating Orders.
+ *
+ * A store is loaded from its summary table on first use and then kept
+ * current by add() as orders commit. Loads older than the refresh interval
+ * are reloaded, which picks up orders placed by other clients. A load that
+ * a sale or an invalidation raced is used for that call only and not kept,
+ * since the sale may or may not be in the rows it read.
+ *
+ * @param <K> the ranked key, e.g. a product name or a customer ID
+ */
+public class SalesRanking<K extends Comparable<K>> {
+
+   /**
+    * Reads the counters of one store from its summary table.
+    */
+   public interface Loader<K> {
+      /**
+       * @param storeId the store to load
+       * @return sold units by key
+       * @throws java.sql.SQLException when the counters can not be read
+       */
+      List<Entry<K>> load(int storeId) throws SQLException;
+   }
+
+   /**
+    * One ranked key and its sold units.
+    */
+   public static final class Entry<K> {
+      public final K key;
+      public final long units;
+
+      public Entry(K key, long units) {
+         this.key = key;
+         this.units = units;
+      }
+   }
+
+   // counters of one store: units by key, and the same entries ordered by units descending
+   private static final class Store<K extends Comparable<K>> {
+      final Map<K, Entry<K>> byKey = new HashMap<K, Entry<K>>();
+      final TreeSet<Entry<K>> ranked = new TreeSet<Entry<K>>(
+         Comparator.<Entry<K>>comparingLong(e -> -e.units).thenComparing(e -> e.key));
+      final long loadedAt = System.currentTimeMillis();
+
+      Store(List<Entry<K>> entries) {
+         for (Entry<K> entry : entries)
+            put(entry.key, entry.units);
+      }
+
+      void put(K key, long units) {
+         Entry<K> old = byKey.get(key);
+         if (old != null)
+            ranked.remove(old);
+         Entry<K> entry = new Entry<K>(key, units);
+         byKey.put(key, entry);
+         ranked.add(entry);
+      }
+   }
+
+   private final Map<Integer, Store<K>> stores = new ConcurrentHashMap<Integer, Store<K>>();
+   // stores being loaded, marked when a sale or an invalidation races the load; guarded by this
+   private final PendingLoads<Integer> loading = new PendingLoads<Integer>();
+   private final long refreshMs;
+
+   /**
+    * @param refreshMs age after which a loaded store is reloaded from the summary table
+    */
+   public SalesRanking(long refreshMs) {
+      this.refreshMs = refreshMs;
+   }
+
+   /**
+    * Adds committed sales to a loaded store. Stores that are not loaded are
+    * left alone; they read the summary table, which already has the sale,
+    * when they are loaded.
+    *
+    * @param storeId the store
+    * @param key the key sold to or sold
+    * @param units units sold
+    */
+   public void add(int storeId, K key, long units) {
+      Store<K> store;
+      synchronized (this) {
+         store = stores.get(storeId);
+         if (store == null) {
+            loading.mark(storeId);
+            return;
+         }
+      }
+      synchronized (store) {
+         Entry<K> old = store.byKey.get(key);
+         store.put(key, (old == null ? 0 : old.units) + units);
+      }
+   }
+
+   /**
+    * Returns the best selling keys of a store, loading its counters when
+    * they are not loaded or older than the refresh interval.
+    *
+    * @param storeId the store
+    * @param k number of keys
+    * @param loader reads the store's counters when they must be loaded
+    * @return at most k entries, most units first
+    * @throws java.sql.SQLException when the counters can not be loaded
+    */
+   public List<Entry<K>> top(int storeId, int k, Loader<K> loader) throws SQLException {
+      Store<K> store = stores.get(storeId);
+      if (store == null || System.currentTimeMillis() - store.loadedAt > refreshMs) {
+         synchronized (this) {
+            // sales from here on go to the load, not to the stale counters
+            stores.remove(storeId);
+            loading.start(storeId);
+         }
+         store = null;
+         try {
+            store = new Store<K>(loader.load(storeId));
+         } finally {
+            synchronized (this) {
+               if (loading.finish(storeId) && store != null)
+                  stores.put(storeId, store);
+            }
+         }
+      }
+      List<Entry<K>> top = new ArrayList<Entry<K>>(k);
+      synchronized (store) {
+         for (Entry<K> entry : store.ranked) {
+            if (top.size() == k) break;
+            top.add(entry);
+         }
+      }
+      return top;
+   }
+
+   /**
+    * Drops every loaded store, e.g. after the summary table was rebuilt.
+    */
+   public synchronized void invalidate() {
+      stores.clear();
+      loading.markAll();
+   }
+
+   /**
+    * Drops a loaded store so its next use reloads it.
+    *
+    * @param storeId the store
+    */
+   public synchronized void invalidate(int storeId) {
+      stores.remove(storeId);
+      loading.mark(storeId);
+   }
+}//end SalesRanking
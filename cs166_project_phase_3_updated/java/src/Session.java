@@ -0,0 +1,34 @@
+/**
+ * What the menu actions need to know about the logged in user: the Users
+ * row (role and location) and the stores the user manages. Loaded once at
+ * login by Amazon.getSession and dropped by Amazon.invalidateSession when
+ * the user's row changes, so role checks and location lookups no longer go
+ * to the database on every action.
+ */
+public final class Session {
+
+   private final User user;
+   private final LocationBatch managedStores;
+   private final long loadedAt = System.currentTimeMillis();
+
+   public Session(User user, LocationBatch managedStores) {
+      this.user = user;
+      this.managedStores = managedStores;
+   }
+
+   public User getUser() { return user; }
+   public int getUserId() { return user.getUserId(); }
+   public double getLatitude() { return user.getLatitude(); }
+   public double getLongitude() { return user.getLongitude(); }
+
+   public boolean isCustomer() { return user.isCustomer(); }
+   public boolean isManager() { return user.isManager(); }
+   public boolean isAdmin() { return user.isAdmin(); }
+
+   // (storeID, latitude, longitude) of every store this user manages
+   public LocationBatch getManagedStores() { return managedStores; }
+
+   public boolean manages(int storeId) { return managedStores.indexOf(storeId) >= 0; }
+
+   public long getLoadedAt() { return loadedAt; }
+}//end Session
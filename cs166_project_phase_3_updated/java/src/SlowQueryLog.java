@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Logs the statements of the Amazon execute helpers that take longer than
+ * a threshold to a rotating file. Literals in the SQL text and the bind
+ * values are redacted: the text is logged as its shape (see
+ * StatementMetrics.shape) and each bind value as its type and length.
+ *
+ * Optionally the plan of a slow statement is captured too, on a connection
+ * of its own and off the caller's thread. Its string literals and the
+ * numbers in its conditions are redacted as well, since drivers such as
+ * pg73jdbc3.jar substitute the bind values into the text. SELECTs are re-run as
+ * EXPLAIN (ANALYZE, BUFFERS), other statements only EXPLAINed so nothing is
+ * written twice. Either way the side transaction is rolled back. Each shape
+ * is explained at most once per explainIntervalMs, and plans that can not be
+ * captured quickly enough are dropped rather than queued without bound.
+ */
+public class SlowQueryLog {
+
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+   // plan lines that show the values of the statement, e.g. "Filter: (userid = 42)"
+   private static final Pattern CONDITION =
+      Pattern.compile("^(\\s*(?:Index Cond|Recheck Cond|Hash Cond|Merge Cond|TID Cond|Join Filter|One-Time Filter|Filter):)(.*)$");
+
+   private final ConnectionPool pool;
+   private final StatementMetrics metrics;
+   private final long thresholdNanos;
+   private final boolean explain;
+   private final long explainIntervalMs;
+   private final Logger log = Logger.getAnonymousLogger();
+   private final FileHandler file;
+   private final ThreadPoolExecutor explainer;
+   private final Map<String, Long> lastExplained = new ConcurrentHashMap<String, Long>();
+   private Connection side = null; // used by the explainer thread only
+
+   /**
+    * @param pool opens the side connection used for EXPLAIN
+    * @param metrics normalizes the logged SQL text
+    * @param thresholdMs statements taking longer are logged
+    * @param explain whether to capture the plans of slow statements
+    * @param explainIntervalMs minimum time between two plans of the same shape
+    * @param fileName the log file; rotated copies get .0, .1, ... suffixes
+    * @param maxBytes size at which the log file is rotated
+    * @param files number of rotated files kept
+    * @throws java.io.IOException when the log file can not be opened
+    */
+   public SlowQueryLog(ConnectionPool pool, StatementMetrics metrics, long thresholdMs, boolean explain, long explainIntervalMs,
+                       String fileName, int maxBytes, int files) throws IOException {
+      this.pool = pool;
+      this.metrics = metrics;
+      this.thresholdNanos = thresholdMs * 1000000L;
+      this.explain = explain;
+      this.explainIntervalMs = explainIntervalMs;
+      this.file = new FileHandler(fileName, maxBytes, Math.max(1, files), true);
+      this.file.setFormatter(new Formatter() {
+         @Override
+         public String format(LogRecord record) {
+            return String.format("%1$tF %1$tT %2$s%n", new Date(record.getMillis()), record.getMessage());
+         }
+      });
+      log.setUseParentHandlers(false);
+      log.addHandler(this.file);
+      this.explainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(16), r -> {
+         Thread t = new Thread(r, "amazon-explain");
+         t.setDaemon(true);
+         return t;
+      }, new ThreadPoolExecutor.DiscardPolicy());
+   }
+
+   /**
+    * Logs a statement if it took longer than the threshold.
+    *
+    * @param sql the statement text
+    * @param args the bind values, or null for a plain statement
+    * @param elapsedNanos how long it took
+    * @param rows rows returned or affected, or -1 when it failed
+    */
+   public void check(final String sql, final Object[] args, long elapsedNanos, long rows) {
+      if (elapsedNanos < thresholdNanos)
+         return;
+      final String shape = metrics.shape(sql);
+      final String operation = StatementMetrics.getOperation();
+      log.info(String.format("slow %.1f ms %s op=%s%n  %s%n  binds: %s", elapsedNanos / 1e6,
+                             rows < 0 ? "failed" : "rows=" + rows, operation, shape, describe(args)));
+      if (!explain)
+         return;
+      long now = System.currentTimeMillis();
+      Long last = lastExplained.get(shape);
+      if (last != null && now - last < explainIntervalMs)
+         return;
+      if (lastExplained.size() > 1000)
+         lastExplained.clear();
+      lastExplained.put(shape, now);
+      explainer.execute(() -> explain(sql, args, shape, operation));
+   }//end check
+
+   // bind values as types and lengths only
+   private static String describe(Object[] args) {
+      if (args == null)
+         return "none";
+      StringBuilder out = new StringBuilder("[");
+      for (int i = 0; i < args.length; i++) {
+         if (i > 0) out.append(", ");
+         Object arg = args[i];
+         if (arg == null)
+            out.append("null");
+         else if (arg instanceof CharSequence)
+            out.append("String(").append(((CharSequence) arg).length()).append(')');
+         else
+            out.append(arg.getClass().getSimpleName());
+      }
+      return out.append(']').toString();
+   }
+
+   // runs on the explainer thread
+   private void explain(String sql, Object[] args, String shape, String operation) {
+      boolean analyze = shape.regionMatches(true, 0, "SELECT", 0, 6);
+      StringBuilder plan = new StringBuilder();
+      try {
+         if (side == null) {
+            side = pool.openUnpooled();
+            side.setAutoCommit(false);
+         }
+         try (PreparedStatement stmt = side.prepareStatement((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql)) {
+            if (args != null)
+               for (int i = 0; i < args.length; i++)
+                  stmt.setObject(i + 1, args[i]);
+            try (ResultSet rs = stmt.executeQuery()) {
+               while (rs.next())
+                  plan.append(String.format("%n  ")).append(redactPlanLine(rs.getString(1)));
+            }
+         } finally {
+            side.rollback();
+         }
+         log.info(String.format("plan op=%s%n  %s%s", operation, shape, plan));
+      } catch (SQLException e) {
+         log.info(String.format("plan op=%s failed: %s%n  %s", operation, e.getMessage(), shape));
+         closeSide();
+      }
+   }//end explain
+
+   // replaces the string literals of a plan line, and the numbers of its conditions, by ?;
+   // costs, row counts and timings stay, the driver may have inlined the bind values
+   static String redactPlanLine(String line) {
+      line = STRING_LITERAL.matcher(line).replaceAll("'?'");
+      Matcher m = CONDITION.matcher(line);
+      return m.matches() ? m.group(1) + NUMBER_LITERAL.matcher(m.group(2)).replaceAll("?") : line;
+   }
+
+   private void closeSide() {
+      if (side != null) {
+         try {
+            side.close();
+         } catch (SQLException e) {
+            // already broken
+         }
+         side = null;
+      }
+   }
+
+   /**
+    * Stops capturing plans and closes the log file.
+    */
+   public void close() {
+      explainer.shutdownNow();
+      try {
+         explainer.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      closeSide();
+      file.close();
+   }
+}//end SlowQueryLog
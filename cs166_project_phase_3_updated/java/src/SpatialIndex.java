@@ -0,0 +1,168 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable 2-d tree over (latitude, longitude) points, used to answer the
+ * "stores within 30 miles" and "nearest 10 stores / warehouses" lookups
+ * without scanning and sorting every location. Distances are the same
+ * euclidean distance as Amazon.calculateDistance.
+ *
+ * The tree is built once from a snapshot of the table; callers replace the
+ * whole index when the underlying rows change.
+ */
+public class SpatialIndex<T> {
+
+   /**
+    * A point found by a query together with its distance from the origin.
+    */
+   public static class Neighbor<T> {
+      public final int id;
+      public final double latitude;
+      public final double longitude;
+      public final double distance;
+      public final T value;
+
+      Neighbor(int id, double latitude, double longitude, double distance, T value) {
+         this.id = id;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.distance = distance;
+         this.value = value;
+      }
+   }
+
+   private static final Comparator<Neighbor<?>> BY_DISTANCE = Comparator.comparingDouble(n -> n.distance);
+
+   // points in tree order: the median of every subrange is its root
+   private final int[] ids;
+   private final double[] lat;
+   private final double[] lon;
+   private final Object[] values;
+   private final Map<Integer, Integer> byId = new HashMap<Integer, Integer>();
+   private final long builtAt = System.currentTimeMillis();
+
+   /**
+    * Builds the tree.
+    *
+    * @param ids the id of every point
+    * @param latitudes the latitude of every point
+    * @param longitudes the longitude of every point
+    * @param values an optional payload per point (may be null)
+    */
+   public SpatialIndex(int[] ids, double[] latitudes, double[] longitudes, List<T> values) {
+      int n = ids.length;
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) order[i] = i;
+      build(order, 0, n, 0, latitudes, longitudes);
+
+      this.ids = new int[n];
+      this.lat = new double[n];
+      this.lon = new double[n];
+      this.values = new Object[n];
+      for (int i = 0; i < n; i++) {
+         int src = order[i];
+         this.ids[i] = ids[src];
+         this.lat[i] = latitudes[src];
+         this.lon[i] = longitudes[src];
+         this.values[i] = values == null ? null : values.get(src);
+         byId.put(ids[src], i);
+      }
+   }//end SpatialIndex
+
+   // arranges order[from, to) so the median on the split axis sits in the middle
+   private static void build(Integer[] order, int from, int to, int depth, double[] lat, double[] lon) {
+      if (to - from <= 1) return;
+      final double[] axis = (depth & 1) == 0 ? lat : lon;
+      Arrays.sort(order, from, to, Comparator.comparingDouble(i -> axis[i]));
+      int mid = (from + to) >>> 1;
+      build(order, from, mid, depth + 1, lat, lon);
+      build(order, mid + 1, to, depth + 1, lat, lon);
+   }
+
+   public int size() { return ids.length; }
+
+   public long getBuiltAt() { return builtAt; }
+
+   public boolean contains(int id) { return byId.containsKey(id); }
+
+   @SuppressWarnings("unchecked")
+   public T get(int id) {
+      Integer i = byId.get(id);
+      return i == null ? null : (T) values[i];
+   }
+
+   /**
+    * Returns every point within radius of the origin, nearest first.
+    *
+    * @param latitude origin latitude
+    * @param longitude origin longitude
+    * @param radius maximum distance (inclusive)
+    * @return the matching points sorted by distance
+    */
+   public List<Neighbor<T>> withinRadius(double latitude, double longitude, double radius) {
+      List<Neighbor<T>> out = new ArrayList<Neighbor<T>>();
+      radius(0, ids.length, 0, latitude, longitude, radius, out);
+      Collections.sort(out, BY_DISTANCE);
+      return out;
+   }//end withinRadius
+
+   private void radius(int from, int to, int depth, double qLat, double qLon, double r, List<Neighbor<T>> out) {
+      if (from >= to) return;
+      int mid = (from + to) >>> 1;
+      double d = Amazon.calculateDistance(qLat, qLon, lat[mid], lon[mid]);
+      if (d <= r) out.add(neighbor(mid, d));
+      double delta = (depth & 1) == 0 ? qLat - lat[mid] : qLon - lon[mid];
+      if (delta <= r) radius(from, mid, depth + 1, qLat, qLon, r, out);
+      if (-delta <= r) radius(mid + 1, to, depth + 1, qLat, qLon, r, out);
+   }
+
+   /**
+    * Returns the k points nearest to the origin, nearest first.
+    *
+    * @param latitude origin latitude
+    * @param longitude origin longitude
+    * @param k number of points wanted; -1 returns every point
+    * @return at most k points sorted by distance
+    */
+   public List<Neighbor<T>> nearest(double latitude, double longitude, int k) {
+      if (k < 0 || k > ids.length) k = ids.length;
+      // max-heap on distance holding the best k candidates seen so far
+      PriorityQueue<Neighbor<T>> best = new PriorityQueue<Neighbor<T>>(Math.max(1, k), BY_DISTANCE.reversed());
+      if (k > 0) nearest(0, ids.length, 0, latitude, longitude, k, best);
+      List<Neighbor<T>> out = new ArrayList<Neighbor<T>>(best);
+      Collections.sort(out, BY_DISTANCE);
+      return out;
+   }//end nearest
+
+   private void nearest(int from, int to, int depth, double qLat, double qLon, int k, PriorityQueue<Neighbor<T>> best) {
+      if (from >= to) return;
+      int mid = (from + to) >>> 1;
+      double d = Amazon.calculateDistance(qLat, qLon, lat[mid], lon[mid]);
+      if (best.size() < k) {
+         best.add(neighbor(mid, d));
+      } else if (d < best.peek().distance) {
+         best.poll();
+         best.add(neighbor(mid, d));
+      }
+      double delta = (depth & 1) == 0 ? qLat - lat[mid] : qLon - lon[mid];
+      // search the side containing the origin first, the other only if it can still hold a closer point
+      if (delta < 0) {
+         nearest(from, mid, depth + 1, qLat, qLon, k, best);
+         if (best.size() < k || -delta < best.peek().distance) nearest(mid + 1, to, depth + 1, qLat, qLon, k, best);
+      } else {
+         nearest(mid + 1, to, depth + 1, qLat, qLon, k, best);
+         if (best.size() < k || delta < best.peek().distance) nearest(from, mid, depth + 1, qLat, qLon, k, best);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private Neighbor<T> neighbor(int i, double d) {
+      return new Neighbor<T>(ids[i], lat[i], lon[i], d, (T) values[i]);
+   }
+}//end SpatialIndex
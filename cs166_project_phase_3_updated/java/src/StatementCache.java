@@ -0,0 +1,98 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * LRU cache of prepared statements for one physical connection, keyed by
+ * SQL text. A statement is switched to a server-side prepare once it has
+ * been used prepareThreshold times, so Postgres parses and plans it once
+ * instead of on every call.
+ *
+ * A connection is only ever used by one thread at a time (see
+ * ConnectionPool), so the cache itself is not synchronized.
+ */
+public class StatementCache {
+
+   // a cached statement and how often it was handed out
+   private static class Slot {
+      final PreparedStatement stmt;
+      int uses;
+
+      Slot(PreparedStatement stmt) {
+         this.stmt = stmt;
+      }
+   }
+
+   private final Connection conn;
+   private final int maxSize;
+   private final int prepareThreshold;
+   private final LinkedHashMap<String, Slot> slots;
+
+   /**
+    * @param conn the connection the statements are prepared on
+    * @param maxSize number of statements kept before the least recently used one is closed
+    * @param prepareThreshold uses after which a statement is prepared on the server (0 disables)
+    */
+   public StatementCache(Connection conn, int maxSize, int prepareThreshold) {
+      this.conn = conn;
+      this.maxSize = maxSize;
+      this.prepareThreshold = prepareThreshold;
+      this.slots = new LinkedHashMap<String, Slot>(16, 0.75f, true);
+   }
+
+   /**
+    * Returns a prepared statement for the SQL text with its parameters
+    * cleared. The statement stays owned by the cache: callers close the
+    * result sets they open, never the statement.
+    *
+    * @param sql SQL text with ? placeholders
+    * @return the cached or newly prepared statement
+    * @throws java.sql.SQLException when the statement can not be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      Slot slot = slots.get(sql);
+      if (slot == null) {
+         slot = new Slot(conn.prepareStatement(sql));
+         slots.put(sql, slot);
+         evict();
+      } else {
+         slot.stmt.clearParameters();
+      }
+
+      if (++slot.uses == prepareThreshold && slot.stmt instanceof PGStatement)
+         ((PGStatement) slot.stmt).setUseServerPrepare(true);
+      return slot.stmt;
+   }//end prepare
+
+   public int size() { return slots.size(); }
+
+   /**
+    * Closes every cached statement.
+    */
+   public void close() {
+      for (Slot slot : slots.values())
+         closeQuietly(slot.stmt);
+      slots.clear();
+   }
+
+   private void evict() {
+      Iterator<Map.Entry<String, Slot>> it = slots.entrySet().iterator();
+      while (slots.size() > maxSize && it.hasNext()) {
+         closeQuietly(it.next().getValue().stmt);
+         it.remove();
+      }
+   }
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+}//end StatementCache
@@ -0,0 +1,270 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Timing and counters for the statements issued by the Amazon execute
+ * helpers, kept per (logical operation, SQL shape). The operation is the
+ * menu action, HTTP route or load-test step running on the current thread
+ * (see setOperation); the shape is the SQL with literals replaced by ? so
+ * String.format-built statements group together.
+ *
+ * Every shape is published as an MBean under amazon:type=Statement and the
+ * whole table under amazon:type=StatementMetrics (dump() and reset()). With
+ * amazon.metrics.dumpMs set the table is also appended to
+ * amazon.metrics.file periodically.
+ */
+public class StatementMetrics {
+
+   /**
+    * Attributes of one (operation, SQL shape), as seen through JMX.
+    */
+   public interface StatsMBean {
+      String getOperation();
+      String getSql();
+      long getCalls();
+      long getErrors();
+      long getRows();
+      double getTotalMs();
+      double getMeanMs();
+      double getP50Ms();
+      double getP99Ms();
+      double getMaxMs();
+   }
+
+   /**
+    * Operations of the whole table, as seen through JMX.
+    */
+   public interface TableMBean {
+      int getShapes();
+      String dump();
+      void reset();
+   }
+
+   // counters of one (operation, SQL shape)
+   static final class Stats implements StatsMBean {
+      final String operation;
+      final String sql;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong totalNanos = new AtomicLong();
+
+      Stats(String operation, String sql) {
+         this.operation = operation;
+         this.sql = sql;
+      }
+
+      public String getOperation() { return operation; }
+      public String getSql() { return sql; }
+      public long getCalls() { return latency.getCount(); }
+      public long getErrors() { return errors.get(); }
+      public long getRows() { return rows.get(); }
+      public double getTotalMs() { return totalNanos.get() / 1e6; }
+      public double getMeanMs() { return latency.getMean() / 1e6; }
+      public double getP50Ms() { return latency.percentile(0.50) / 1e6; }
+      public double getP99Ms() { return latency.percentile(0.99) / 1e6; }
+      public double getMaxMs() { return latency.getMax() / 1e6; }
+
+      void reset() {
+         latency.reset();
+         errors.set(0);
+         rows.set(0);
+         totalNanos.set(0);
+      }
+   }
+
+   private static final ThreadLocal<String> OPERATION = new ThreadLocal<String>();
+
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+   private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+   private static final Pattern SPACE = Pattern.compile("\\s+");
+
+   private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+   private final Map<String, String> shapes = new ConcurrentHashMap<String, String>();
+   private final int maxShapes;
+   private final AtomicInteger mbeanIds = new AtomicInteger();
+   private final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+   private ScheduledExecutorService dumper = null;
+
+   /**
+    * @param maxShapes distinct (operation, SQL shape) pairs tracked; later ones are counted under "(other)"
+    * @param dumpMs interval of the text dump, or 0 for none
+    * @param dumpFile file the dump is appended to
+    */
+   public StatementMetrics(int maxShapes, long dumpMs, final String dumpFile) {
+      this.maxShapes = maxShapes;
+      register("amazon:type=StatementMetrics", new StandardMBean(new TableMBean() {
+         public int getShapes() { return stats.size(); }
+         public String dump() { return StatementMetrics.this.dump(); }
+         public void reset() { StatementMetrics.this.reset(); }
+      }, TableMBean.class, false));
+      if (dumpMs > 0) {
+         dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "amazon-metrics");
+            t.setDaemon(true);
+            return t;
+         });
+         dumper.scheduleAtFixedRate(() -> {
+            try (PrintWriter out = new PrintWriter(new FileWriter(dumpFile, true))) {
+               out.println("# " + new Date());
+               out.print(dump());
+            } catch (IOException e) {
+               System.err.println("Can not write " + dumpFile + ": " + e.getMessage());
+            }
+         }, dumpMs, dumpMs, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Tags the statements issued by the current thread with a logical
+    * operation, e.g. a menu action.
+    *
+    * @param operation the operation, or null to clear the tag
+    */
+   public static void setOperation(String operation) {
+      if (operation == null) OPERATION.remove();
+      else OPERATION.set(operation);
+   }
+
+   /** @return the current thread's operation, "other" when untagged */
+   public static String getOperation() {
+      String operation = OPERATION.get();
+      return operation == null ? "other" : operation;
+   }
+
+   /**
+    * Records a statement that succeeded.
+    *
+    * @param sql the statement text
+    * @param startNanos System.nanoTime() taken before it was issued
+    * @param rows rows returned or affected
+    * @return the elapsed time in nanoseconds
+    */
+   public long record(String sql, long startNanos, long rows) {
+      long elapsed = System.nanoTime() - startNanos;
+      Stats s = statsFor(sql);
+      s.latency.record(elapsed);
+      s.totalNanos.addAndGet(elapsed);
+      s.rows.addAndGet(Math.max(0, rows));
+      return elapsed;
+   }
+
+   /**
+    * Records a statement that failed.
+    *
+    * @param sql the statement text
+    * @param startNanos System.nanoTime() taken before it was issued
+    * @return the elapsed time in nanoseconds
+    */
+   public long recordError(String sql, long startNanos) {
+      long elapsed = System.nanoTime() - startNanos;
+      Stats s = statsFor(sql);
+      s.latency.record(elapsed);
+      s.totalNanos.addAndGet(elapsed);
+      s.errors.incrementAndGet();
+      return elapsed;
+   }
+
+   private Stats statsFor(String sql) {
+      String operation = getOperation();
+      String shape = shape(sql);
+      String key = operation + '\u0000' + shape;
+      Stats s = stats.get(key);
+      if (s != null)
+         return s;
+      if (stats.size() >= maxShapes) {
+         key = operation + '\u0000' + "(other)";
+         shape = "(other)";
+         if ((s = stats.get(key)) != null)
+            return s;
+      }
+      Stats created = new Stats(operation, shape);
+      s = stats.putIfAbsent(key, created);
+      if (s != null)
+         return s;
+      register("amazon:type=Statement,operation=" + ObjectName.quote(operation) + ",id=" + mbeanIds.incrementAndGet(),
+               new StandardMBean(created, StatsMBean.class, false));
+      return created;
+   }
+
+   /**
+    * Normalizes a statement: literals become ?, IN lists (?, ?, ...) become
+    * (?...) and runs of whitespace one space.
+    *
+    * @param sql the statement text
+    * @return its shape
+    */
+   public String shape(String sql) {
+      String shape = shapes.get(sql);
+      if (shape == null) {
+         shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+         shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+         shape = IN_LIST.matcher(shape).replaceAll("(?...)");
+         shape = SPACE.matcher(shape).replaceAll(" ").trim();
+         if (shapes.size() > 4 * maxShapes)
+            shapes.clear(); // format-built statements never repeat; keep the cache bounded
+         shapes.put(sql, shape);
+      }
+      return shape;
+   }
+
+   /**
+    * Renders the table, most total time first.
+    *
+    * @return one line per (operation, SQL shape)
+    */
+   public String dump() {
+      List<Stats> all = new ArrayList<Stats>(stats.values());
+      all.sort((a, b) -> Long.compare(b.totalNanos.get(), a.totalNanos.get()));
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%-28s%10s%8s%12s%12s%10s%10s%10s  %s%n", "operation", "calls", "errors", "rows", "total ms", "p50 ms", "p99 ms", "max ms", "sql"));
+      for (Stats s : all)
+         out.append(String.format("%-28s%10d%8d%12d%12.1f%10.2f%10.2f%10.2f  %s%n", s.operation, s.getCalls(), s.getErrors(), s.getRows(),
+                                  s.getTotalMs(), s.getP50Ms(), s.getP99Ms(), s.getMaxMs(), s.sql));
+      return out.toString();
+   }
+
+   /**
+    * Clears every counter; the tracked shapes and their MBeans are kept.
+    */
+   public void reset() {
+      for (Stats s : stats.values())
+         s.reset();
+   }
+
+   /**
+    * Stops the periodic dump.
+    */
+   public void close() {
+      if (dumper != null)
+         dumper.shutdownNow();
+   }
+
+   // registers an MBean; a second Amazon instance in the JVM keeps the first one's names
+   private void register(String name, Object mbean) {
+      try {
+         ObjectName objectName = new ObjectName(name);
+         if (!mbeans.isRegistered(objectName))
+            mbeans.registerMBean(mbean, objectName);
+      } catch (Exception e) {
+         System.err.println("Can not register MBean " + name + ": " + e.getMessage());
+      }
+   }
+}//end StatementMetrics
@@ -0,0 +1,35 @@
+import java.sql.Date;
+
+/**
+ * One row of the Store table.
+ */
+public final class Store {
+
+   /** Maps a row containing the Store columns. */
+   public static final Amazon.RowMapper<Store> MAPPER = rs -> new Store(
+      rs.getInt("storeID"),
+      rs.getDouble("latitude"),
+      rs.getDouble("longitude"),
+      rs.getInt("managerID"),
+      rs.getDate("dateEstablished"));
+
+   private final int storeId;
+   private final double latitude;
+   private final double longitude;
+   private final int managerId;
+   private final Date dateEstablished;
+
+   public Store(int storeId, double latitude, double longitude, int managerId, Date dateEstablished) {
+      this.storeId = storeId;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.managerId = managerId;
+      this.dateEstablished = dateEstablished;
+   }
+
+   public int getStoreId() { return storeId; }
+   public double getLatitude() { return latitude; }
+   public double getLongitude() { return longitude; }
+   public int getManagerId() { return managerId; }
+   public Date getDateEstablished() { return dateEstablished; }
+}//end Store
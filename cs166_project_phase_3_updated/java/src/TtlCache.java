@@ -0,0 +1,135 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache with a time to live, e.g. the product listing of
+ * each store.
+ *
+ * A value is loaded on the first get() of its key and served from memory
+ * until it is ttlMs old or invalidated by a write path. At most maxKeys
+ * values are held; the least recently used one is evicted first. A value
+ * whose key is invalidated while it is being loaded is returned to that
+ * caller but not cached, so a load that raced a write is never served to
+ * anyone else.
+ *
+ * @param <K> the key
+ * @param <V> the cached value; treated as immutable
+ */
+public class TtlCache<K, V> {
+
+   /**
+    * Reads the value of one key from the database.
+    */
+   public interface Loader<K, V> {
+      /**
+       * @param key the key to load
+       * @return its value
+       * @throws java.sql.SQLException when the value can not be read
+       */
+      V load(K key) throws SQLException;
+   }
+
+   // a value and when it was loaded
+   private static final class Entry<V> {
+      final V value;
+      final long loadedAt = System.currentTimeMillis();
+
+      Entry(V value) {
+         this.value = value;
+      }
+   }
+
+   private final long ttlMs;
+   private final Map<K, Entry<V>> entries;
+   // keys being loaded, marked when they are invalidated while a load runs
+   private final PendingLoads<K> loading = new PendingLoads<K>();
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong expired = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private final AtomicLong invalidations = new AtomicLong();
+
+   /**
+    * @param ttlMs age after which a value is reloaded
+    * @param maxKeys values kept before the least recently used one is evicted
+    */
+   public TtlCache(long ttlMs, final int maxKeys) {
+      this.ttlMs = ttlMs;
+      this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() <= maxKeys)
+               return false;
+            evictions.incrementAndGet();
+            return true;
+         }
+      };
+   }
+
+   /**
+    * Returns the value of a key, loading it when it is not cached or too old.
+    *
+    * @param key the key
+    * @param loader reads the value when it is not cached
+    * @return the value
+    * @throws java.sql.SQLException when the value can not be loaded
+    */
+   public V get(K key, Loader<K, V> loader) throws SQLException {
+      synchronized (this) {
+         Entry<V> entry = entries.get(key);
+         if (entry != null) {
+            if (System.currentTimeMillis() - entry.loadedAt <= ttlMs) {
+               hits.incrementAndGet();
+               return entry.value;
+            }
+            entries.remove(key);
+            expired.incrementAndGet();
+         }
+         misses.incrementAndGet();
+         loading.start(key);
+      }
+      V value = null;
+      try {
+         value = loader.load(key);
+      } finally {
+         synchronized (this) {
+            // invalidated during the load, which may have read the old rows; do not cache
+            if (loading.finish(key) && value != null)
+               entries.put(key, new Entry<V>(value));
+         }
+      }
+      return value;
+   }//end get
+
+   /**
+    * Drops the value of a key so the next get() reloads it. Call this after
+    * writing the rows it was loaded from.
+    *
+    * @param key the key
+    */
+   public synchronized void invalidate(K key) {
+      if (entries.remove(key) != null)
+         invalidations.incrementAndGet();
+      loading.mark(key);
+   }
+
+   /**
+    * Drops every value.
+    */
+   public synchronized void clear() {
+      invalidations.addAndGet(entries.size());
+      entries.clear();
+      loading.markAll();
+   }
+
+   /**
+    * @return hit rate, size and the reasons values were dropped
+    */
+   public synchronized String status() {
+      long h = hits.get(), m = misses.get();
+      return String.format("hits %d, misses %d (%.1f%% hit rate), cached %d, expired %d, evicted %d, invalidated %d",
+                           h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), entries.size(), expired.get(), evictions.get(), invalidations.get());
+   }
+}//end TtlCache
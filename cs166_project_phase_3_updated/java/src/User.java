@@ -0,0 +1,40 @@
+/**
+ * One row of the Users table. name and type are char columns, so the
+ * padding is trimmed when the row is mapped; type is otherwise kept as
+ * stored, so the role checks match exactly like the old SQL filters on
+ * U.type. The password is not kept.
+ */
+public final class User {
+
+   /** Maps a row containing the Users columns (password is not read). */
+   public static final Amazon.RowMapper<User> MAPPER = rs -> new User(
+      rs.getInt("userID"),
+      rs.getString("name").trim(),
+      rs.getDouble("latitude"),
+      rs.getDouble("longitude"),
+      rs.getString("type").trim());
+
+   private final int userId;
+   private final String name;
+   private final double latitude;
+   private final double longitude;
+   private final String type;
+
+   public User(int userId, String name, double latitude, double longitude, String type) {
+      this.userId = userId;
+      this.name = name;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.type = type;
+   }
+
+   public int getUserId() { return userId; }
+   public String getName() { return name; }
+   public double getLatitude() { return latitude; }
+   public double getLongitude() { return longitude; }
+   public String getType() { return type; }
+
+   public boolean isCustomer() { return "customer".equals(type); }
+   public boolean isManager() { return "manager".equals(type); }
+   public boolean isAdmin() { return "admin".equals(type); }
+}//end User
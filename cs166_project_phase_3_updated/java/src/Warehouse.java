@@ -0,0 +1,29 @@
+/**
+ * One row of the Warehouse table.
+ */
+public final class Warehouse {
+
+   /** Maps a row containing the Warehouse columns. */
+   public static final Amazon.RowMapper<Warehouse> MAPPER = rs -> new Warehouse(
+      rs.getInt("warehouseID"),
+      rs.getInt("area"),
+      rs.getDouble("latitude"),
+      rs.getDouble("longitude"));
+
+   private final int warehouseId;
+   private final int area;
+   private final double latitude;
+   private final double longitude;
+
+   public Warehouse(int warehouseId, int area, double latitude, double longitude) {
+      this.warehouseId = warehouseId;
+      this.area = area;
+      this.latitude = latitude;
+      this.longitude = longitude;
+   }
+
+   public int getWarehouseId() { return warehouseId; }
+   public int getArea() { return area; }
+   public double getLatitude() { return latitude; }
+   public double getLongitude() { return longitude; }
+}//end Warehouse
@@ -0,0 +1,12 @@
+#!/bin/bash
+# starts a streaming replica of the server on $PGPORT, listening on $REPLICA_PORT
+# (default $PGPORT + 1), to try the read/write split on one machine:
+#   java -Damazon.replicas=$REPLICA_PORT -cp ... Amazon $USER"_project_phase_3_DB" $PGPORT $USER
+# needs PostgreSQL 10 or later and a primary that accepts replication
+# connections from $USER (the default for local superusers).
+REPLICA_PORT=${REPLICA_PORT:-$((PGPORT + 1))}
+REPLICA_DIR=${REPLICA_DIR:-/tmp/$USER/replica_$REPLICA_PORT}
+rm -rf $REPLICA_DIR
+mkdir -p $REPLICA_DIR && chmod 700 $REPLICA_DIR
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DIR -R -X stream
+pg_ctl -D $REPLICA_DIR -o "-p $REPLICA_PORT" -l $REPLICA_DIR/replica.log start
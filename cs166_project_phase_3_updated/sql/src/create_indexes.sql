@@ -8,6 +8,8 @@ DROP INDEX IF EXISTS idx_product_storeid_productname;
 DROP INDEX IF EXISTS idx_orders_customerid_ordertime;
 DROP INDEX IF EXISTS idx_productupdates_managerid_storeid_updatedon;
 DROP INDEX IF EXISTS idx_orders_storeid_productname;
+DROP INDEX IF EXISTS idx_productsales_storeid_unitssold;
+DROP INDEX IF EXISTS idx_customerpurchases_storeid_unitspurchased;
 
 --1. Composite index for user authentication
 CREATE INDEX idx_users_name_password
@@ -44,4 +46,12 @@ ON PRODUCTUPDATES (managerID, storeId, updatedOn DESC);
 
 --7. Composite index for aggregate sales on orders
 CREATE INDEX idx_orders_storeid_productname
-ON ORDERS (storeId, productName);
\ No newline at end of file
+ON ORDERS (storeId, productName);
+
+--8. Top products of a store from the sales summary
+CREATE INDEX idx_productsales_storeid_unitssold
+ON PRODUCTSALES (storeId, unitsSold DESC);
+
+--9. Top customers of a store from the purchases summary
+CREATE INDEX idx_customerpurchases_storeid_unitspurchased
+ON CUSTOMERPURCHASES (storeId, unitsPurchased DESC);
@@ -1,3 +1,6 @@
+DROP VIEW IF EXISTS AllOrders;
+DROP TABLE IF EXISTS OrdersArchive CASCADE;
+DROP TABLE IF EXISTS ProductUpdatesArchive CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS Product CASCADE;
 DROP TABLE IF EXISTS Users CASCADE;
@@ -5,6 +8,8 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductSales CASCADE;
+DROP TABLE IF EXISTS CustomerPurchases CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -41,6 +46,11 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          longitude decimal(9,6)  NOT NULL,
                          PRIMARY KEY(WarehouseID));
 
+-- Orders and ProductUpdates are range partitioned by month (PostgreSQL 11 or
+-- later). PartitionMaintenance (the "partitions" command) creates the monthly
+-- partitions ahead of time, moves rows that landed in the default partition
+-- into their month, and moves old months to the archive tables below. The
+-- primary keys include the partition key, as PostgreSQL requires.
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
@@ -48,10 +58,11 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -72,7 +83,50 @@ CREATE TABLE ProductUpdates (
                         	storeID integer NOT NULL,
                        		productName char(30) NOT NULL, 
                             updatedOn timestamp NOT NULL,
-                        	PRIMARY KEY(updateNumber),
+                        	PRIMARY KEY(updateNumber, updatedOn),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+) PARTITION BY RANGE (updatedOn);
+CREATE TABLE ProductUpdates_default PARTITION OF ProductUpdates DEFAULT;
+
+-- archived months, attached here by PartitionMaintenance when they are detached
+-- from Orders/ProductUpdates; no indexes beyond those the months bring along
+CREATE TABLE OrdersArchive ( orderNumber integer NOT NULL,
+                             customerID integer NOT NULL,
+                             storeID integer NOT NULL,
+                             productName char(30) NOT NULL,
+                             unitsOrdered integer NOT NULL,
+                             orderTime timestamp NOT NULL
+) PARTITION BY RANGE (orderTime);
+
+CREATE TABLE ProductUpdatesArchive ( updateNumber integer NOT NULL,
+                                     managerID integer NOT NULL,
+                                     storeID integer NOT NULL,
+                                     productName char(30) NOT NULL,
+                                     updatedOn timestamp NOT NULL
+) PARTITION BY RANGE (updatedOn);
+
+-- every order still in the database, hot or archived; the sales summaries are checked against it
+CREATE VIEW AllOrders AS
+SELECT * FROM Orders UNION ALL SELECT * FROM OrdersArchive;
+
+-- units sold per product, maintained by the order placement path so the
+-- popular products of a store are read without aggregating Orders
+CREATE TABLE ProductSales ( storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            unitsSold bigint NOT NULL,
+                            PRIMARY KEY(storeID, productName),
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
+
+-- units each customer bought at each store, maintained like ProductSales
+CREATE TABLE CustomerPurchases ( storeID integer NOT NULL,
+                                 customerID integer NOT NULL,
+                                 unitsPurchased bigint NOT NULL,
+                                 PRIMARY KEY(storeID, customerID),
+                                 FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                                 ON DELETE CASCADE,
+                                 FOREIGN KEY(customerID) REFERENCES Users(userID)
+                                 ON DELETE CASCADE
 );
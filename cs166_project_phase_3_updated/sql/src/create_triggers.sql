@@ -0,0 +1,91 @@
+-- Change notifications for the in-memory caches of every running Amazon
+-- instance (see ChangeListener). Each row change sends a NOTIFY on the
+-- amazon_changes channel naming what changed; PostgreSQL delivers it on
+-- commit and drops duplicates within a transaction.
+--   store:<storeID>    a store was added, moved or removed
+--   product:<storeID>  a product of the store changed (stock, price, name)
+--   user:<userID>      a user changed, or the stores they manage did
+--   all                a table was truncated
+-- Changes that only touch a product's stock (every order, restock and
+-- supply request) are sent on the amazon_stock channel instead, as
+-- stock:<storeID>. Without payloads (older JDBC drivers) the channel alone
+-- still tells a listener that only per-store product caches are affected.
+-- Run this after load_data.sql, so the initial load sends no notifications.
+
+CREATE OR REPLACE FUNCTION amazon_notify_store() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP <> 'INSERT' THEN
+      PERFORM pg_notify('amazon_changes', 'store:' || OLD.storeID);
+      IF OLD.managerID IS NOT NULL THEN
+         PERFORM pg_notify('amazon_changes', 'user:' || OLD.managerID);
+      END IF;
+   END IF;
+   IF TG_OP <> 'DELETE' THEN
+      PERFORM pg_notify('amazon_changes', 'store:' || NEW.storeID);
+      IF NEW.managerID IS NOT NULL THEN
+         PERFORM pg_notify('amazon_changes', 'user:' || NEW.managerID);
+      END IF;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION amazon_notify_product() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'UPDATE' AND OLD.storeID = NEW.storeID AND OLD.productName = NEW.productName
+      AND OLD.pricePerUnit = NEW.pricePerUnit THEN
+      PERFORM pg_notify('amazon_stock', 'stock:' || NEW.storeID);
+      RETURN NULL;
+   END IF;
+   IF TG_OP <> 'INSERT' THEN
+      PERFORM pg_notify('amazon_changes', 'product:' || OLD.storeID);
+   END IF;
+   IF TG_OP <> 'DELETE' THEN
+      PERFORM pg_notify('amazon_changes', 'product:' || NEW.storeID);
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION amazon_notify_user() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP <> 'INSERT' THEN
+      PERFORM pg_notify('amazon_changes', 'user:' || OLD.userID);
+   END IF;
+   IF TG_OP <> 'DELETE' THEN
+      PERFORM pg_notify('amazon_changes', 'user:' || NEW.userID);
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION amazon_notify_all() RETURNS trigger AS $$
+BEGIN
+   PERFORM pg_notify('amazon_changes', 'all');
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS store_changes ON Store;
+CREATE TRIGGER store_changes AFTER INSERT OR UPDATE OR DELETE ON Store
+FOR EACH ROW EXECUTE PROCEDURE amazon_notify_store();
+
+DROP TRIGGER IF EXISTS product_changes ON Product;
+CREATE TRIGGER product_changes AFTER INSERT OR UPDATE OR DELETE ON Product
+FOR EACH ROW EXECUTE PROCEDURE amazon_notify_product();
+
+DROP TRIGGER IF EXISTS users_changes ON Users;
+CREATE TRIGGER users_changes AFTER INSERT OR UPDATE OR DELETE ON Users
+FOR EACH ROW EXECUTE PROCEDURE amazon_notify_user();
+
+DROP TRIGGER IF EXISTS store_truncate ON Store;
+CREATE TRIGGER store_truncate AFTER TRUNCATE ON Store
+FOR EACH STATEMENT EXECUTE PROCEDURE amazon_notify_all();
+
+DROP TRIGGER IF EXISTS product_truncate ON Product;
+CREATE TRIGGER product_truncate AFTER TRUNCATE ON Product
+FOR EACH STATEMENT EXECUTE PROCEDURE amazon_notify_all();
+
+DROP TRIGGER IF EXISTS users_truncate ON Users;
+CREATE TRIGGER users_truncate AFTER TRUNCATE ON Users
+FOR EACH STATEMENT EXECUTE PROCEDURE amazon_notify_all();
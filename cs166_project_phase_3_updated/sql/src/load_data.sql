@@ -20,6 +20,12 @@ FROM '/home/csmajs/cschl005/cs166_project_phase_3_updated/data/orders.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
 
+INSERT INTO ProductSales (storeID, productName, unitsSold)
+SELECT storeID, productName, SUM(unitsOrdered) FROM Orders GROUP BY storeID, productName;
+
+INSERT INTO CustomerPurchases (storeID, customerID, unitsPurchased)
+SELECT storeID, customerID, SUM(unitsOrdered) FROM Orders GROUP BY storeID, customerID;
+
 
 COPY ProductSupplyRequests
 FROM '/home/csmajs/cschl005/cs166_project_phase_3_updated/data/productSupplyRequests.csv'